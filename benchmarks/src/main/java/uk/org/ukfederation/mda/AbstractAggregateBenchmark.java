@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import uk.org.ukfederation.mda.SyntheticAggregateGenerator.SyntheticAggregate;
+import uk.org.ukfederation.members.Members;
+
+/**
+ * Base class for benchmarks operating on an aggregate of entities.
+ *
+ * <p>
+ * Each benchmark runs at several aggregate sizes and reports both throughput
+ * and average time; {@link BenchmarkRunner} adds the GC profiler for allocation rates.
+ * </p>
+ *
+ * <p>
+ * Aggregates are built by {@link SyntheticAggregateGenerator} from a fixed seed, so that
+ * every run, on every machine, measures the same input.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class AbstractAggregateBenchmark {
+
+    /** Seed for the aggregate generator. */
+    public static final long SEED = 20200217L;
+
+    /** Number of entities in the aggregate. */
+    @Param({"100", "1000", "10000"})
+    public int aggregateSize;
+
+    /** The aggregate, built once for each trial. */
+    private SyntheticAggregate aggregate;
+
+    /**
+     * Build the aggregate for this trial, then set up the component under test.
+     *
+     * @throws Exception if the aggregate can not be built, or the component can not be set up
+     */
+    @Setup(Level.Trial)
+    public void setUpAggregate() throws Exception {
+        final SyntheticAggregateGenerator generator = new SyntheticAggregateGenerator(SEED);
+        configure(generator);
+        aggregate = generator.generate(aggregateSize);
+        prepare(aggregate.getItems());
+        setUpComponent();
+    }
+
+    /**
+     * Configure the aggregate generator.
+     *
+     * <p>The default implementation does nothing.</p>
+     *
+     * @param generator the generator to configure
+     */
+    protected void configure(@Nonnull final SyntheticAggregateGenerator generator) {
+    }
+
+    /**
+     * Prepare the aggregate before any measurement, for example by populating item metadata
+     * required by the component under test.
+     *
+     * <p>The default implementation does nothing.</p>
+     *
+     * @param items the aggregate
+     * @throws Exception if something goes wrong
+     */
+    protected void prepare(@Nonnull @NonnullElements final List<Item<Element>> items) throws Exception {
+    }
+
+    /**
+     * Set up the component under test, once the aggregate has been prepared.
+     *
+     * <p>The default implementation does nothing.</p>
+     *
+     * @throws Exception if the component can not be set up
+     */
+    protected void setUpComponent() throws Exception {
+    }
+
+    /**
+     * Get the aggregate built for this trial.
+     *
+     * @return the aggregate
+     */
+    @Nonnull @NonnullElements
+    protected List<Item<Element>> getAggregate() {
+        return aggregate.getItems();
+    }
+
+    /**
+     * Get a {@link Members} object matching the aggregate built for this trial.
+     *
+     * @return a new {@link Members}
+     */
+    @Nonnull
+    protected Members getMembers() {
+        return aggregate.getMembers();
+    }
+
+    /**
+     * Initialize a stage, run it once over a collection, then destroy it.
+     *
+     * @param stage the stage to run
+     * @param items the collection to run it on
+     * @throws ComponentInitializationException if the stage can not be initialized
+     * @throws StageProcessingException if the stage fails
+     */
+    protected static void runStage(@Nonnull final AbstractStage<Element> stage,
+            @Nonnull @NonnullElements final List<Item<Element>> items)
+            throws ComponentInitializationException, StageProcessingException {
+        stage.setId(stage.getClass().getSimpleName());
+        stage.initialize();
+        stage.execute(items);
+        stage.destroy();
+    }
+
+}
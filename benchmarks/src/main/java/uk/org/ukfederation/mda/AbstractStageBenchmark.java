@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+
+/**
+ * Base class for benchmarks of a single {@link Stage} executed over a whole aggregate.
+ *
+ * <p>
+ * Stages modify the items they process, so each invocation runs on a fresh copy of
+ * the aggregate. Making the copy is not included in the measurement.
+ * </p>
+ */
+public abstract class AbstractStageBenchmark extends AbstractAggregateBenchmark {
+
+    /** The stage under test. */
+    private Stage<Element> stage;
+
+    /** The collection to be processed by the next invocation. */
+    private List<Item<Element>> items;
+
+    /**
+     * Create the stage to be measured. It will be initialized by the caller.
+     *
+     * @return the (uninitialized) stage
+     * @throws Exception if the stage can not be created
+     */
+    @Nonnull
+    protected abstract Stage<Element> createStage() throws Exception;
+
+    /**
+     * Create and initialize the stage under test.
+     *
+     * @throws Exception if the stage can not be created or initialized
+     */
+    @Override
+    protected void setUpComponent() throws Exception {
+        stage = createStage();
+        stage.initialize();
+    }
+
+    /** Copy the aggregate for the next invocation. */
+    @Setup(Level.Invocation)
+    public void copyAggregate() {
+        final List<Item<Element>> aggregate = getAggregate();
+        items = new ArrayList<>(aggregate.size());
+        for (final Item<Element> item : aggregate) {
+            items.add(item.copy());
+        }
+    }
+
+    /** Destroy the stage under test. */
+    @TearDown(Level.Trial)
+    public void tearDownStage() {
+        stage.destroy();
+    }
+
+    /**
+     * Execute the stage over the aggregate.
+     *
+     * @return the processed collection, to defeat dead code elimination
+     * @throws StageProcessingException if the stage fails
+     */
+    @Benchmark
+    public List<Item<Element>> execute() throws StageProcessingException {
+        stage.execute(items);
+        return items;
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.shibboleth.metadata.MockItem;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.metadata.validate.Validator;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * Base class for benchmarks of a single {@link Validator} applied to as many values
+ * as there would be entities in an aggregate.
+ *
+ * <p>
+ * Each value is validated against a fresh item, so that status metadata does not
+ * accumulate between invocations.
+ * </p>
+ *
+ * @param <V> type of the values being validated
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class AbstractValidatorBenchmark<V> {
+
+    /** Number of values validated by each invocation. */
+    @Param({"100", "1000", "10000"})
+    public int aggregateSize;
+
+    /** The validator under test. */
+    private Validator<V> validator;
+
+    /** Values to validate. */
+    private List<V> values;
+
+    /**
+     * Create the validator to be measured. It will be initialized by the caller.
+     *
+     * @return the (uninitialized) validator
+     */
+    @Nonnull
+    protected abstract Validator<V> createValidator();
+
+    /**
+     * Create the values to be validated.
+     *
+     * @param size number of values required
+     * @return the values to be validated
+     * @throws Exception if the values can not be created
+     */
+    @Nonnull @NonnullElements
+    protected abstract List<V> createValues(int size) throws Exception;
+
+    /**
+     * Create and initialize the validator, and the values to validate.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Setup(Level.Trial)
+    public void setUpValidator() throws Exception {
+        validator = createValidator();
+        validator.setId(getClass().getSimpleName());
+        validator.initialize();
+        values = createValues(aggregateSize);
+    }
+
+    /** Destroy the validator under test. */
+    @TearDown(Level.Trial)
+    public void tearDownValidator() {
+        validator.destroy();
+    }
+
+    /**
+     * Validate each of the values.
+     *
+     * @return number of values for which validation continued, to defeat dead code elimination
+     * @throws StageProcessingException if the validator fails
+     */
+    @Benchmark
+    public int validate() throws StageProcessingException {
+        int continued = 0;
+        for (final V value : values) {
+            final MockItem item = new MockItem("benchmark");
+            if (validator.validate(value, item, "benchmark") == Validator.Action.CONTINUE) {
+                continued++;
+            }
+        }
+        return continued;
+    }
+
+}
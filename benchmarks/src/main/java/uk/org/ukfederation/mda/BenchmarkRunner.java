@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point for <code>benchmarks.jar</code>.
+ *
+ * <p>
+ * Accepts the normal JMH command line options (for example a benchmark name regular
+ * expression, or <code>-p aggregateSize=10000</code>) and always adds the GC profiler,
+ * so that allocation rates are reported alongside throughput and average time.
+ * </p>
+ */
+public final class BenchmarkRunner {
+
+    /** Constructor. */
+    private BenchmarkRunner() {
+    }
+
+    /**
+     * Run the benchmarks.
+     *
+     * @param args JMH command line options
+     * @throws Exception if the benchmarks can not be run
+     */
+    public static void main(final String[] args) throws Exception {
+        final Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.saml.mdui.MDUISupport;
+
+/**
+ * Benchmark comparing a whole-subtree <code>getElementsByTagNameNS</code> search for an entity's
+ * display names with the targeted navigation of {@link DisplayNameSupport}.
+ *
+ * <p>
+ * The <code>extraKeyDescriptors</code> parameter adds signing certificates to every role descriptor,
+ * which the subtree search must traverse but the targeted navigation skips.
+ * </p>
+ */
+public class DisplayNameNavigationBenchmark extends AbstractAggregateBenchmark {
+
+    /** Number of additional key descriptors on each role descriptor. */
+    @Param({"0", "8"})
+    public int extraKeyDescriptors;
+
+    @Override
+    protected void configure(final SyntheticAggregateGenerator generator) {
+        generator.setExtraKeyDescriptors(extraKeyDescriptors);
+    }
+
+    /**
+     * Count the display name characters found by searching each entity's whole subtree.
+     *
+     * @param entity the entity to search
+     * @return number of display name characters
+     */
+    private static int subtreeSearch(final Element entity) {
+        NodeList names = entity.getElementsByTagNameNS(MDUISupport.MDUI_NS, "DisplayName");
+        if (names.getLength() == 0) {
+            names = entity.getElementsByTagNameNS(DisplayNameSupport.MD_ORG_DISPLAY_NAME.getNamespaceURI(),
+                    DisplayNameSupport.MD_ORG_DISPLAY_NAME.getLocalPart());
+        }
+        int length = 0;
+        for (int i = 0; i < names.getLength(); i++) {
+            length += names.item(i).getTextContent().length();
+        }
+        return length;
+    }
+
+    /**
+     * Locate display names by searching each entity's whole subtree.
+     *
+     * @return total number of display name characters, to defeat dead code elimination
+     */
+    @Benchmark
+    public int subtree() {
+        int length = 0;
+        for (final Item<Element> item : getAggregate()) {
+            length += subtreeSearch(item.unwrap());
+        }
+        return length;
+    }
+
+    /**
+     * Locate display names by visiting only the locations at which they may appear.
+     *
+     * @return total number of display name characters, to defeat dead code elimination
+     */
+    @Benchmark
+    public int targeted() {
+        int length = 0;
+        for (final Item<Element> item : getAggregate()) {
+            final Element entity = item.unwrap();
+            List<Element> names = DisplayNameSupport.getDisplayNames(entity);
+            if (names.isEmpty()) {
+                names = DisplayNameSupport.getOrganizationDisplayNames(entity);
+            }
+            for (final Element name : names) {
+                length += name.getTextContent().length();
+            }
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.pipeline.Stage;
+
+/** Benchmark for {@link EntityDescriptorUKIdPopulationStage}. */
+public class EntityDescriptorUKIdPopulationStageBenchmark extends AbstractStageBenchmark {
+
+    @Override
+    protected void configure(final SyntheticAggregateGenerator generator) {
+        // leave the population of UKId metadata to the stage under test
+        generator.setPopulatingItemMetadata(false);
+    }
+
+    @Override
+    protected Stage<Element> createStage() {
+        final EntityDescriptorUKIdPopulationStage stage = new EntityDescriptorUKIdPopulationStage();
+        stage.setId("ukid");
+        return stage;
+    }
+
+}
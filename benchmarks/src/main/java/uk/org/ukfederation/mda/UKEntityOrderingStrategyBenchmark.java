@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+
+/**
+ * Benchmark for {@link UKEntityOrderingStrategy}.
+ *
+ * <p>Ordering does not modify the items, so the same shuffled aggregate is used for every invocation.</p>
+ */
+public class UKEntityOrderingStrategyBenchmark extends AbstractAggregateBenchmark {
+
+    /** The strategy under test. */
+    private final UKEntityOrderingStrategy strategy = new UKEntityOrderingStrategy();
+
+    /** The aggregate, in a fixed pseudo-random order. */
+    private List<Item<Element>> shuffled;
+
+    @Override
+    protected void prepare(final List<Item<Element>> items) throws Exception {
+        shuffled = new ArrayList<>(items);
+        Collections.shuffle(shuffled, new Random(aggregateSize));
+    }
+
+    /**
+     * Order the aggregate.
+     *
+     * @return the ordered collection
+     */
+    @Benchmark
+    public List<Item<Element>> order() {
+        return strategy.order(shuffled);
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom;
+
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.pipeline.Stage;
+import uk.org.ukfederation.mda.AbstractStageBenchmark;
+import uk.org.ukfederation.mda.validate.XMLDSIGSupport;
+
+/** Benchmark for {@link ElementBase64WrappingStage}. */
+public class ElementBase64WrappingStageBenchmark extends AbstractStageBenchmark {
+
+    @Override
+    protected Stage<Element> createStage() {
+        final ElementBase64WrappingStage stage = new ElementBase64WrappingStage();
+        stage.setId("wrap");
+        stage.setElementName(new QName(XMLDSIGSupport.XML_DSIG_NS, "X509Certificate"));
+        return stage;
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.impl;
+
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.ukfederation.mda.AbstractAggregateBenchmark;
+
+/**
+ * Benchmark comparing {@link Base64WrappingVisitor#wrapBase64(String)} with the two-{@link StringBuilder}
+ * implementation it replaced.
+ *
+ * <p>
+ * The input is the text of a <code>ds:KeyInfo</code> blob of the given size, MIME-encoded at 76 columns
+ * and indented as it would be in a metadata document, so that every line needs to be rewrapped.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Base64WrappingBenchmark {
+
+    /** Size of the encoded blob, in bytes. */
+    @Param({"1024", "16384", "262144", "1048576"})
+    public int blobSize;
+
+    /** The text to be wrapped. */
+    private String text;
+
+    /** Build the text to be wrapped. */
+    @Setup(Level.Trial)
+    public void setUp() {
+        final byte[] blob = new byte[blobSize];
+        new Random(AbstractAggregateBenchmark.SEED).nextBytes(blob);
+        final String encoded = Base64.getMimeEncoder().encodeToString(blob);
+        text = "\n            " + encoded.replace("\r\n", "\n            ") + "\n        ";
+    }
+
+    /**
+     * The implementation replaced by the current {@link Base64WrappingVisitor#wrapBase64(String)}.
+     *
+     * @param s base-64 encoded string
+     * @return normalised string with line breaks
+     */
+    @Nonnull
+    private static String legacyWrapBase64(@Nonnull final String s) {
+        final StringBuilder result = new StringBuilder();
+        final StringBuilder line = new StringBuilder();
+        for (final char c : s.toCharArray()) {
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            if (line.length() == 64) {
+                if (result.length() != 0) {
+                    result.append('\n');
+                }
+                result.append(line);
+                line.setLength(0);
+            }
+            line.append(c);
+        }
+        if (line.length() != 0) {
+            if (result.length() != 0) {
+                result.append('\n');
+            }
+            result.append(line);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Wrap the text using the legacy implementation.
+     *
+     * @return the wrapped text
+     */
+    @Benchmark
+    public String legacy() {
+        return legacyWrapBase64(text);
+    }
+
+    /**
+     * Wrap the text using the current implementation.
+     *
+     * @return the wrapped text
+     */
+    @Benchmark
+    public String current() {
+        return Base64WrappingVisitor.wrapBase64(text);
+    }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.pipeline.Stage;
+import uk.org.ukfederation.mda.AbstractStageBenchmark;
+
+/** Benchmark for {@link ScopeInjectionStage}. */
+public class ScopeInjectionStageBenchmark extends AbstractStageBenchmark {
+
+    @Override
+    protected Stage<Element> createStage() {
+        final ScopeInjectionStage stage = new ScopeInjectionStage();
+        stage.setId("scopes");
+        stage.setMembers(getMembers());
+        return stage;
+    }
+
+}
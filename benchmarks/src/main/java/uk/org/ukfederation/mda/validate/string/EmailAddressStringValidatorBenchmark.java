@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.validate.string;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.shibboleth.metadata.validate.Validator;
+import uk.org.ukfederation.mda.AbstractValidatorBenchmark;
+
+/** Benchmark for {@link EmailAddressStringValidator}. */
+public class EmailAddressStringValidatorBenchmark extends AbstractValidatorBenchmark<String> {
+
+    /** Sample addresses, both good and bad, cycled through to make up the values. */
+    private static final String[] ADDRESSES = {
+        "mailto:ian@iay.org.uk",
+        "mailto:First.O'Last@example.com",
+        "mailto:address+sub@example.org",
+        "ian@iay.org.uk",
+        "mailto:ian@iay.org.uk ",
+        "mailto:ian.iay.org.uk",
+    };
+
+    @Override
+    protected Validator<String> createValidator() {
+        return new EmailAddressStringValidator();
+    }
+
+    @Override
+    protected List<String> createValues(final int size) {
+        final List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(ADDRESSES[i % ADDRESSES.length]);
+        }
+        return values;
+    }
+
+}
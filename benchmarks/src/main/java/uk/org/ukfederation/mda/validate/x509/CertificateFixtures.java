@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.validate.x509;
+
+import java.io.InputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/** Supplies certificates from the <code>ukf-mda</code> test-jar to the X.509 validator benchmarks. */
+final class CertificateFixtures {
+
+    /** Certificate fixtures, cycled through to make up the values. */
+    private static final String[] FIXTURES = {
+        "X509ConsistentNameValidator-ligo-new.pem",
+        "X509ConsistentNameValidator-ligo-old.pem",
+        "X509ConsistentNameValidator-uk002204.pem",
+        "X509DSADetector-dsa1.pem",
+        "X509DSADetector-rsa.pem",
+    };
+
+    /** Constructor. */
+    private CertificateFixtures() {
+    }
+
+    /**
+     * Build a list of certificates of the given size.
+     *
+     * @param size number of certificates required
+     * @return list of certificates
+     * @throws CertificateException if a fixture can not be loaded
+     */
+    @Nonnull @NonnullElements
+    static List<X509Certificate> certificates(final int size) throws CertificateException {
+        final CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        final List<X509Certificate> certs = new ArrayList<>(FIXTURES.length);
+        for (final String fixture : FIXTURES) {
+            final InputStream input = CertificateFixtures.class.getResourceAsStream(fixture);
+            if (input == null) {
+                throw new CertificateException(fixture + " does not exist or is not readable");
+            }
+            certs.add((X509Certificate) factory.generateCertificate(input));
+        }
+
+        final List<X509Certificate> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(certs.get(i % certs.size()));
+        }
+        return values;
+    }
+
+}
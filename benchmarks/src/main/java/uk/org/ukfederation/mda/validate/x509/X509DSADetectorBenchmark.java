@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.validate.x509;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import net.shibboleth.metadata.validate.Validator;
+import uk.org.ukfederation.mda.AbstractValidatorBenchmark;
+
+/** Benchmark for {@link X509DSADetector}. */
+public class X509DSADetectorBenchmark extends AbstractValidatorBenchmark<X509Certificate> {
+
+    @Override
+    protected Validator<X509Certificate> createValidator() {
+        return new X509DSADetector();
+    }
+
+    @Override
+    protected List<X509Certificate> createValues(final int size) throws CertificateException {
+        return CertificateFixtures.certificates(size);
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * A compiled template for composing discovery names.
+ *
+ * <p>
+ * Templates are written in the {@link MessageFormat} pattern syntax, including its quoting rules, but
+ * are restricted to simple arguments such as <code>{0}</code>: format types like
+ * <code>{0,number}</code> are not supported. As with {@link MessageFormat}, an argument for which no
+ * value is supplied is reproduced literally.
+ * </p>
+ *
+ * <p>
+ * Unlike {@link MessageFormat}, a template is immutable and may be shared between threads, and formatting
+ * involves only appending its parts to a single, correctly sized, {@link StringBuilder}.
+ * </p>
+ */
+@Immutable
+final class DiscoveryNameTemplate {
+
+    /** Literal text before, between and after the arguments; one more than the number of arguments. */
+    @Nonnull @NonnullElements private final String[] literals;
+
+    /** The index of each argument, in order of appearance. */
+    @Nonnull private final int[] arguments;
+
+    /** Total length of the literal text. */
+    private final int literalLength;
+
+    /**
+     * Constructor.
+     *
+     * @param literalParts literal text before, between and after the arguments
+     * @param argumentIndexes the index of each argument, in order of appearance
+     */
+    private DiscoveryNameTemplate(@Nonnull @NonnullElements final String[] literalParts,
+            @Nonnull final int[] argumentIndexes) {
+        literals = literalParts;
+        arguments = argumentIndexes;
+        int length = 0;
+        for (final String literal : literals) {
+            length += literal.length();
+        }
+        literalLength = length;
+    }
+
+    /**
+     * Compile a template from a {@link MessageFormat} pattern.
+     *
+     * @param pattern the pattern to compile
+     * @return the compiled template
+     * @throws IllegalArgumentException if the pattern is invalid or uses a format type
+     */
+    @Nonnull static DiscoveryNameTemplate compile(@Nonnull final String pattern) {
+        final List<String> literals = new ArrayList<>();
+        final List<Integer> arguments = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (c == '\'') {
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+                    literal.append('\'');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == '{' && !quoted) {
+                final int close = pattern.indexOf('}', i + 1);
+                if (close < 0) {
+                    throw new IllegalArgumentException("unmatched braces in the pattern");
+                }
+                String argument = pattern.substring(i + 1, close);
+                final int comma = argument.indexOf(',');
+                if (comma >= 0) {
+                    if (!argument.substring(comma + 1).trim().isEmpty()) {
+                        throw new IllegalArgumentException("format types are not supported: " + argument);
+                    }
+                    argument = argument.substring(0, comma);
+                }
+                final int index;
+                try {
+                    index = Integer.parseInt(argument);
+                } catch (final NumberFormatException e) {
+                    throw new IllegalArgumentException("can't parse argument number: " + argument, e);
+                }
+                if (index < 0) {
+                    throw new IllegalArgumentException("negative argument number: " + index);
+                }
+                literals.add(literal.toString());
+                literal.setLength(0);
+                arguments.add(index);
+                i = close;
+            } else {
+                literal.append(c);
+            }
+        }
+        literals.add(literal.toString());
+
+        final int[] argumentIndexes = new int[arguments.size()];
+        for (int i = 0; i < argumentIndexes.length; i++) {
+            argumentIndexes[i] = arguments.get(i);
+        }
+        return new DiscoveryNameTemplate(literals.toArray(new String[0]), argumentIndexes);
+    }
+
+    /**
+     * Return a template with every occurrence of one argument replaced by a fixed value.
+     *
+     * <p>
+     * The other arguments keep their indexes.
+     * </p>
+     *
+     * @param index index of the argument to replace
+     * @param value the value to substitute for the argument
+     * @return the new template
+     */
+    @Nonnull DiscoveryNameTemplate bind(final int index, @Nonnull final String value) {
+        final List<String> newLiterals = new ArrayList<>();
+        final int[] newArguments = new int[arguments.length];
+        int argumentCount = 0;
+        final StringBuilder literal = new StringBuilder(literals[0]);
+        for (int i = 0; i < arguments.length; i++) {
+            if (arguments[i] == index) {
+                literal.append(value);
+            } else {
+                newLiterals.add(literal.toString());
+                literal.setLength(0);
+                newArguments[argumentCount++] = arguments[i];
+            }
+            literal.append(literals[i + 1]);
+        }
+        newLiterals.add(literal.toString());
+        return new DiscoveryNameTemplate(newLiterals.toArray(new String[0]),
+                Arrays.copyOf(newArguments, argumentCount));
+    }
+
+    /**
+     * Format the template with the given argument values.
+     *
+     * @param values the argument values, indexed by argument number
+     * @return the formatted string
+     */
+    @Nonnull String format(@Nonnull final String... values) {
+        if (arguments.length == 0) {
+            return literals[0];
+        }
+        int length = literalLength;
+        for (final int argument : arguments) {
+            length += argument < values.length ? String.valueOf(values[argument]).length() : 4;
+        }
+        final StringBuilder result = new StringBuilder(length);
+        result.append(literals[0]);
+        for (int i = 0; i < arguments.length; i++) {
+            final int argument = arguments[i];
+            if (argument < values.length) {
+                result.append(values[argument]);
+            } else {
+                result.append('{').append(argument).append('}');
+            }
+            result.append(literals[i + 1]);
+        }
+        return result.toString();
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Finds pairs of similar display names without comparing every name against every other.
+ *
+ * <p>
+ * Each name, normally a comparison key from {@link DisplayNameSupport#key(String)}, is broken into
+ * its set of character trigrams after padding with a space at each end. The similarity of two names
+ * is the Jaccard coefficient of their trigram sets: the size of the intersection divided by the size
+ * of the union.
+ * </p>
+ *
+ * <p>
+ * Candidate pairs are generated from an inverted index from trigram to names, using prefix
+ * filtering: with each name's trigrams ordered from the rarest to the most common, two names can only
+ * reach the threshold if they share a trigram within a short prefix of those lists. Only prefix
+ * trigrams are indexed and probed, so the very common trigrams ("uni", "of ", ...) which would
+ * otherwise make every name a candidate for every other are never consulted. Candidates are then
+ * verified exactly, so the result is the same as that of an exhaustive comparison.
+ * </p>
+ */
+@NotThreadSafe
+final class DisplayNameSimilarityIndex {
+
+    /** Allowance for rounding error when computing overlap bounds from the threshold. */
+    private static final double EPSILON = 1e-9;
+
+    /** Index of each name added, by name. */
+    @Nonnull private final Map<String, Integer> nameIndexes = new HashMap<>();
+
+    /** The names added, in order. */
+    @Nonnull private final List<String> names = new ArrayList<>();
+
+    /** The distinct trigrams of each name added, in order. */
+    @Nonnull private final List<long[]> nameTrigrams = new ArrayList<>();
+
+    /** The number of names in which each trigram appears. */
+    @Nonnull private final Map<Long, Integer> trigramFrequencies = new HashMap<>();
+
+    /**
+     * Add a name to the index.
+     *
+     * <p>
+     * Adding a name already present has no effect.
+     * </p>
+     *
+     * @param name the name to add
+     * @return the index of the name, in order of first addition
+     */
+    int add(@Nonnull final String name) {
+        final Integer existing = nameIndexes.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        final int index = names.size();
+        nameIndexes.put(name, index);
+        names.add(name);
+        final long[] trigrams = trigrams(name);
+        nameTrigrams.add(trigrams);
+        for (final long trigram : trigrams) {
+            trigramFrequencies.merge(trigram, 1, Integer::sum);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the number of distinct names added.
+     *
+     * @return the number of names
+     */
+    int size() {
+        return names.size();
+    }
+
+    /**
+     * Returns a name by its index.
+     *
+     * @param index index of the name, as returned by {@link #add(String)}
+     * @return the name
+     */
+    @Nonnull String getName(final int index) {
+        return names.get(index);
+    }
+
+    /**
+     * Find all pairs of distinct names whose similarity is at least the given threshold.
+     *
+     * <p>
+     * Each pair is returned once, as a two-element array holding the indexes of the earlier and the
+     * later name. Pairs are ordered by the later name and then by the earlier name.
+     * </p>
+     *
+     * @param threshold the minimum similarity, greater than 0 and no greater than 1
+     * @return the similar pairs
+     */
+    @Nonnull @NonnullElements List<int[]> findSimilarPairs(final double threshold) {
+        Constraint.isTrue(threshold > 0.0 && threshold <= 1.0, "threshold must be greater than 0 and at most 1");
+
+        // Order the trigrams from the rarest to the most common.
+        final List<Long> order = new ArrayList<>(trigramFrequencies.keySet());
+        order.sort((a, b) -> {
+            final int result = Integer.compare(trigramFrequencies.get(a), trigramFrequencies.get(b));
+            return result != 0 ? result : Long.compare(a, b);
+        });
+        final Map<Long, Integer> ranks = new HashMap<>(order.size() * 2);
+        for (int rank = 0; rank < order.size(); rank++) {
+            ranks.put(order.get(rank), rank);
+        }
+
+        // Re-express each name as its sorted list of trigram ranks.
+        final int count = names.size();
+        final int[][] records = new int[count][];
+        for (int index = 0; index < count; index++) {
+            final long[] trigrams = nameTrigrams.get(index);
+            final int[] record = new int[trigrams.length];
+            for (int i = 0; i < trigrams.length; i++) {
+                record[i] = ranks.get(trigrams[i]);
+            }
+            Arrays.sort(record);
+            records[index] = record;
+        }
+
+        final List<List<Integer>> postings = new ArrayList<>(order.size());
+        for (int rank = 0; rank < order.size(); rank++) {
+            postings.add(null);
+        }
+        final int[] lastProbe = new int[count];
+        Arrays.fill(lastProbe, -1);
+
+        final List<int[]> pairs = new ArrayList<>();
+        final List<Integer> candidates = new ArrayList<>();
+        for (int index = 0; index < count; index++) {
+            final int[] record = records[index];
+            final int prefix = Math.min(record.length, record.length - minimumOverlap(threshold, record.length) + 1);
+
+            // Probe the postings of this name's prefix trigrams for earlier names of plausible size.
+            candidates.clear();
+            for (int i = 0; i < prefix; i++) {
+                final List<Integer> posting = postings.get(record[i]);
+                if (posting != null) {
+                    for (final int other : posting) {
+                        if (lastProbe[other] != index) {
+                            lastProbe[other] = index;
+                            if (isPlausibleSize(threshold, record.length, records[other].length)) {
+                                candidates.add(other);
+                            }
+                        }
+                    }
+                }
+            }
+            candidates.sort(null);
+            for (final int other : candidates) {
+                if (similarity(records[other], record) >= threshold) {
+                    pairs.add(new int[] {other, index});
+                }
+            }
+
+            // Index this name's own prefix.
+            for (int i = 0; i < prefix; i++) {
+                List<Integer> posting = postings.get(record[i]);
+                if (posting == null) {
+                    posting = new ArrayList<>();
+                    postings.set(record[i], posting);
+                }
+                posting.add(index);
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Compute the Jaccard coefficient of two sorted arrays of distinct values.
+     *
+     * @param a the first array
+     * @param b the second array
+     * @return the similarity of the two arrays
+     */
+    private static double similarity(@Nonnull final int[] a, @Nonnull final int[] b) {
+        int overlap = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                overlap++;
+                i++;
+                j++;
+            }
+        }
+        return (double) overlap / (a.length + b.length - overlap);
+    }
+
+    /**
+     * Compute the number of trigrams a name must share with another for the pair to reach the threshold.
+     *
+     * @param threshold the minimum similarity
+     * @param size the number of trigrams in the name
+     * @return the minimum overlap
+     */
+    private static int minimumOverlap(final double threshold, final int size) {
+        return (int) Math.ceil(threshold * size - EPSILON);
+    }
+
+    /**
+     * Determine whether two names of the given sizes could reach the threshold.
+     *
+     * @param threshold the minimum similarity
+     * @param a the number of trigrams in the first name
+     * @param b the number of trigrams in the second name
+     * @return <code>true</code> if the smaller size is large enough relative to the larger
+     */
+    private static boolean isPlausibleSize(final double threshold, final int a, final int b) {
+        return Math.min(a, b) >= minimumOverlap(threshold, Math.max(a, b));
+    }
+
+    /**
+     * Compute the distinct trigrams of a name, padded with a space at each end.
+     *
+     * <p>
+     * Each trigram is packed into the low 48 bits of a <code>long</code>.
+     * </p>
+     *
+     * @param name the name
+     * @return the trigrams of the name, sorted
+     */
+    @Nonnull private static long[] trigrams(@Nonnull final String name) {
+        final String padded = ' ' + name + ' ';
+        final long[] trigrams = new long[padded.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+        }
+        Arrays.sort(trigrams);
+        int distinct = 0;
+        for (int i = 0; i < trigrams.length; i++) {
+            if (distinct == 0 || trigrams[i] != trigrams[distinct - 1]) {
+                trigrams[distinct++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, distinct);
+    }
+
+}
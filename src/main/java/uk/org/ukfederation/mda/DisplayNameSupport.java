@@ -0,0 +1,285 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.dom.saml.mdui.MDUISupport;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.xml.ElementSupport;
+import uk.org.ukfederation.mda.dom.saml.EntityElementIndex;
+
+/**
+ * Helper class for locating and comparing the display names of an entity.
+ *
+ * <p>
+ * Rather than searching the whole of an <code>EntityDescriptor</code>, including its certificates,
+ * these methods only visit the locations at which display names can legitimately appear:
+ * <code>mdui:DisplayName</code> within <code>md:Extensions/mdui:UIInfo</code> on a role descriptor,
+ * and <code>md:OrganizationDisplayName</code> within the entity's <code>md:Organization</code>.
+ * Elements with those names elsewhere in the entity are ignored.
+ * </p>
+ */
+@ThreadSafe
+final class DisplayNameSupport {
+
+    /** {@link QName} representing a SAML metadata <code>Organization</code>. */
+    static final QName MD_ORGANIZATION = new QName(SAMLMetadataSupport.MD_NS, "Organization");
+
+    /** {@link QName} representing a SAML metadata <code>OrganizationDisplayName</code>. */
+    static final QName MD_ORG_DISPLAY_NAME = new QName(SAMLMetadataSupport.MD_NS, "OrganizationDisplayName");
+
+    /** Local names of the SAML metadata role descriptor elements. */
+    private static final Set<String> ROLE_DESCRIPTOR_NAMES = Set.of("RoleDescriptor", "IDPSSODescriptor",
+            "SPSSODescriptor", "AuthnAuthorityDescriptor", "AttributeAuthorityDescriptor", "PDPDescriptor");
+
+    /** Constructor. */
+    private DisplayNameSupport() {
+    }
+
+    /**
+     * Compute the key used to compare display names.
+     *
+     * <p>
+     * Names are compared after NFKC normalisation, so that composed and decomposed characters, and
+     * compatibility forms such as full-width letters, are treated alike. They are then case folded
+     * independently of the default locale, and leading and trailing white space is removed with
+     * internal runs of white space collapsed to a single space.
+     * </p>
+     *
+     * <p>
+     * Names already in this form, as most are, are returned without allocating a new string.
+     * </p>
+     *
+     * @param name the display name
+     * @return the comparison key for the name
+     */
+    @Nonnull static String key(@Nonnull final String name) {
+        final String normalized = Normalizer.isNormalized(name, Normalizer.Form.NFKC) ?
+                name : Normalizer.normalize(name, Normalizer.Form.NFKC);
+
+        // Lower case; outside ASCII, upper case first so that for example a German sharp s matches "SS".
+        final String lower = normalized.toLowerCase(Locale.ROOT);
+        final String folded = isASCII(lower) ? lower : lower.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+
+        return isCollapsed(folded) ? folded : collapse(folded);
+    }
+
+    /**
+     * Determine whether a string consists only of ASCII characters.
+     *
+     * @param s the string
+     * @return <code>true</code> if the string is all ASCII
+     */
+    private static boolean isASCII(@Nonnull final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determine whether a string has no leading or trailing white space, and no internal white space
+     * other than single space characters.
+     *
+     * @param s the string
+     * @return <code>true</code> if the string's white space is already collapsed
+     */
+    private static boolean isCollapsed(@Nonnull final String s) {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (isSpace(c) && (c != ' ' || i == 0 || i == length - 1 || s.charAt(i - 1) == ' ')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove leading and trailing white space from a string, and replace each internal run of
+     * white space with a single space character.
+     *
+     * @param s the string
+     * @return the string with its white space collapsed
+     */
+    @Nonnull private static String collapse(@Nonnull final String s) {
+        final StringBuilder builder = new StringBuilder(s.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (isSpace(c)) {
+                pendingSpace = builder.length() > 0;
+            } else {
+                if (pendingSpace) {
+                    builder.append(' ');
+                    pendingSpace = false;
+                }
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Determine whether a character is white space for the purposes of {@link #key(String)}.
+     *
+     * @param c the character
+     * @return <code>true</code> if the character is white space
+     */
+    private static boolean isSpace(final char c) {
+        return Character.isWhitespace(c) || Character.isSpaceChar(c);
+    }
+
+    /**
+     * Determine whether an element is a SAML metadata role descriptor.
+     *
+     * @param element the element
+     * @return <code>true</code> if the element is a role descriptor
+     */
+    private static boolean isRoleDescriptor(@Nonnull final Element element) {
+        return SAMLMetadataSupport.MD_NS.equals(element.getNamespaceURI())
+                && ROLE_DESCRIPTOR_NAMES.contains(element.getLocalName());
+    }
+
+    /**
+     * Get the <code>mdui:DisplayName</code> elements of an entity's role descriptors.
+     *
+     * @param entity the <code>EntityDescriptor</code>
+     * @return the display name elements, in document order
+     */
+    @Nonnull @NonnullElements static List<Element> getDisplayNames(@Nonnull final Element entity) {
+        final List<Element> names = new ArrayList<>();
+        for (Node role = entity.getFirstChild(); role != null; role = role.getNextSibling()) {
+            if (role.getNodeType() != Node.ELEMENT_NODE || !isRoleDescriptor((Element) role)) {
+                continue;
+            }
+            final List<Element> extensionsList =
+                    ElementSupport.getChildElements(role, SAMLMetadataSupport.EXTENSIONS_NAME);
+            for (final Element extensions : extensionsList) {
+                for (final Element uiInfo : ElementSupport.getChildElements(extensions, MDUISupport.UIINFO_NAME)) {
+                    names.addAll(ElementSupport.getChildElements(uiInfo, MDUISupport.DISPLAYNAME_NAME));
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Get the <code>md:OrganizationDisplayName</code> elements of an entity's <code>md:Organization</code>.
+     *
+     * @param entity the <code>EntityDescriptor</code>
+     * @return the organization display name elements, in document order
+     */
+    @Nonnull @NonnullElements static List<Element> getOrganizationDisplayNames(@Nonnull final Element entity) {
+        final List<Element> names = new ArrayList<>();
+        for (final Element organization : ElementSupport.getChildElements(entity, MD_ORGANIZATION)) {
+            names.addAll(ElementSupport.getChildElements(organization, MD_ORG_DISPLAY_NAME));
+        }
+        return names;
+    }
+
+    /**
+     * Get the <code>mdui:DisplayName</code> elements of an entity's role descriptors,
+     * using the item's {@link EntityElementIndex} if it has one covering them.
+     *
+     * @param item the item representing the <code>EntityDescriptor</code>
+     * @return the display name elements, in document order
+     */
+    @Nonnull @NonnullElements static List<Element> getDisplayNames(@Nonnull final Item<Element> item) {
+        final Element entity = item.unwrap();
+        final EntityElementIndex index = EntityElementIndex.get(item, MDUISupport.DISPLAYNAME_NAME);
+        if (index == null) {
+            return getDisplayNames(entity);
+        }
+        final List<Element> names = new ArrayList<>();
+        for (final Element element : index.getElements(MDUISupport.DISPLAYNAME_NAME)) {
+            if (isDisplayName(element, entity)) {
+                names.add(element);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Get the <code>md:OrganizationDisplayName</code> elements of an entity's <code>md:Organization</code>,
+     * using the item's {@link EntityElementIndex} if it has one covering them.
+     *
+     * @param item the item representing the <code>EntityDescriptor</code>
+     * @return the organization display name elements, in document order
+     */
+    @Nonnull @NonnullElements static List<Element> getOrganizationDisplayNames(@Nonnull final Item<Element> item) {
+        final Element entity = item.unwrap();
+        final EntityElementIndex index = EntityElementIndex.get(item, MD_ORG_DISPLAY_NAME);
+        if (index == null) {
+            return getOrganizationDisplayNames(entity);
+        }
+        final List<Element> names = new ArrayList<>();
+        for (final Element element : index.getElements(MD_ORG_DISPLAY_NAME)) {
+            if (isOrganizationDisplayName(element, entity)) {
+                names.add(element);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Determine whether an <code>mdui:DisplayName</code> element is one that
+     * {@link #getDisplayNames(Element)} would return for an entity.
+     *
+     * @param element the <code>mdui:DisplayName</code> element
+     * @param entity the <code>EntityDescriptor</code>
+     * @return <code>true</code> if the element is a role descriptor's display name
+     */
+    static boolean isDisplayName(@Nonnull final Element element, @Nonnull final Element entity) {
+        final Node uiInfo = element.getParentNode();
+        final Node extensions = uiInfo.getParentNode();
+        final Node role = extensions == null ? null : extensions.getParentNode();
+        return role != null && role.getParentNode() == entity
+                && ElementSupport.isElementNamed((Element) uiInfo, MDUISupport.UIINFO_NAME)
+                && ElementSupport.isElementNamed((Element) extensions, SAMLMetadataSupport.EXTENSIONS_NAME)
+                && isRoleDescriptor((Element) role);
+    }
+
+    /**
+     * Determine whether an <code>md:OrganizationDisplayName</code> element is one that
+     * {@link #getOrganizationDisplayNames(Element)} would return for an entity.
+     *
+     * @param element the <code>md:OrganizationDisplayName</code> element
+     * @param entity the <code>EntityDescriptor</code>
+     * @return <code>true</code> if the element is the entity's organization display name
+     */
+    static boolean isOrganizationDisplayName(@Nonnull final Element element, @Nonnull final Element entity) {
+        final Node organization = element.getParentNode();
+        return organization.getParentNode() == entity
+                && ElementSupport.isElementNamed((Element) organization, MD_ORGANIZATION);
+    }
+
+}
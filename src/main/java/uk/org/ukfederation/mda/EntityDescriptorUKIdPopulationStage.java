@@ -14,10 +14,10 @@
 
 package uk.org.ukfederation.mda;
 
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.GuardedBy;
@@ -36,26 +36,132 @@ import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
 import net.shibboleth.utilities.java.support.xml.AttributeSupport;
 
 /**
  * A stage which, for each EntityDescriptor collection element, adds a {@link UKId}, with the entity's ID, to
  * the metadata item.
+ *
+ * <p>
+ * Each ID must consist of a fixed prefix followed by a fixed number of decimal digits, by default
+ * <code>"uk"</code> followed by six digits. IDs must also be unique within the collection; entities with
+ * missing, malformed or duplicate IDs are marked with an {@link ErrorStatus}.
+ * </p>
  */
 @ThreadSafe
 public class EntityDescriptorUKIdPopulationStage extends AbstractStage<Element> {
 
+    /** Maximum value of the <code>idDigits</code> property, so that every numeric part fits in an <code>int</code>. */
+    private static final int MAX_ID_DIGITS = 9;
+
+    /**
+     * Largest <code>idDigits</code> value for which IDs already seen are recorded in a {@link BitSet},
+     * which then occupies at most 1.25MB. Longer IDs are recorded in a {@link HashSet}.
+     */
+    private static final int MAX_BITSET_DIGITS = 7;
+
+    /** The prefix which each ID must start with. Default value: <code>"uk"</code>. */
+    @GuardedBy("this") @Nonnull private String idPrefix = "uk";
+
+    /** The number of decimal digits which must follow the prefix. Default value: 6. */
+    @GuardedBy("this") private int idDigits = 6;
+
+    /**
+     * Get the prefix which each ID must start with.
+     *
+     * @return the ID prefix
+     */
+    @Nonnull public final synchronized String getIdPrefix() {
+        return idPrefix;
+    }
+
+    /**
+     * Set the prefix which each ID must start with.
+     *
+     * @param prefix the ID prefix
+     */
+    public final synchronized void setIdPrefix(@Nonnull final String prefix) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        idPrefix = Constraint.isNotNull(prefix, "ID prefix may not be null");
+    }
+
     /**
-     * Compiled regular expression.
+     * Get the number of decimal digits which must follow the prefix.
+     *
+     * @return the number of digits
      */
-    @GuardedBy("this") private Pattern pattern;
+    public final synchronized int getIdDigits() {
+        return idDigits;
+    }
+
+    /**
+     * Set the number of decimal digits which must follow the prefix.
+     *
+     * @param digits the number of digits, between 1 and 9
+     */
+    public final synchronized void setIdDigits(final int digits) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        idDigits = digits;
+    }
+
+    /**
+     * Extract the numeric part of an ID consisting of the given prefix followed by exactly
+     * the given number of decimal digits.
+     *
+     * @param id the ID to examine
+     * @param prefix the prefix the ID must start with
+     * @param digits the number of digits which must follow the prefix
+     * @return the value of the numeric part, or -1 if the ID is not of the required form
+     */
+    private static int idNumber(@Nonnull final String id, @Nonnull final String prefix, final int digits) {
+        final int prefixLength = prefix.length();
+        if (id.length() != prefixLength + digits || !id.startsWith(prefix)) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = prefixLength; i < id.length(); i++) {
+            final char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Record the numeric part of an ID, unless it has already been seen.
+     *
+     * @param ids the numeric parts seen so far, or <code>null</code> if <code>largeIds</code> is used
+     * @param largeIds the numeric parts seen so far, if <code>ids</code> is <code>null</code>
+     * @param number the numeric part to record
+     * @return <code>true</code> if the numeric part had not been seen before
+     */
+    private static boolean addNew(final BitSet ids, final Set<Integer> largeIds, final int number) {
+        if (ids == null) {
+            return largeIds.add(number);
+        }
+        if (ids.get(number)) {
+            return false;
+        }
+        ids.set(number);
+        return true;
+    }
 
     @Override
     protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
             throws StageProcessingException {
 
-        // ID values that we have already seen (they must be unique)
-        final Set<String> ids = new HashSet<>(items.size());
+        final String prefix = getIdPrefix();
+        final int digits = getIdDigits();
+
+        // Numeric parts of the ID values that we have already seen (they must be unique)
+        final BitSet ids = digits <= MAX_BITSET_DIGITS ? new BitSet() : null;
+        final Set<Integer> largeIds = ids == null ? new HashSet<>() : null;
         
         for (final Item<Element> item : items) {
            final Element element = item.unwrap();
@@ -67,33 +173,29 @@ public class EntityDescriptorUKIdPopulationStage extends AbstractStage<Element>
            } else {
                final String id = AttributeSupport.getAttributeValue(element, null, "ID");
                final String eid = Strings.nullToEmpty(AttributeSupport.getAttributeValue(element, null, "entityID"));
+               final int number = id == null ? -1 : idNumber(id, prefix, digits);
                if (id == null) {
                    metadata.put(new ErrorStatus(getId(), "EntityDescriptor " + eid + " did not have an ID attribute"));
-               } else if (!pattern.matcher(id).matches()) {
+               } else if (number < 0) {
                    metadata.put(new ErrorStatus(getId(), "EntityDescriptor " + eid + " has an ID value '" + id +
                            "' that does not look like a UK federation identifier"));
-               } else if (ids.contains(id)) {
+               } else if (!addNew(ids, largeIds, number)) {
                    metadata.put(new ErrorStatus(getId(), "EntityDescriptor " + eid + " has duplicate ID value " + id));
                } else {
-                   metadata.put(new UKId(id));
-                   ids.add(id);
+                   metadata.put(UKId.valueOf(id));
                }
            }
            
         }
     }
     
-    @Override
-    protected void doDestroy() {
-        pattern = null;
-
-        super.doDestroy();
-    }
-
     @Override
     protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
-        pattern = Pattern.compile("^uk[0-9]{6}$");
+
+        if (idDigits < 1 || idDigits > MAX_ID_DIGITS) {
+            throw new ComponentInitializationException("idDigits must be between 1 and " + MAX_ID_DIGITS);
+        }
     }
 
 }
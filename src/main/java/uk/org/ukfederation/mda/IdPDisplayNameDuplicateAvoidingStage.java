@@ -16,23 +16,25 @@ package uk.org.ukfederation.mda;
 
 import java.text.MessageFormat;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.xml.namespace.QName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
 import com.google.common.collect.ImmutableMap;
 
@@ -42,19 +44,26 @@ import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemMetadata;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
 import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
-import net.shibboleth.metadata.dom.saml.mdui.MDUISupport;
 import net.shibboleth.metadata.pipeline.AbstractStage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 import net.shibboleth.utilities.java.support.xml.ElementSupport;
+import uk.org.ukfederation.mda.pipeline.ParallelSupport;
 
 /**
  * A stage which examines the discovery names used by each of a collection of entities, and deconflicts
  * those discovery names prioritising "our" entities and adjusting the discovery names of others.
  *
+ * <p>
+ * Discovery names are compared after Unicode NFKC normalisation, locale-independent case folding
+ * and white space collapsing, so that names differing only in those respects are regarded as clashing.
+ * </p>
+ *
  * <p>Properties:</p>
  * 
  * <dl>
@@ -81,6 +90,14 @@ import net.shibboleth.utilities.java.support.xml.ElementSupport;
  *      The {@link MessageFormat} format string used to compose new display names.
  *      By default, <code>"[{1}] {0}"</code>, resulting in names of the form "<code>[CODE] oldname</code>".
  *   </dd>
+ *
+ *   <dt>executorService</dt>
+ *   <dd>
+ *      An {@link ExecutorService} on which to classify entities and rewrite their discovery names
+ *      in parallel. Clashes between "our" entities are still detected sequentially, in item order.
+ *      By default, <code>null</code>, in which case all entities are processed on the calling thread.
+ *      The executor is not shut down by this stage.
+ *   </dd>
  * </dl>
  *   
  *
@@ -91,9 +108,6 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
 
     /** {@link QName} representing an SAML metadata <code>IDPSSODescriptor</code>. */
     private static final QName MD_IDP_SSO_DESCRIPTOR = new QName(SAMLMetadataSupport.MD_NS, "IDPSSODescriptor");
-    
-    /** {@link QName} representing a SAML metadata <code>OrganizationDisplayName</code>. */
-    private static final QName MD_ORG_DISPLAY_NAME = new QName(SAMLMetadataSupport.MD_NS, "OrganizationDisplayName");
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(IdPDisplayNameDuplicateAvoidingStage.class);
@@ -133,6 +147,131 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
     @Nonnull @GuardedBy("this")
     private String nameFormat = "[{1}] {0}";
 
+    /** Executor on which to process entities, or <code>null</code> to process them sequentially. */
+    @Nullable @GuardedBy("this")
+    private ExecutorService executorService;
+
+    /** Configuration built from the properties by {@link #doInitialize()}. */
+    @NonnullAfterInit private volatile Configuration configuration;
+
+    /**
+     * Immutable snapshot of the stage's configuration properties.
+     */
+    @Immutable
+    private static final class Configuration {
+
+        /** "Our" registration authority name. */
+        @Nonnull private final String registrationAuthority;
+
+        /** Replacement display names for registration authorities. */
+        @Nonnull @NonnullElements private final Map<String, String> registrationAuthorityDisplayNames;
+
+        /** Default registration authority display name. */
+        @Nonnull private final String defaultRegistrationAuthorityDisplayName;
+
+        /** The template used to compose new display names, compiled from the name format. */
+        @Nonnull private final DiscoveryNameTemplate nameTemplate;
+
+        /** Executor on which to process entities, or <code>null</code>. */
+        @Nullable private final ExecutorService executorService;
+
+        /**
+         * Constructor.
+         *
+         * @param authority "our" registration authority name
+         * @param displayNames replacement display names for registration authorities
+         * @param defaultDisplayName default registration authority display name
+         * @param template the template used to compose new display names
+         * @param executor executor on which to process entities, or <code>null</code>
+         */
+        Configuration(@Nonnull final String authority,
+                @Nonnull @NonnullElements final Map<String, String> displayNames,
+                @Nonnull final String defaultDisplayName, @Nonnull final DiscoveryNameTemplate template,
+                @Nullable final ExecutorService executor) {
+            registrationAuthority = authority;
+            registrationAuthorityDisplayNames = displayNames;
+            defaultRegistrationAuthorityDisplayName = defaultDisplayName;
+            nameTemplate = template;
+            executorService = executor;
+        }
+
+        /**
+         * Get the display name to use for a registration authority.
+         *
+         * @param authority the registration authority, or <code>null</code>
+         * @return the display name for the registration authority
+         */
+        @Nonnull String getDisplayName(@Nullable final String authority) {
+            final String displayName = registrationAuthorityDisplayNames.get(authority);
+            return displayName == null ? defaultRegistrationAuthorityDisplayName : displayName;
+        }
+
+        /**
+         * Get the template used to compose new display names for entities from a registration authority.
+         *
+         * <p>
+         * The registration authority's display name is already substituted into the returned template,
+         * which takes the entity's original discovery name as its only argument.
+         * </p>
+         *
+         * @param authority the registration authority, or <code>null</code>
+         * @return the template for the registration authority
+         */
+        @Nonnull DiscoveryNameTemplate getNameTemplate(@Nullable final String authority) {
+            return nameTemplate.bind(1, getDisplayName(authority));
+        }
+
+    }
+
+    /**
+     * The discovery names of an identity provider entity, extracted by the "map" phase of the stage.
+     */
+    @Immutable
+    private static final class EntityNames {
+
+        /** The item representing the entity. */
+        @Nonnull private final Item<Element> item;
+
+        /** The entity's registration authority. */
+        @Nonnull private final String registrationAuthority;
+
+        /** Whether the entity was registered by "our" registration authority. */
+        private final boolean ours;
+
+        /** The elements holding the entity's discovery names. */
+        @Nonnull @NonnullElements private final List<Element> nameElements;
+
+        /** The comparison key of each discovery name. */
+        @Nonnull @NonnullElements private final List<String> keys;
+
+        /** Each discovery name, trimmed. */
+        @Nonnull @NonnullElements private final List<String> names;
+
+        /**
+         * Constructor.
+         *
+         * @param entityItem the item representing the entity
+         * @param authority the entity's registration authority
+         * @param isOurs whether the entity was registered by "our" registration authority
+         * @param elements the elements holding the entity's discovery names
+         */
+        EntityNames(@Nonnull final Item<Element> entityItem, @Nonnull final String authority,
+                final boolean isOurs, @Nonnull @NonnullElements final List<Element> elements) {
+            item = entityItem;
+            registrationAuthority = authority;
+            ours = isOurs;
+            nameElements = elements;
+            keys = new ArrayList<>(elements.size());
+            names = new ArrayList<>(elements.size());
+            for (final Element element : elements) {
+                final String text = element.getTextContent();
+                keys.add(DisplayNameSupport.key(text));
+                names.add(text.trim());
+            }
+        }
+
+    }
+
     /**
      * Get the registration authority.
      * 
@@ -219,22 +358,23 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
     }
 
     /**
-     * Return all elements with the given name within the given entity descriptor.
-     * 
-     * @param entity the {@link Element} representing the entity's <code>md:EntityDescriptor</code>
-     * @param qname the {@link QName} being searched for
-     * @return a {@link List} of {@link Element}s with the requested name
+     * Get the executor on which entities are processed.
+     *
+     * @return the executor, or <code>null</code> if entities are processed sequentially
      */
-    @Nonnull @NonnullElements
-    private List<Element> extractElements(@Nonnull final Element entity,
-            @Nonnull final QName qname) {
-        final List<Element> names = new ArrayList<>();
-        final NodeList elements = entity.getElementsByTagNameNS(qname.getNamespaceURI(), qname.getLocalPart());
-        for (int n = 0; n < elements.getLength(); n++) {
-            final Element element = (Element)elements.item(n);
-            names.add(element);
-        }
-        return names;
+    @Nullable public final synchronized ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Set the executor on which entities are processed.
+     *
+     * @param executor the executor to use, or <code>null</code> to process entities sequentially
+     */
+    public final synchronized void setExecutorService(@Nullable final ExecutorService executor) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        executorService = executor;
     }
 
     /**
@@ -243,35 +383,19 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
      * <p>This either collects the entity's <code>mdui:DisplayName</code> elements or,
      * if there are none, any <code>md:OrganizationDisplayName</code> elements it has.
      *
-     * @param entity the {@link Element} representing the entity
+     * @param item the {@link Item} representing the entity
      * @return a {@link List} of {@link Element}s, possibly empty
      */
     @Nonnull @NonnullElements
-    private List<Element> extractDiscoveryNameElements(@Nonnull final Element entity) {
+    private List<Element> extractDiscoveryNameElements(@Nonnull final Item<Element> item) {
         // Look at mdui:DisplayName first
-        final List<Element> mduiNames = extractElements(entity, MDUISupport.DISPLAYNAME_NAME);
+        final List<Element> mduiNames = DisplayNameSupport.getDisplayNames(item);
         if (!mduiNames.isEmpty()) {
             return mduiNames;
         }
 
         // Otherwise, fall back to legacy md:OrganizationDisplayName elements
-        return extractElements(entity, MD_ORG_DISPLAY_NAME);
-    }
-
-    /**
-     * Extract the discovery names from a {@link List} of {@link Element}s by
-     * forming a new {@link List} from the trimmed text content.
-     *
-     * @param elements {@link List} of {@link Element}s to extract names from
-     * @return a {@link List} of the corresponding names
-     */
-    @Nonnull @NonnullElements private List<String> extractDiscoveryNames(
-            @Nonnull @NonnullElements final List<Element> elements) {
-        final List<String> names = new ArrayList<>();
-        for (final Element element : elements) {
-            names.add(element.getTextContent().trim());
-        }
-        return names;
+        return DisplayNameSupport.getOrganizationDisplayNames(item);
     }
 
     /**
@@ -297,101 +421,135 @@ public class IdPDisplayNameDuplicateAvoidingStage extends AbstractStage<Element>
     }
 
     /**
-     * Separate a list of entities into two lists of identity providers, on the basis of
-     * the registration authority associated with each.
-     * 
-     * <p>Non-entities, and non-IdPs, are ignored.</p>
-     * 
-     * @param items collection of items representing entities to process
-     * @param ourIdPs collection of identity providers registered by the given registration authority
-     * @param otherIdPs collection of identity providers registered by any other registration authority
-     * @param ourRegAuth registration authority to make the distinction between the lists with
+     * Classify an entity and extract its discovery names.
+     *
+     * <p>
+     * This is the parallel "map" phase of the stage. Items which are not entities, or which have no
+     * registration authority, are marked with an error. Items which are not identity providers are
+     * ignored.
+     * </p>
+     *
+     * @param item the {@link Item} representing the entity
+     * @param ourRegAuth "our" registration authority
+     * @return the entity's discovery names, or <code>null</code> if the entity is to be ignored
      */
-    private void separateEntities(@Nonnull @NonnullElements final Collection<Item<Element>> items,
-            @Nonnull @NonnullElements final List<Item<Element>> ourIdPs,
-            @Nonnull @NonnullElements final List<Item<Element>> otherIdPs,
-            @Nonnull final String ourRegAuth) {
-        for (final Item<Element> item : items) {
-            final Element entity = item.unwrap();
-            final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
-
-            // All items must be entities
-            if (!SAMLMetadataSupport.isEntityDescriptor(entity)) {
-                metadata.put(new ErrorStatus(getId(), "item was not an EntityDescriptor"));
-                continue;
-            }
+    @Nullable
+    private EntityNames classifyEntity(@Nonnull final Item<Element> item, @Nonnull final String ourRegAuth) {
+        final Element entity = item.unwrap();
+        final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
 
-            // All items must have a registrationAuthority
-            final String regAuth = extractRegistrationAuthority(item);
-            if (regAuth == null) {
-                metadata.put(new ErrorStatus(getId(), "item is missing a registration authority"));
-                continue;
-            }
+        // All items must be entities
+        if (!SAMLMetadataSupport.isEntityDescriptor(entity)) {
+            metadata.put(new ErrorStatus(getId(), "item was not an EntityDescriptor"));
+            return null;
+        }
 
-            // Process only IdPs
-            if (!ElementSupport.getChildElements(entity, MD_IDP_SSO_DESCRIPTOR).isEmpty()) {
-                if (regAuth.equals(ourRegAuth)) {
-                    ourIdPs.add(item);
-                } else {
-                    otherIdPs.add(item);
-                }
-                
+        // All items must have a registrationAuthority
+        final String regAuth = extractRegistrationAuthority(item);
+        if (regAuth == null) {
+            metadata.put(new ErrorStatus(getId(), "item is missing a registration authority"));
+            return null;
+        }
+
+        // Process only IdPs
+        if (ElementSupport.getChildElements(entity, MD_IDP_SSO_DESCRIPTOR).isEmpty()) {
+            return null;
+        }
+
+        return new EntityNames(item, regAuth, regAuth.equals(ourRegAuth), extractDiscoveryNameElements(item));
+    }
+
+    /**
+     * Deconflict any of an entity's discovery names which clash with "our" discovery names.
+     *
+     * <p>
+     * This is the parallel "rewrite" phase of the stage.
+     * </p>
+     *
+     * @param entity the entity's discovery names
+     * @param ourNames comparison keys of the discovery names used by "our" entities
+     * @param templates templates for composing new names, by registration authority, filled on demand
+     * @param config the stage's configuration
+     */
+    private void deconflictEntity(@Nonnull final EntityNames entity,
+            @Nonnull @NonnullElements final Set<String> ourNames,
+            @Nonnull @NonnullElements final ConcurrentMap<String, DiscoveryNameTemplate> templates,
+            @Nonnull final Configuration config) {
+        for (int i = 0; i < entity.nameElements.size(); i++) {
+            if (ourNames.contains(entity.keys.get(i))) {
+                final String name = entity.names.get(i);
+                // Deconflict this name
+                final String newName = templates.computeIfAbsent(entity.registrationAuthority,
+                        config::getNameTemplate).format(name);
+                log.debug("discovery name changed from '{}' to '{}'", name, newName);
+                entity.item.getItemMetadata().put(new InfoStatus(getId(),
+                        "discovery name changed to '" + newName + "'"));
+                entity.nameElements.get(i).setTextContent(newName);
             }
-        }        
+        }
     }
 
     @Override
     protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
             throws StageProcessingException {
 
-        // Collect commonly used guarded fields.
-        final String ourRegAuth = getRegistrationAuthority();
+        final Configuration config = configuration;
+        final String ourRegAuth = config.registrationAuthority;
 
-        // Collect two lists of IdPs: "ours" and "others"
-        final List<Item<Element>> ourIdPs = new ArrayList<>();
-        final List<Item<Element>> otherIdPs = new ArrayList<>();
-        separateEntities(items, ourIdPs, otherIdPs, ourRegAuth);
+        // Map: classify the entities and extract their discovery names
+        final List<EntityNames> entities = ParallelSupport.map(config.executorService, items,
+                item -> classifyEntity(item, ourRegAuth));
 
-        // Collect discovery names used by "our" entities
+        // Reduce: collect the comparison keys of discovery names used by "our" entities, in item order
         final Set<String> ourNames = new HashSet<>();
-        for (final Item<Element> item : ourIdPs) {
-            final List<Element> discoveryNameElements = extractDiscoveryNameElements(item.unwrap());
-            final List<String> discoveryNames = extractDiscoveryNames(discoveryNameElements);
+        final List<EntityNames> otherIdPs = new ArrayList<>();
+        for (final EntityNames entity : entities) {
+            if (entity == null) {
+                continue;
+            } else if (!entity.ours) {
+                otherIdPs.add(entity);
+                continue;
+            }
             // None of these names should be in the collection already, although they MAY include duplicates
-            for (final String name : discoveryNames) {
+            for (int i = 0; i < entity.keys.size(); i++) {
                 // A clash between this entity and our other entities is fatal
-                if (ourNames.contains(name)) {
-                    throw new StageProcessingException("discovery name " + name +
+                if (ourNames.contains(entity.keys.get(i))) {
+                    throw new StageProcessingException("discovery name " + entity.names.get(i) +
                             " appears in more than one entity from " + ourRegAuth);
                 }
             }
             // Add all of the new names to the collection
-            ourNames.addAll(discoveryNames);
+            ourNames.addAll(entity.keys);
         }
-        
-        // Now check the "other" IdPs to see if they need deconfliction
-        final MessageFormat newNameFormatter = new MessageFormat(getNameFormat());
-        for (final Item<Element> item : otherIdPs) {
-            final List<Element> discoveryNameElements = extractDiscoveryNameElements(item.unwrap());
-            for (final Element nameElement : discoveryNameElements) {
-                final String name = nameElement.getTextContent().trim();
-                if (ourNames.contains(name)) {
-                    // Deconflict this name
-                    String registrationHandle =
-                            getRegistrationAuthorityDisplayNames().get(extractRegistrationAuthority(item));
-                    if (registrationHandle == null) {
-                        registrationHandle = getDefaultRegistrationAuthorityDisplayName();
-                    }
-                    final StringBuffer newName = newNameFormatter.format(
-                            new Object[] { name, registrationHandle },
-                            new StringBuffer(), null);
-                    log.debug("discovery name changed from '{}' to '{}'", name, newName);
-                    item.getItemMetadata().put(new InfoStatus(getId(),
-                            "discovery name changed to '" + newName + "'"));
-                    nameElement.setTextContent(newName.toString());
-                }
-            }
+
+        // Rewrite: check the "other" IdPs to see if they need deconfliction.
+        // Each registration authority's template is resolved once, on first use.
+        final ConcurrentMap<String, DiscoveryNameTemplate> templates = new ConcurrentHashMap<>();
+        ParallelSupport.map(config.executorService, otherIdPs, entity -> {
+            deconflictEntity(entity, ourNames, templates, config);
+            return null;
+        });
+    }
+
+    @Override
+    protected void doDestroy() {
+        configuration = null;
+
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        final DiscoveryNameTemplate nameTemplate;
+        try {
+            nameTemplate = DiscoveryNameTemplate.compile(nameFormat);
+        } catch (final IllegalArgumentException e) {
+            throw new ComponentInitializationException("invalid name format '" + nameFormat + "'", e);
         }
+        configuration = new Configuration(registrationAuthority, registrationAuthorityDisplayNames,
+                defaultRegistrationAuthorityDisplayName, nameTemplate, executorService);
     }
 
 }
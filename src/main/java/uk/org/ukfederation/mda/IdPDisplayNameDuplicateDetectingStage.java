@@ -14,13 +14,16 @@
 
 package uk.org.ukfederation.mda;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.xml.namespace.QName;
 
@@ -28,25 +31,45 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import net.shibboleth.metadata.ErrorStatus;
 import net.shibboleth.metadata.FirstItemIdItemIdentificationStrategy;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemIdentificationStrategy;
-import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.WarningStatus;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
 import net.shibboleth.metadata.pipeline.AbstractStage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
-import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.logic.Constraint;
-import uk.org.ukfederation.mda.validate.mdui.MDUISupport;
 
 /**
  * A stage which, for each <code>EntityDescriptor</code> collection element representing an identity provider,
  * makes sure that the display name or names associated with the entity are not duplicates of any declared by
  * any other identity provider entity.
+ *
+ * <p>
+ * Display names are compared after Unicode NFKC normalisation, locale-independent case folding
+ * and white space collapsing, so that names differing only in those respects are regarded as duplicates.
+ * </p>
+ *
+ * <p>
+ * Entities connected by shared display names, directly or through other entities, form a clash group.
+ * Each member of a group is marked with a single {@link ErrorStatus} naming its clashing display names
+ * and listing every member of the group, in item order. Which entities are reported together does
+ * not depend on the order in which they appear.
+ * </p>
+ *
+ * <p>
+ * Optionally, the stage can also look for <em>near</em>-duplicate display names, such as
+ * "University of Exampleton" and "Univ. of Exampleton". Two names are regarded as near-duplicates
+ * if the similarity of their character trigrams reaches a configurable threshold; each pair of
+ * entities found to have such names is marked with a {@link WarningStatus} rather than an
+ * {@link ErrorStatus}. Candidate pairs are found through a trigram index rather than by comparing
+ * every name with every other, so that the cost of this check grows roughly linearly with the
+ * number of names.
+ * </p>
  */
 @ThreadSafe
 public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element> {
@@ -54,9 +77,6 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
     /** {@link QName} representing an SAML metadata <code>IDPSSODescriptor</code>. */
     private static final QName MD_IDP_SSO_DESCRIPTOR = new QName(SAMLMetadataSupport.MD_NS, "IDPSSODescriptor");
     
-    /** {@link QName} representing a SAML metadata <code>OrganizationDisplayName</code>. */
-    private static final QName MD_ORG_DISPLAY_NAME = new QName(SAMLMetadataSupport.MD_NS, "OrganizationDisplayName");
-    
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(IdPDisplayNameDuplicateDetectingStage.class);
 
@@ -89,6 +109,64 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
         identificationStrategy = strategy;
     }
     
+    /** Whether to look for near-duplicate display names. Default: <code>false</code>. */
+    @GuardedBy("this") private boolean detectingNearDuplicates;
+
+    /**
+     * Minimum trigram similarity for two display names to be regarded as near-duplicates.
+     *
+     * Default: 0.55, low enough for "University of Exampleton" and "Univ. of Exampleton" (0.59).
+     */
+    @GuardedBy("this") private double nearDuplicateThreshold = 0.55;
+
+    /**
+     * Gets whether the stage looks for near-duplicate display names.
+     *
+     * @return whether the stage looks for near-duplicate display names
+     */
+    public final synchronized boolean isDetectingNearDuplicates() {
+        return detectingNearDuplicates;
+    }
+
+    /**
+     * Sets whether the stage looks for near-duplicate display names.
+     *
+     * @param detect whether the stage should look for near-duplicate display names
+     */
+    public final synchronized void setDetectingNearDuplicates(final boolean detect) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        detectingNearDuplicates = detect;
+    }
+
+    /**
+     * Gets the minimum similarity for two display names to be regarded as near-duplicates.
+     *
+     * @return the near-duplicate similarity threshold
+     */
+    public final synchronized double getNearDuplicateThreshold() {
+        return nearDuplicateThreshold;
+    }
+
+    /**
+     * Sets the minimum similarity for two display names to be regarded as near-duplicates.
+     *
+     * <p>
+     * The similarity of two names is the Jaccard coefficient of the sets of character trigrams
+     * in their comparison keys, and ranges from 0 for names with no trigram in common to 1 for
+     * names with identical trigram sets.
+     * </p>
+     *
+     * @param threshold the near-duplicate similarity threshold, greater than 0 and at most 1
+     */
+    public final synchronized void setNearDuplicateThreshold(final double threshold) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isTrue(threshold > 0.0 && threshold <= 1.0,
+                "near-duplicate threshold must be greater than 0 and at most 1");
+        nearDuplicateThreshold = threshold;
+    }
+
     /**
      * Determines whether the given <code>element</code> has at least one child named by <code>qname</code>.
      * 
@@ -111,52 +189,52 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
     }
     
     /**
-     * Collect the display names introduced by the given {@link QName} by the entity
-     * given by {@link Element} into the provided collection.
+     * Collect the display names held by the given elements into the provided collection.
+     *
+     * <p>
+     * Each name is indexed by its comparison key from {@link DisplayNameSupport#key(String)}.
+     * Where several names have the same key, the first is retained.
+     * </p>
      * 
-     * @param entity <code>EntityDescriptor</code> to look for display names inside
-     * @param qname element name containing display names
-     * @param names collection of names to add into
+     * @param elements elements containing display names
+     * @param names collection of names to add into, indexed by comparison key
      */
-    private void collectNames(@Nonnull final Element entity,
-            @Nonnull final QName qname, @Nonnull final Set<String> names) {
-        assert entity != null;
-        assert qname != null;
+    private void collectNames(@Nonnull @NonnullElements final List<Element> elements,
+            @Nonnull final Map<String, String> names) {
+        assert elements != null;
         assert names != null;
-        final NodeList elements = entity.getElementsByTagNameNS(qname.getNamespaceURI(), qname.getLocalPart());
-        for (int n = 0; n < elements.getLength(); n++) {
-            final Element element = (Element)elements.item(n);
+        for (final Element element : elements) {
             final String textContent = element.getTextContent();
             if (log.isTraceEnabled()) {
                 log.trace("seen display name '" + textContent + "'");
             }
             /*
-             * We have found a name.  Trim whitespace off it to improve the changes
-             * of a match without altering it fundamentally ("Example" and "Example "
-             * should be regarded as a match).
+             * We have found a name.  Trim whitespace off it for reporting; the
+             * comparison key also ignores differences in case, Unicode composition
+             * and white space ("Example" and "EXAMPLE " should be regarded as a match).
              */
-            names.add(textContent.trim());
+            names.putIfAbsent(DisplayNameSupport.key(textContent), textContent.trim());
         }
     }
-    
+
     /**
-     * Extract the set of display names used by this entity.
+     * Extract the display names used by this entity.
      * 
-     * @param element the EntityDescriptor element to extract names from.
+     * @param item the item representing the EntityDescriptor element to extract names from.
      * 
-     * @return set of display name strings
+     * @return map from comparison key to display name
      */
-    @Nonnull private Set<String> extractDisplayNames(@Nonnull final Element element) {
-        assert element != null;
-        final Set<String> displayNames = new HashSet<>();
+    @Nonnull private Map<String, String> extractDisplayNames(@Nonnull final Item<Element> item) {
+        assert item != null;
+        final Map<String, String> displayNames = new LinkedHashMap<>();
 
         // Collect display names from any mdui:DisplayName elements present.
-        collectNames(element, MDUISupport.MDUI_DISPLAY_NAME, displayNames);
+        collectNames(DisplayNameSupport.getDisplayNames(item), displayNames);
 
         // Collect display names from md:OrganizationDisplayName elements only
         // if there were no mdui:DisplayName elements.
         if (displayNames.isEmpty()) {
-            collectNames(element, MD_ORG_DISPLAY_NAME, displayNames);
+            collectNames(DisplayNameSupport.getOrganizationDisplayNames(item), displayNames);
         }
 
         return displayNames;
@@ -179,17 +257,164 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
      * Helper function to create the error status used by this stage.
      * 
      * @param stageId   identifier of this stage
-     * @param name      display name which is clashing 
+     * @param names     display names of this entity which are clashing
      * @param thisId    identifier of the entity the error is being added to
-     * @param thatId    identifier of the entity the clash is with
+     * @param groupIds  identifiers of all the entities in the clash group, including this one
      * 
      * @return newly created {@link ErrorStatus} object
      */
-    @Nonnull private ErrorStatus makeError(@Nonnull final String stageId, @Nonnull final String name,
-            @Nonnull final String thisId, @Nonnull final String thatId) {
-        final String message = "duplicate display name '" + name + "' clashes with " + thatId;
+    @Nonnull private ErrorStatus makeError(@Nonnull final String stageId,
+            @Nonnull @NonnullElements final List<String> names, @Nonnull final String thisId,
+            @Nonnull @NonnullElements final List<String> groupIds) {
+        final StringBuilder message = new StringBuilder(names.size() == 1 ?
+                "duplicate display name " : "duplicate display names ");
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                message.append(", ");
+            }
+            message.append('\'').append(names.get(i)).append('\'');
+        }
+        message.append(" shared within clash group: ").append(String.join(", ", groupIds));
         log.debug("on " + thisId + ": " + message);
-        return new ErrorStatus(stageId, message);
+        return new ErrorStatus(stageId, message.toString());
+    }
+
+    /**
+     * Find the representative of an entity's clash group, halving the path to it as we go.
+     *
+     * @param parents parent of each entity in the union-find forest
+     * @param member index of the entity
+     * @return index of the group's representative, its first entity
+     */
+    private static int findGroup(@Nonnull final int[] parents, final int member) {
+        int current = member;
+        while (parents[current] != current) {
+            parents[current] = parents[parents[current]];
+            current = parents[current];
+        }
+        return current;
+    }
+
+    /**
+     * Mark the members of each group of entities connected by shared display names with an error.
+     *
+     * <p>
+     * Entities sharing a display name are merged into the same group using a union-find structure, so
+     * that an entity sharing one name with a second entity and another name with a third places all
+     * three in one group. Each member of a group is marked with a single error listing its own
+     * clashing names and every member of the group. Groups, and the members within each, appear in
+     * the order of the items.
+     * </p>
+     *
+     * @param idps the identity provider entities, in item order
+     * @param keyNames for each comparison key, the first display name seen with it
+     * @param keyMembers for each comparison key, the indexes of the entities using it
+     * @param memberKeys for each entity, the indexes of the comparison keys it uses
+     */
+    private void markClashGroups(@Nonnull @NonnullElements final List<Item<Element>> idps,
+            @Nonnull @NonnullElements final List<String> keyNames,
+            @Nonnull @NonnullElements final List<List<Integer>> keyMembers,
+            @Nonnull @NonnullElements final List<List<Integer>> memberKeys) {
+        final int[] parents = new int[idps.size()];
+        for (int member = 0; member < parents.length; member++) {
+            parents[member] = member;
+        }
+
+        // Merge the groups of all entities sharing each name, keeping the earliest entity as representative.
+        for (final List<Integer> members : keyMembers) {
+            final int first = findGroup(parents, members.get(0));
+            for (int i = 1; i < members.size(); i++) {
+                final int other = findGroup(parents, members.get(i));
+                if (other < first) {
+                    parents[first] = other;
+                } else if (other > first) {
+                    parents[other] = first;
+                }
+            }
+        }
+
+        // Collect each group's members; representatives are seen in item order.
+        final Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        for (int member = 0; member < parents.length; member++) {
+            groups.computeIfAbsent(findGroup(parents, member), k -> new ArrayList<>()).add(member);
+        }
+
+        final var strategy = getIdentificationStrategy();
+        for (final List<Integer> group : groups.values()) {
+            if (group.size() > 1) {
+                final List<String> groupIds = new ArrayList<>(group.size());
+                for (final int member : group) {
+                    groupIds.add(strategy.getItemIdentifier(idps.get(member)));
+                }
+                for (int i = 0; i < group.size(); i++) {
+                    final int member = group.get(i);
+                    final List<String> names = new ArrayList<>();
+                    for (final int key : memberKeys.get(member)) {
+                        if (keyMembers.get(key).size() > 1) {
+                            names.add(keyNames.get(key));
+                        }
+                    }
+                    idps.get(member).getItemMetadata().put(makeError(getId(), names, groupIds.get(i), groupIds));
+                }
+            }
+        }
+    }
+
+    /**
+     * Helper function to create the warning status used by this stage for near-duplicate names.
+     *
+     * @param stageId   identifier of this stage
+     * @param name      display name which is similar to another
+     * @param thatName  the similar display name
+     * @param thisId    identifier of the entity the warning is being added to
+     * @param thatId    identifier of the entity with the similar display name
+     *
+     * @return newly created {@link WarningStatus} object
+     */
+    @Nonnull private WarningStatus makeWarning(@Nonnull final String stageId, @Nonnull final String name,
+            @Nonnull final String thatName, @Nonnull final String thisId, @Nonnull final String thatId) {
+        final String message = "display name '" + name + "' is similar to '" + thatName + "' used by " + thatId;
+        log.debug("on " + thisId + ": " + message);
+        return new WarningStatus(stageId, message);
+    }
+
+    /**
+     * Mark each pair of entities having near-duplicate display names with a warning.
+     *
+     * <p>
+     * Each pair of entities is marked at most once, for the first pair of names found.
+     * Names with the same comparison key are exact duplicates, already reported as errors.
+     * </p>
+     *
+     * @param index index of the comparison keys of all the display names seen
+     * @param idps the identity provider entities, in item order
+     * @param keyNames for each key in the index, the first display name seen with it
+     * @param keyMembers for each key in the index, the indexes of the entities using it
+     * @param threshold the near-duplicate similarity threshold
+     */
+    private void markNearDuplicates(@Nonnull final DisplayNameSimilarityIndex index,
+            @Nonnull @NonnullElements final List<Item<Element>> idps,
+            @Nonnull @NonnullElements final List<String> keyNames,
+            @Nonnull @NonnullElements final List<List<Integer>> keyMembers, final double threshold) {
+        final Map<Item<Element>, Set<Item<Element>>> marked = new HashMap<>();
+        final var strategy = getIdentificationStrategy();
+        for (final int[] pair : index.findSimilarPairs(threshold)) {
+            final String thatName = keyNames.get(pair[0]);
+            final String thisName = keyNames.get(pair[1]);
+            for (final int thatMember : keyMembers.get(pair[0])) {
+                for (final int thisMember : keyMembers.get(pair[1])) {
+                    final Item<Element> that = idps.get(thatMember);
+                    final Item<Element> item = idps.get(thisMember);
+                    if (item != that && marked.computeIfAbsent(item, k -> new HashSet<>()).add(that)) {
+                        marked.computeIfAbsent(that, k -> new HashSet<>()).add(item);
+                        final String thisId = strategy.getItemIdentifier(item);
+                        final String thatId = strategy.getItemIdentifier(that);
+                        item.getItemMetadata().put(makeWarning(getId(), thisName, thatName, thisId, thatId));
+                        that.getItemMetadata().put(makeWarning(getId(), thatName, thisName, thatId, thisId));
+                    }
+                }
+            }
+        }
     }
     
     /** {@inheritDoc} */
@@ -198,48 +423,59 @@ public class IdPDisplayNameDuplicateDetectingStage extends AbstractStage<Element
             throws StageProcessingException {
 
         /*
-         * Record of the items corresponding to the first entity seen with each display name.
+         * The identity provider entities, in order, with the comparison keys each uses.
          */
-        final Map<String, Item<Element>> ids = new HashMap<>(items.size());
-        
+        final List<Item<Element>> idps = new ArrayList<>();
+        final List<List<Integer>> memberKeys = new ArrayList<>();
+
+        /*
+         * Each distinct comparison key, with the first name seen with it and the entities using it.
+         */
+        final Map<String, Integer> keyIndexes = new HashMap<>(items.size());
+        final List<String> keyNames = new ArrayList<>();
+        final List<List<Integer>> keyMembers = new ArrayList<>();
+
         /*
-         * Remember which entities we have already marked with errors.
+         * If looking for near-duplicates, also index every comparison key by trigram.
          */
-        final Set<Item<Element>> markedItems = new HashSet<>();
+        final DisplayNameSimilarityIndex similarityIndex =
+                isDetectingNearDuplicates() ? new DisplayNameSimilarityIndex() : null;
         
         for (final Item<Element> item : items) {
            final Element entity = item.unwrap();
-           final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
            
            if (!SAMLMetadataSupport.isEntityDescriptor(entity)) {
                // all items must be EntityDescriptor elements
-               metadata.put(new ErrorStatus(getId(), "item was not an EntityDescriptor"));
+               item.getItemMetadata().put(new ErrorStatus(getId(), "item was not an EntityDescriptor"));
            } else if (isIdentityProvider(entity)) {
-               final Set<String> displayNames = extractDisplayNames(entity);
-               for (final String name: displayNames) {
-                   final String key = name.toLowerCase();
-                   final Item<Element> that = ids.get(key);
-                   if (that == null) {
-                       // all is well
-                       ids.put(key, item);
-                   } else if (that != item) {
-                       final var strategy = getIdentificationStrategy();
-                       final String thisId = strategy.getItemIdentifier(item);
-                       final String thatId = strategy.getItemIdentifier(that);
-                       
-                       metadata.put(makeError(getId(), name, thisId, thatId));
-                       markedItems.add(item);
-                       
-                       if (!markedItems.contains(that)) {
-                           // only label each entity once
-                           that.getItemMetadata().put(makeError(getId(), name, thatId, thisId));
-                           markedItems.add(that);
+               final int member = idps.size();
+               final List<Integer> keys = new ArrayList<>();
+               idps.add(item);
+               memberKeys.add(keys);
+               for (final Map.Entry<String, String> entry : extractDisplayNames(item).entrySet()) {
+                   final String key = entry.getKey();
+                   Integer keyIndex = keyIndexes.get(key);
+                   if (keyIndex == null) {
+                       keyIndex = keyNames.size();
+                       keyIndexes.put(key, keyIndex);
+                       keyNames.add(entry.getValue());
+                       keyMembers.add(new ArrayList<>(1));
+                       if (similarityIndex != null) {
+                           similarityIndex.add(key);
                        }
                    }
+                   keyMembers.get(keyIndex).add(member);
+                   keys.add(keyIndex);
                }
            }
            
         }
+
+        markClashGroups(idps, keyNames, keyMembers, memberKeys);
+
+        if (similarityIndex != null) {
+            markNearDuplicates(similarityIndex, idps, keyNames, keyMembers, getNearDuplicateThreshold());
+        }
     }
     
     @Override
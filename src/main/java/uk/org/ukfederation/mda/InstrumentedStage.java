@@ -0,0 +1,340 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemIdentificationStrategy;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.WarningStatus;
+import net.shibboleth.metadata.pipeline.AbstractFilteringStage;
+import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelIteratingStage;
+
+/**
+ * A stage which executes another stage, recording its resource usage and its effect on the item collection.
+ *
+ * <p>
+ * Each execution records the wall clock time, the CPU time and the bytes allocated by the executing
+ * thread, the number of items before and after, and the number of {@link ErrorStatus}, {@link WarningStatus}
+ * and {@link InfoStatus} values added to the items which survive the wrapped stage.
+ * The resulting {@link StageStatistics} are logged and are also available from {@link #getLastStatistics()}.
+ * </p>
+ *
+ * <p>
+ * Each execution is also reported to the flight recorder as a <code>uk.org.ukfederation.mda.StageExecution</code>
+ * event.
+ * </p>
+ *
+ * <p>
+ * If the {@link #isTimingEachItem()} property is set and the <code>uk.org.ukfederation.mda.SlowItem</code>
+ * event is enabled, the wrapped stage is executed one item at a time, and a <code>SlowItem</code> event
+ * is recorded for each item taking longer than the event's threshold. This is only done for stages which
+ * process each item independently: an {@link AbstractIteratingStage} or {@link AbstractFilteringStage},
+ * other than an {@link AbstractParallelIteratingStage} given an executor. Other stages are executed
+ * as usual. Items are identified in these events using the
+ * {@link #getIdentificationStrategy()} property, by default a {@link UKItemIdentificationStrategy}.
+ * </p>
+ *
+ * <p>
+ * The wrapped stage is not initialized or destroyed by this stage.
+ * </p>
+ *
+ * @param <T> type of item being processed
+ */
+@ThreadSafe
+public class InstrumentedStage<T> extends AbstractStage<T> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(InstrumentedStage.class);
+
+    /** The stage being measured. */
+    @GuardedBy("this") @NonnullAfterInit private Stage<T> stage;
+
+    /** Strategy used to identify items in flight recorder events. */
+    @GuardedBy("this") @Nonnull
+    private ItemIdentificationStrategy<T> identificationStrategy = new UKItemIdentificationStrategy<>();
+
+    /** Whether to execute the wrapped stage one item at a time to record slow items. */
+    @GuardedBy("this") private boolean timingEachItem;
+
+    /** Statistics from the most recent execution. */
+    @GuardedBy("this") @Nullable private StageStatistics lastStatistics;
+
+    /**
+     * Get the stage being measured.
+     *
+     * @return the stage being measured
+     */
+    @NonnullAfterInit
+    public final synchronized Stage<T> getStage() {
+        return stage;
+    }
+
+    /**
+     * Set the stage to be measured.
+     *
+     * @param newStage the stage to be measured
+     */
+    public final synchronized void setStage(@Nonnull final Stage<T> newStage) {
+        stage = Constraint.isNotNull(newStage, "stage may not be null");
+    }
+
+    /**
+     * Gets the item identification strategy used in flight recorder events.
+     *
+     * @return the {@link ItemIdentificationStrategy} value
+     */
+    @Nonnull
+    public final synchronized ItemIdentificationStrategy<T> getIdentificationStrategy() {
+        return identificationStrategy;
+    }
+
+    /**
+     * Sets the item identification strategy used in flight recorder events.
+     *
+     * @param strategy the {@link ItemIdentificationStrategy} to use
+     */
+    public final synchronized void setIdentificationStrategy(@Nonnull final ItemIdentificationStrategy<T> strategy) {
+        identificationStrategy = Constraint.isNotNull(strategy, "identification strategy may not be null");
+    }
+
+    /**
+     * Gets whether the wrapped stage is executed one item at a time to record slow items.
+     *
+     * @return whether the wrapped stage is executed one item at a time
+     */
+    public final synchronized boolean isTimingEachItem() {
+        return timingEachItem;
+    }
+
+    /**
+     * Sets whether the wrapped stage is executed one item at a time to record slow items.
+     *
+     * @param timing whether the wrapped stage is executed one item at a time
+     */
+    public final synchronized void setTimingEachItem(final boolean timing) {
+        timingEachItem = timing;
+    }
+
+    /**
+     * Get the statistics recorded by the most recent execution.
+     *
+     * @return the most recent {@link StageStatistics}, or <code>null</code> if the stage has not been executed
+     */
+    @Nullable
+    public final synchronized StageStatistics getLastStatistics() {
+        return lastStatistics;
+    }
+
+    /**
+     * Set the statistics recorded by the most recent execution.
+     *
+     * @param statistics the most recent {@link StageStatistics}
+     */
+    private synchronized void setLastStatistics(@Nonnull final StageStatistics statistics) {
+        lastStatistics = statistics;
+    }
+
+    /**
+     * Count the status metadata attached to an item.
+     *
+     * @param item the item to examine
+     * @return array of error, warning and informational status counts
+     */
+    @Nonnull private static int[] countStatuses(@Nonnull final Item<?> item) {
+        final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
+        return new int[] {
+            metadata.get(ErrorStatus.class).size(),
+            metadata.get(WarningStatus.class).size(),
+            metadata.get(InfoStatus.class).size(),
+        };
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items) throws StageProcessingException {
+        final Stage<T> wrapped = getStage();
+
+        // Remember the statuses already present, so that only those added by the wrapped stage are counted.
+        final Map<Item<T>, int[]> before = new IdentityHashMap<>(items.size());
+        for (final Item<T> item : items) {
+            before.put(item, countStatuses(item));
+        }
+        final int inputItems = items.size();
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long cpuStart = cpuTime(threads);
+        final long allocatedStart = allocatedBytes(threads);
+        final StageExecutionEvent event = new StageExecutionEvent();
+        event.begin();
+        final long wallStart = System.nanoTime();
+
+        if (isTimingEachItem() && isItemIndependent(wrapped) && new SlowItemEvent().isEnabled()) {
+            executeEachItem(wrapped, items);
+        } else {
+            wrapped.execute(items);
+        }
+
+        final long wallTime = System.nanoTime() - wallStart;
+        event.end();
+        final long cpuEnd = cpuTime(threads);
+        final long allocatedEnd = allocatedBytes(threads);
+
+        final int[] added = new int[3];
+        for (final Item<T> item : items) {
+            final int[] now = countStatuses(item);
+            final int[] then = before.get(item);
+            for (int i = 0; i < added.length; i++) {
+                added[i] += then == null ? now[i] : now[i] - then[i];
+            }
+        }
+
+        final StageStatistics statistics = new StageStatistics(wrapped.getId(), wallTime,
+                cpuStart < 0 || cpuEnd < 0 ? -1 : cpuEnd - cpuStart,
+                allocatedStart < 0 || allocatedEnd < 0 ? -1 : allocatedEnd - allocatedStart,
+                inputItems, items.size(), added[0], added[1], added[2]);
+        setLastStatistics(statistics);
+        log.info("{}", statistics);
+
+        if (event.shouldCommit()) {
+            event.stageId = wrapped.getId();
+            event.stageClass = wrapped.getClass();
+            event.inputItems = inputItems;
+            event.outputItems = items.size();
+            event.commit();
+        }
+    }
+
+    /**
+     * Determine whether a stage processes each item independently of the others, so that
+     * executing it on one item at a time has the same effect as executing it on the whole collection.
+     *
+     * <p>
+     * An {@link AbstractParallelIteratingStage} is only regarded as independent if it has no executor,
+     * so that it processes its items sequentially in any case.
+     * </p>
+     *
+     * @param wrapped the stage to examine
+     * @return <code>true</code> if the stage processes each item independently
+     */
+    private static boolean isItemIndependent(@Nonnull final Stage<?> wrapped) {
+        if (wrapped instanceof AbstractParallelIteratingStage) {
+            return ((AbstractParallelIteratingStage<?>) wrapped).getExecutorService() == null;
+        }
+        return wrapped instanceof AbstractIteratingStage || wrapped instanceof AbstractFilteringStage;
+    }
+
+    /**
+     * Execute a stage on one item at a time, recording a {@link SlowItemEvent} for each
+     * item whose processing exceeds the event's threshold.
+     *
+     * @param wrapped the stage to execute
+     * @param items the collection of items, which is replaced by the stage's results
+     * @throws StageProcessingException if the wrapped stage throws it for any item
+     */
+    private void executeEachItem(@Nonnull final Stage<T> wrapped, @Nonnull @NonnullElements final List<Item<T>> items)
+            throws StageProcessingException {
+        final ItemIdentificationStrategy<T> strategy = getIdentificationStrategy();
+        final List<Item<T>> results = new ArrayList<>(items.size());
+        final List<Item<T>> single = new ArrayList<>(1);
+        for (final Item<T> item : items) {
+            single.add(item);
+            final SlowItemEvent event = new SlowItemEvent();
+            event.begin();
+            wrapped.execute(single);
+            event.end();
+            if (event.shouldCommit()) {
+                event.stageId = wrapped.getId();
+                event.itemId = strategy.getItemIdentifier(item);
+                event.commit();
+            }
+            results.addAll(single);
+            single.clear();
+        }
+        items.clear();
+        items.addAll(results);
+    }
+
+    /**
+     * Get the CPU time consumed so far by the current thread.
+     *
+     * @param threads the platform's {@link ThreadMXBean}
+     * @return CPU time in nanoseconds, or -1 if not available
+     */
+    private static long cpuTime(@Nonnull final ThreadMXBean threads) {
+        if (threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled()) {
+            return threads.getCurrentThreadCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * Get the number of bytes allocated so far by the current thread.
+     *
+     * @param threads the platform's {@link ThreadMXBean}
+     * @return allocated bytes, or -1 if not available
+     */
+    private static long allocatedBytes(@Nonnull final ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    protected void doDestroy() {
+        stage = null;
+        identificationStrategy = null;
+        lastStatistics = null;
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (stage == null) {
+            throw new ComponentInitializationException("stage must be supplied");
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event recording a single item whose processing by a stage
+ * wrapped by an {@link InstrumentedStage} took longer than the event's threshold.
+ *
+ * <p>
+ * The threshold defaults to 20 milliseconds, and can be changed in the recording's settings
+ * like that of any other flight recorder event, for example by
+ * <code>uk.org.ukfederation.mda.SlowItem#threshold=5 ms</code>.
+ * </p>
+ */
+@Name("uk.org.ukfederation.mda.SlowItem")
+@Label("Slow Item")
+@Category({"UK Federation", "Metadata Aggregator"})
+@Description("Processing of a single item by a metadata aggregator stage which exceeded the threshold.")
+@StackTrace(false)
+@Threshold("20 ms")
+final class SlowItemEvent extends jdk.jfr.Event {
+
+    /** Identifier of the executing stage. */
+    @Label("Stage")
+    String stageId;
+
+    /** Identifier of the item, from the {@link InstrumentedStage}'s identification strategy. */
+    @Label("Item")
+    String itemId;
+
+}
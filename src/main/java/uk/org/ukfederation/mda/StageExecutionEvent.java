@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event covering one execution of a stage wrapped by an {@link InstrumentedStage}.
+ *
+ * <p>
+ * The event's duration is the wall clock time taken by the wrapped stage.
+ * </p>
+ */
+@Name("uk.org.ukfederation.mda.StageExecution")
+@Label("Stage Execution")
+@Category({"UK Federation", "Metadata Aggregator"})
+@Description("Execution of a metadata aggregator stage.")
+@StackTrace(false)
+final class StageExecutionEvent extends jdk.jfr.Event {
+
+    /** Identifier of the executed stage. */
+    @Label("Stage")
+    String stageId;
+
+    /** Class of the executed stage. */
+    @Label("Stage Class")
+    Class<?> stageClass;
+
+    /** Number of items in the collection before execution. */
+    @Label("Input Items")
+    int inputItems;
+
+    /** Number of items in the collection after execution. */
+    @Label("Output Items")
+    int outputItems;
+
+}
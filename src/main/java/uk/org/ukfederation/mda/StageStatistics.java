@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+
+/**
+ * Resource usage and item counts recorded by an {@link InstrumentedStage} for a single
+ * execution of the stage it wraps.
+ *
+ * <p>
+ * CPU time and allocated bytes are measured for the executing thread only, and are
+ * reported as -1 if the JVM can not measure them.
+ * </p>
+ */
+@Immutable
+public final class StageStatistics {
+
+    /** Identifier of the measured stage. */
+    @Nonnull @NotEmpty private final String stageId;
+
+    /** Elapsed wall clock time, in nanoseconds. */
+    private final long wallTime;
+
+    /** CPU time consumed by the executing thread, in nanoseconds, or -1. */
+    private final long cpuTime;
+
+    /** Bytes allocated by the executing thread, or -1. */
+    private final long allocatedBytes;
+
+    /** Number of items in the collection before execution. */
+    private final int inputItems;
+
+    /** Number of items in the collection after execution. */
+    private final int outputItems;
+
+    /** Number of {@link net.shibboleth.metadata.ErrorStatus} values added to the items. */
+    private final int errors;
+
+    /** Number of {@link net.shibboleth.metadata.WarningStatus} values added to the items. */
+    private final int warnings;
+
+    /** Number of {@link net.shibboleth.metadata.InfoStatus} values added to the items. */
+    private final int infos;
+
+    /**
+     * Constructor.
+     *
+     * @param id identifier of the measured stage
+     * @param wall elapsed wall clock time, in nanoseconds
+     * @param cpu CPU time consumed by the executing thread, in nanoseconds, or -1
+     * @param allocated bytes allocated by the executing thread, or -1
+     * @param in number of items before execution
+     * @param out number of items after execution
+     * @param errorCount number of error statuses added
+     * @param warningCount number of warning statuses added
+     * @param infoCount number of informational statuses added
+     */
+    public StageStatistics(@Nonnull @NotEmpty final String id, final long wall, final long cpu,
+            final long allocated, final int in, final int out,
+            final int errorCount, final int warningCount, final int infoCount) {
+        stageId = id;
+        wallTime = wall;
+        cpuTime = cpu;
+        allocatedBytes = allocated;
+        inputItems = in;
+        outputItems = out;
+        errors = errorCount;
+        warnings = warningCount;
+        infos = infoCount;
+    }
+
+    /**
+     * Get the identifier of the measured stage.
+     *
+     * @return the stage identifier
+     */
+    @Nonnull @NotEmpty public String getStageId() {
+        return stageId;
+    }
+
+    /**
+     * Get the elapsed wall clock time.
+     *
+     * @return wall clock time, in nanoseconds
+     */
+    public long getWallTime() {
+        return wallTime;
+    }
+
+    /**
+     * Get the CPU time consumed by the executing thread.
+     *
+     * @return CPU time, in nanoseconds, or -1 if not measured
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * Get the number of bytes allocated by the executing thread.
+     *
+     * @return allocated bytes, or -1 if not measured
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Get the number of items in the collection before execution.
+     *
+     * @return number of input items
+     */
+    public int getInputItems() {
+        return inputItems;
+    }
+
+    /**
+     * Get the number of items in the collection after execution.
+     *
+     * @return number of output items
+     */
+    public int getOutputItems() {
+        return outputItems;
+    }
+
+    /**
+     * Get the number of {@link net.shibboleth.metadata.ErrorStatus} values added to the items.
+     *
+     * @return number of errors
+     */
+    public int getErrors() {
+        return errors;
+    }
+
+    /**
+     * Get the number of {@link net.shibboleth.metadata.WarningStatus} values added to the items.
+     *
+     * @return number of warnings
+     */
+    public int getWarnings() {
+        return warnings;
+    }
+
+    /**
+     * Get the number of {@link net.shibboleth.metadata.InfoStatus} values added to the items.
+     *
+     * @return number of informational statuses
+     */
+    public int getInfos() {
+        return infos;
+    }
+
+    @Override
+    public String toString() {
+        return "stage " + stageId +
+                ": wall " + wallTime / 1_000_000 + "ms" +
+                ", cpu " + (cpuTime < 0 ? "n/a" : cpuTime / 1_000_000 + "ms") +
+                ", allocated " + (allocatedBytes < 0 ? "n/a" : allocatedBytes / 1024 + "KiB") +
+                ", items " + inputItems + " -> " + outputItems +
+                ", added errors " + errors + ", warnings " + warnings + ", infos " + infos;
+    }
+
+}
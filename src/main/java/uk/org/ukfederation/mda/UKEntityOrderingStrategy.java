@@ -15,8 +15,13 @@
 package uk.org.ukfederation.mda;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -42,9 +47,37 @@ import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElemen
  * Items with {@link ItemId} metadata come next, again in the natural ordering
  * for {@link ItemId}.  Items with neither {@link UKId} or {@link ItemId} come
  * last in the ordering.
+ * 
+ * When every {@link UKId} in the collection is in the standard format, each item's position
+ * is first determined by a primitive sort key, and only items which can not be distinguished
+ * that way (usually those with no {@link UKId}) are compared field by field.
  */
 @Immutable
 public class UKEntityOrderingStrategy implements ItemOrderingStrategy<Element> {
+
+    /** Number of bits in a sort key holding the item's index in the original collection. */
+    private static final int INDEX_BITS = 24;
+
+    /** Mask for the item's index in a sort key. */
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    /** Shift for the numeric {@link UKId} in a sort key. */
+    private static final int UKID_SHIFT = INDEX_BITS;
+
+    /** Value used in place of the numeric {@link UKId} for an item which does not have one. */
+    private static final int NO_UKID = 1_000_000;
+
+    /** Shift for the rank of an <code>EntitiesDescriptor</code>'s name in a sort key. */
+    private static final int RANK_SHIFT = UKID_SHIFT + 20;
+
+    /** Number of distinct <code>EntitiesDescriptor</code> ranks representable in a sort key. */
+    private static final int MAX_RANKS = 1 << 16;
+
+    /** Shift for the flag distinguishing <code>EntitiesDescriptor</code>s in a sort key. */
+    private static final int GROUP_SHIFT = RANK_SHIFT + 16;
+
+    /** Collection size at or above which the sort keys are sorted in parallel. */
+    private static final int PARALLEL_SORT_THRESHOLD = 10_000;
     
     /**
      * Helper class which wraps an {@link Element} {@link Item} but extracts any
@@ -52,14 +85,20 @@ public class UKEntityOrderingStrategy implements ItemOrderingStrategy<Element> {
      */
     private static class OrderableItem implements Comparable<OrderableItem> {
         
-        /** Number of fields we are capable of comparing. */
-        private static final int NFIELDS = 4;
-        
         /** The wrapped {@link Element} {@link Item}. */
         private final Item<Element> item;
         
-        /** Array of field values. */
-        private final String[] fields = new String[NFIELDS];
+        /** Non-<code>null</code> if the item is an <code>EntitiesDescriptor</code>. */
+        @Nullable private final String entities;
+
+        /** The <code>Name</code> of an <code>EntitiesDescriptor</code>, if any. */
+        @Nullable private final String name;
+
+        /** The item's first {@link UKId}, if any. */
+        @Nullable private final UKId ukid;
+
+        /** The item's first {@link ItemId}, if any. */
+        @Nullable private final String itemId;
         
         /**
          * Constructor.
@@ -72,34 +111,32 @@ public class UKEntityOrderingStrategy implements ItemOrderingStrategy<Element> {
             final Element docElement = domItem.unwrap();
             if (SAMLMetadataSupport.isEntitiesDescriptor(docElement)) {
                 // EntitiesDescriptors come before everything else
-                fields[0] = "yes";
+                entities = "yes";
                 
                 // Named EntitiesDescriptors come before unnamed, in order of name
                 final Attr nameAttr = docElement.getAttributeNode("Name");
-                if (nameAttr != null) {
-                    fields[1] = nameAttr.getTextContent();
-                }
+                name = nameAttr == null ? null : nameAttr.getTextContent();
+            } else {
+                entities = null;
+                name = null;
             }
             
             final List<UKId> ukids = item.getItemMetadata().get(UKId.class);
-            if (ukids.size() != 0) {
-                fields[2] = ukids.get(0).getId();
-            }
+            ukid = ukids.isEmpty() ? null : ukids.get(0);
 
             final List<ItemId> itemids = item.getItemMetadata().get(ItemId.class);
-            if (itemids.size() != 0) {
-                fields[3] = itemids.get(0).getId();
-            }
+            itemId = itemids.isEmpty() ? null : itemids.get(0).getId();
         }
 
         /**
          * Compare a single field.
          * 
+         * @param <C> type of the field
          * @param sThis value of the field in this object
          * @param sThat value of the field in the other object
          * @return comparison value
          */
-        private int compareField(@Nullable final String sThis, @Nullable final String sThat) {
+        private static <C extends Comparable<C>> int compareField(@Nullable final C sThis, @Nullable final C sThat) {
             if (sThis != null) {
                 if (sThat != null) {
                     // both have this field; direct comparison
@@ -119,15 +156,18 @@ public class UKEntityOrderingStrategy implements ItemOrderingStrategy<Element> {
         
         @Override
         public int compareTo(@Nonnull final OrderableItem o) {
-            for (int fno = 0; fno < NFIELDS; fno++) {
-                final int compared = compareField(fields[fno], o.fields[fno]);
-                if (compared != 0) {
-                    return compared;
-                }
+            int compared = compareField(entities, o.entities);
+            if (compared == 0) {
+                compared = compareField(name, o.name);
             }
-
-            // nothing to choose between them
-            return 0;
+            if (compared == 0) {
+                // UKIds compare numerically in the usual case
+                compared = compareField(ukid, o.ukid);
+            }
+            if (compared == 0) {
+                compared = compareField(itemId, o.itemId);
+            }
+            return compared;
         }
         
         /**
@@ -140,8 +180,85 @@ public class UKEntityOrderingStrategy implements ItemOrderingStrategy<Element> {
         }
     }
 
-    @Override
-    public List<Item<Element>> order(@Nonnull @NonnullElements final List<Item<Element>> items) {
+    /**
+     * Build a sort key for each item in a collection.
+     *
+     * <p>
+     * From most to least significant, each key holds a flag which is clear for an <code>EntitiesDescriptor</code>,
+     * the rank of an <code>EntitiesDescriptor</code>'s name, the numeric value of the item's {@link UKId} and
+     * the item's index in the collection. Keys are therefore ordered consistently with {@link OrderableItem},
+     * and two items with the same key apart from the index are ordered by their {@link ItemId}s.
+     * </p>
+     *
+     * @param items collection of items to build keys for
+     * @return array of sort keys, or <code>null</code> if the collection can not be represented this way
+     */
+    @Nullable private static long[] buildSortKeys(@Nonnull @NonnullElements final List<Item<Element>> items) {
+        final int count = items.size();
+        if (count > INDEX_MASK + 1) {
+            return null;
+        }
+
+        // Extract the fields we need, and the set of EntitiesDescriptor names.
+        final boolean[] entities = new boolean[count];
+        final String[] names = new String[count];
+        final int[] ukids = new int[count];
+        final SortedSet<String> distinctNames = new TreeSet<>();
+        for (int index = 0; index < count; index++) {
+            final Item<Element> item = items.get(index);
+            final Element docElement = item.unwrap();
+            if (SAMLMetadataSupport.isEntitiesDescriptor(docElement)) {
+                entities[index] = true;
+                final Attr nameAttr = docElement.getAttributeNode("Name");
+                if (nameAttr != null) {
+                    names[index] = nameAttr.getTextContent();
+                    distinctNames.add(names[index]);
+                }
+            }
+
+            final List<UKId> itemUKIds = item.getItemMetadata().get(UKId.class);
+            if (itemUKIds.isEmpty()) {
+                ukids[index] = NO_UKID;
+            } else {
+                ukids[index] = itemUKIds.get(0).getNumber();
+                if (ukids[index] < 0) {
+                    // not a standard format UKId; its position depends on its string value
+                    return null;
+                }
+            }
+        }
+
+        // Unnamed EntitiesDescriptors rank after all the named ones.
+        if (distinctNames.size() >= MAX_RANKS) {
+            return null;
+        }
+        final Map<String, Integer> ranks = new HashMap<>();
+        for (final String name : distinctNames) {
+            ranks.put(name, ranks.size());
+        }
+
+        final long[] keys = new long[count];
+        for (int index = 0; index < count; index++) {
+            final long key;
+            if (entities[index]) {
+                final long rank = names[index] == null ? distinctNames.size() : ranks.get(names[index]);
+                key = rank << RANK_SHIFT;
+            } else {
+                key = 1L << GROUP_SHIFT;
+            }
+            keys[index] = key | (long) ukids[index] << UKID_SHIFT | index;
+        }
+        return keys;
+    }
+
+    /**
+     * Order a collection of items by comparing their fields.
+     *
+     * @param items collection of items to order
+     * @return ordered collection of items
+     */
+    @Nonnull @NonnullElements
+    private static List<Item<Element>> orderByComparison(@Nonnull @NonnullElements final List<Item<Element>> items) {
         
         // Construct an orderable list wrapping the original items.
         final List<OrderableItem> orderableList = new ArrayList<>(items.size());
@@ -161,4 +278,44 @@ public class UKEntityOrderingStrategy implements ItemOrderingStrategy<Element> {
         return results;
     }
 
+    @Override
+    public List<Item<Element>> order(@Nonnull @NonnullElements final List<Item<Element>> items) {
+        final List<Item<Element>> source = new ArrayList<>(items);
+        final long[] keys = buildSortKeys(source);
+        if (keys == null) {
+            return orderByComparison(source);
+        }
+
+        // The index in the low bits makes equal keys sort in their original order.
+        if (keys.length >= PARALLEL_SORT_THRESHOLD) {
+            Arrays.parallelSort(keys);
+        } else {
+            Arrays.sort(keys);
+        }
+
+        final List<Item<Element>> results = new ArrayList<>(source.size());
+        int start = 0;
+        while (start < keys.length) {
+            // Find the run of items whose keys differ only in their index.
+            final long key = keys[start] & ~INDEX_MASK;
+            int end = start + 1;
+            while (end < keys.length && (keys[end] & ~INDEX_MASK) == key) {
+                end++;
+            }
+
+            if (end - start == 1) {
+                results.add(source.get((int) (keys[start] & INDEX_MASK)));
+            } else {
+                final List<Item<Element>> run = new ArrayList<>(end - start);
+                for (int i = start; i < end; i++) {
+                    run.add(source.get((int) (keys[i] & INDEX_MASK)));
+                }
+                results.addAll(orderByComparison(run));
+            }
+            start = end;
+        }
+
+        return results;
+    }
+
 }
@@ -14,22 +14,53 @@
 
 package uk.org.ukfederation.mda;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.Immutable;
 
-import com.google.common.base.Objects;
-
 import net.shibboleth.metadata.ItemMetadata;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
 import net.shibboleth.utilities.java.support.logic.Constraint;
 import net.shibboleth.utilities.java.support.primitive.StringSupport;
 
-/** Carries the fragment ID for an item of UK federation registered metadata. */
+/**
+ * Carries the fragment ID for an item of UK federation registered metadata.
+ *
+ * <p>
+ * IDs in the standard UK federation format (<code>"uk"</code> followed by six digits) also carry their
+ * numeric value, so that they can be compared and hashed as integers. {@link #valueOf(String)} returns a
+ * single shared instance for each such ID.
+ * </p>
+ */
 @Immutable
 public class UKId implements ItemMetadata, Comparable<UKId> {
 
+    /** Prefix of a standard format ID. */
+    private static final String STANDARD_PREFIX = "uk";
+
+    /** Number of digits following the prefix in a standard format ID. */
+    private static final int STANDARD_DIGITS = 6;
+
+    /** Number of distinct standard format IDs. */
+    private static final int STANDARD_IDS = 1_000_000;
+
+    /** Number of instances in each block of the shared instance cache. */
+    private static final int BLOCK_SIZE = 1_000;
+
+    /**
+     * Shared instances of standard format IDs, indexed by numeric value.
+     *
+     * Blocks of {@link #BLOCK_SIZE} entries are allocated as they are first needed.
+     */
+    private static final AtomicReferenceArray<AtomicReferenceArray<UKId>> SHARED =
+            new AtomicReferenceArray<>(STANDARD_IDS / BLOCK_SIZE);
+
     /** UK federation fragment ID for the Item. */
-    private String id;
+    private final String id;
+
+    /** Numeric value of a standard format ID, or -1 for any other ID. */
+    private final int number;
 
     /**
      * Constructor.
@@ -38,6 +69,62 @@ public class UKId implements ItemMetadata, Comparable<UKId> {
      */
     public UKId(@Nonnull @NotEmpty final String ukid) {
         id = Constraint.isNotNull(StringSupport.trimOrNull(ukid), "UK ID may not be null or empty");
+        number = standardNumber(id);
+    }
+
+    /**
+     * Get a {@link UKId} for the given fragment ID.
+     *
+     * <p>
+     * For a standard format ID, the same instance is returned every time; other IDs
+     * result in a new instance.
+     * </p>
+     *
+     * @param ukid The UK federation fragment ID for the entity, never null
+     * @return a {@link UKId} for the fragment ID
+     */
+    @Nonnull public static UKId valueOf(@Nonnull @NotEmpty final String ukid) {
+        final String trimmed = Constraint.isNotNull(StringSupport.trimOrNull(ukid), "UK ID may not be null or empty");
+        final int value = standardNumber(trimmed);
+        if (value < 0) {
+            return new UKId(trimmed);
+        }
+
+        final int blockIndex = value / BLOCK_SIZE;
+        AtomicReferenceArray<UKId> block = SHARED.get(blockIndex);
+        if (block == null) {
+            SHARED.compareAndSet(blockIndex, null, new AtomicReferenceArray<>(BLOCK_SIZE));
+            block = SHARED.get(blockIndex);
+        }
+
+        final int slot = value % BLOCK_SIZE;
+        final UKId shared = block.get(slot);
+        if (shared != null) {
+            return shared;
+        }
+        final UKId created = new UKId(trimmed);
+        return block.compareAndSet(slot, null, created) ? created : block.get(slot);
+    }
+
+    /**
+     * Compute the numeric value of a standard format ID.
+     *
+     * @param ukid the trimmed ID
+     * @return the numeric value, or -1 if the ID is not in the standard format
+     */
+    private static int standardNumber(@Nonnull final String ukid) {
+        if (ukid.length() != STANDARD_PREFIX.length() + STANDARD_DIGITS || !ukid.startsWith(STANDARD_PREFIX)) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = STANDARD_PREFIX.length(); i < ukid.length(); i++) {
+            final char c = ukid.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
     }
 
     /**
@@ -49,9 +136,18 @@ public class UKId implements ItemMetadata, Comparable<UKId> {
         return id;
     }
 
+    /**
+     * Gets the numeric value of a standard format ID.
+     *
+     * @return the numeric value, or -1 if the ID is not in the standard format
+     */
+    int getNumber() {
+        return number;
+    }
+
     @Override
     public int hashCode() {
-        return id.hashCode();
+        return number >= 0 ? number : id.hashCode();
     }
 
     @Override
@@ -67,11 +163,25 @@ public class UKId implements ItemMetadata, Comparable<UKId> {
         }
 
         final UKId other = (UKId) obj;
-        return Objects.equal(id, other.id);
+        if (number >= 0 || other.number >= 0) {
+            return number == other.number;
+        }
+        return id.equals(other.id);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * The ordering is that of the {@link String} IDs. Two standard format IDs are
+     * ordered by their numeric values, which gives the same result.
+     * </p>
+     */
     @Override
     public int compareTo(final UKId other) {
+        if (number >= 0 && other.number >= 0) {
+            return Integer.compare(number, other.number);
+        }
         return getId().compareTo(other.getId());
     }
     
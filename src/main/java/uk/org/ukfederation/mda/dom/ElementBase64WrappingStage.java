@@ -14,29 +14,185 @@
 
 package uk.org.ukfederation.mda.dom;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
 import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
 
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.dom.AbstractElementVisitingStage;
 import net.shibboleth.metadata.dom.DOMTraversalContext;
-import net.shibboleth.metadata.dom.ElementVisitor;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
 import uk.org.ukfederation.mda.dom.impl.Base64WrappingVisitor;
+import uk.org.ukfederation.mda.dom.impl.CachingBase64WrappingVisitor;
 
 /**
  * Stage to wrap the assumed Base64 text text content of named elements
  * within a {@link net.shibboleth.metadata.dom.DOMElementItem}.
+ *
+ * <p>
+ * Elements whose content is already wrapped are left untouched. The number of elements
+ * visited and rewritten by the stage is counted over its lifetime, and logged for each
+ * execution at debug level.
+ * </p>
+ *
+ * <p>
+ * If the <code>validating</code> property is set, each element's content is also checked to be
+ * valid Base64, and an {@link ErrorStatus} is added to the item for any element whose content is not.
+ * </p>
+ *
+ * <p>
+ * If the <code>cacheSize</code> property is set, wrapped texts are cached by a
+ * {@link CachingBase64WrappingVisitor}, so that elements with the same content share one {@link String}.
+ * </p>
  */
 @ThreadSafe
 public class ElementBase64WrappingStage extends AbstractElementVisitingStage {
 
-    /** Visitor to apply to each visited element. */
-    @Nonnull private final ElementVisitor visitor = new Base64WrappingVisitor();
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ElementBase64WrappingStage.class);
+
+    /** Visitor to apply to each visited element, created at initialization. */
+    @NonnullAfterInit private volatile Base64WrappingVisitor visitor;
+
+    /** Maximum number of wrapped texts to cache, or 0 not to cache them. */
+    @GuardedBy("this") private long cacheSize;
+
+    /** Whether to check that the content is valid Base64. */
+    @GuardedBy("this") private boolean validating;
+
+    /** Number of elements visited. */
+    @Nonnull private final LongAdder visitedElements = new LongAdder();
+
+    /** Number of elements whose content was rewritten. */
+    @Nonnull private final LongAdder rewrittenElements = new LongAdder();
+
+    /**
+     * Get the maximum number of wrapped texts to cache.
+     *
+     * @return the maximum number of cached texts, or 0 if they are not cached
+     */
+    public final synchronized long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Set the maximum number of wrapped texts to cache, so that elements with the same content
+     * share a single wrapped {@link String} through a {@link CachingBase64WrappingVisitor}.
+     *
+     * <p>
+     * The cache belongs to the stage, so to share texts between several pipelines, use the same
+     * stage in each of them.
+     * </p>
+     *
+     * @param size maximum number of cached texts, or 0 not to cache them
+     */
+    public final synchronized void setCacheSize(final long size) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isTrue(size >= 0, "cache size must not be negative");
+        cacheSize = size;
+    }
+
+    /**
+     * Get whether the content is checked to be valid Base64.
+     *
+     * @return <code>true</code> if the content is checked
+     */
+    public final synchronized boolean isValidating() {
+        return validating;
+    }
+
+    /**
+     * Set whether to check, during the same scan which wraps it, that each element's content is valid
+     * Base64 in the standard alphabet and correctly padded. Invalid content results in an
+     * {@link ErrorStatus} on the item, and is still wrapped.
+     *
+     * @param validate <code>true</code> to check the content
+     */
+    public final synchronized void setValidating(final boolean validate) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        validating = validate;
+    }
+
+    /**
+     * Get the number of elements visited by this stage.
+     *
+     * @return the number of elements visited
+     */
+    public long getVisitedElementCount() {
+        return visitedElements.sum();
+    }
+
+    /**
+     * Get the number of elements whose content has been rewritten by this stage. Elements
+     * which were already wrapped are not included.
+     *
+     * @return the number of elements rewritten
+     */
+    public long getRewrittenElementCount() {
+        return rewrittenElements.sum();
+    }
 
     @Override
     protected void visit(@Nonnull final Element e, @Nonnull final DOMTraversalContext context) {
-        visitor.visitElement(e, context.getItem());
+        visitedElements.increment();
+        final boolean rewritten;
+        if (isValidating()) {
+            final List<String> problems = new ArrayList<>(1);
+            rewritten = visitor.wrapElement(e, problems);
+            for (final String problem : problems) {
+                context.getItem().getItemMetadata().put(new ErrorStatus(getId(),
+                        "invalid Base64 content in " + e.getTagName() + ": " + problem));
+            }
+        } else {
+            rewritten = visitor.wrapElement(e);
+        }
+        if (rewritten) {
+            rewrittenElements.increment();
+        }
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<Element>> items)
+            throws StageProcessingException {
+        final long visitedBefore = visitedElements.sum();
+        final long rewrittenBefore = rewrittenElements.sum();
+        super.doExecute(items);
+        log.debug("{} rewrote {} of {} elements", getId(), rewrittenElements.sum() - rewrittenBefore,
+                visitedElements.sum() - visitedBefore);
+    }
+
+    @Override
+    protected void doDestroy() {
+        visitor = null;
+
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (cacheSize > 0) {
+            visitor = new CachingBase64WrappingVisitor(cacheSize);
+        } else {
+            visitor = new Base64WrappingVisitor();
+        }
     }
 
 }
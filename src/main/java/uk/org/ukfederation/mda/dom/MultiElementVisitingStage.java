@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.org.ukfederation.mda.dom;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.ElementVisitor;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelIteratingStage;
+
+/**
+ * Stage which applies a number of {@link ElementVisitor}s, each to the elements with a given name,
+ * during a single traversal of each item's DOM.
+ *
+ * <p>
+ * Elements are visited in the same order as by {@link net.shibboleth.metadata.dom.AbstractElementVisitingStage}:
+ * each element's children are visited before the element itself. This allows a visitor to replace
+ * the content of the element it is visiting.
+ * </p>
+ *
+ * <p>
+ * Each element's name is matched by looking up its namespace and then its local name in a table
+ * built when the stage is initialized, so the cost of matching does not grow with the number of visitors.
+ * </p>
+ *
+ * <p>Properties:</p>
+ *
+ * <dl>
+ *   <dt>visitors</dt>
+ *   <dd>
+ *      A {@link Map} from element names to the {@link ElementVisitor} to apply to the elements
+ *      with each name. By default, empty. If items are processed in parallel (see
+ *      {@link AbstractParallelIteratingStage}), the visitors must be thread-safe.
+ *   </dd>
+ * </dl>
+ */
+@ThreadSafe
+public class MultiElementVisitingStage extends AbstractParallelIteratingStage<Element> {
+
+    /** The visitor to apply to the elements with each name. */
+    @GuardedBy("this") @Nonnull @NonnullElements @Unmodifiable
+    private Map<QName, ElementVisitor> visitors = Map.of();
+
+    /** Visitors indexed by namespace URI and then by local name, built at initialization. */
+    @Nonnull @NonnullElements private volatile Map<String, Map<String, ElementVisitor>> visitorTable;
+
+    /**
+     * Get the visitors to apply to the elements with each name.
+     *
+     * @return the visitors, by element name
+     */
+    @Nonnull @NonnullElements @Unmodifiable
+    public final synchronized Map<QName, ElementVisitor> getVisitors() {
+        return visitors;
+    }
+
+    /**
+     * Set the visitors to apply to the elements with each name.
+     *
+     * @param newVisitors the visitors, by element name
+     */
+    public final synchronized void setVisitors(@Nonnull @NonnullElements final Map<QName, ElementVisitor> newVisitors) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        visitors = Map.copyOf(Constraint.isNotNull(newVisitors, "visitors can not be null"));
+    }
+
+    @Override
+    protected void doExecute(@Nonnull final Item<Element> item) throws StageProcessingException {
+        traverse(item.unwrap(), item, visitorTable);
+    }
+
+    /**
+     * Visit an element's descendants, and then the element itself.
+     *
+     * @param element the element to traverse
+     * @param item the item being processed
+     * @param table visitors indexed by namespace URI and then by local name
+     */
+    private void traverse(@Nonnull final Element element, @Nonnull final Item<Element> item,
+            @Nonnull @NonnullElements final Map<String, Map<String, ElementVisitor>> table) {
+        Node child = element.getFirstChild();
+        while (child != null) {
+            // Fetched first, in case the child is replaced by the element's own visitor
+            final Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                traverse((Element) child, item, table);
+            }
+            child = next;
+        }
+
+        final Map<String, ElementVisitor> localNames = table.get(nullToEmpty(element.getNamespaceURI()));
+        if (localNames != null) {
+            final ElementVisitor visitor = localNames.get(element.getLocalName());
+            if (visitor != null) {
+                visitor.visitElement(element, item);
+            }
+        }
+    }
+
+    /**
+     * Map a <code>null</code> namespace URI to the empty string used by {@link QName}.
+     *
+     * @param uri namespace URI, or <code>null</code>
+     * @return the namespace URI, or the empty string
+     */
+    @Nonnull private static String nullToEmpty(@Nullable final String uri) {
+        return uri == null ? "" : uri;
+    }
+
+    @Override
+    protected void doDestroy() {
+        visitors = null;
+        visitorTable = null;
+
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        final Map<String, Map<String, ElementVisitor>> table = new HashMap<>();
+        for (final Map.Entry<QName, ElementVisitor> entry : visitors.entrySet()) {
+            final QName name = entry.getKey();
+            table.computeIfAbsent(name.getNamespaceURI(), uri -> new HashMap<>())
+                    .put(name.getLocalPart(), entry.getValue());
+        }
+        visitorTable = table;
+    }
+
+}
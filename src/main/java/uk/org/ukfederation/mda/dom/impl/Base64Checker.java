@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.org.ukfederation.mda.dom.impl;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Checks, one character at a time, that the non-white space characters of some text are valid
+ * Base64 in the standard alphabet, correctly padded.
+ *
+ * <p>
+ * Characters are fed to the checker by the scans which determine whether the text is already
+ * wrapped and which wrap it, each character once, so that validation does not need a separate
+ * pass over the text.
+ * </p>
+ */
+@NotThreadSafe
+final class Base64Checker {
+
+    /** Number of characters accepted, including padding. */
+    private int count;
+
+    /** Number of padding characters accepted. */
+    private int padding;
+
+    /** The first problem found, or <code>null</code>. */
+    @Nullable private String problem;
+
+    /**
+     * Accept the next non-white space character.
+     *
+     * @param c the character
+     */
+    void accept(final char c) {
+        if (problem == null) {
+            if (c == '=') {
+                if (++padding > 2) {
+                    problem = "too much padding";
+                }
+            } else if (padding != 0) {
+                problem = "data after padding";
+            } else if (!isAlphabet(c)) {
+                problem = "invalid character " + describe(c) + " at position " + count;
+            }
+        }
+        count++;
+    }
+
+    /**
+     * Get the first problem found with the characters accepted.
+     *
+     * @return a description of the problem, or <code>null</code> if the characters are valid
+     */
+    @Nullable String getProblem() {
+        if (problem == null && count % 4 != 0) {
+            return "length " + count + " is not a multiple of 4";
+        }
+        return problem;
+    }
+
+    /**
+     * Determine whether a character is in the standard Base64 alphabet, excluding padding.
+     *
+     * @param c the character
+     * @return <code>true</code> if the character is in the alphabet
+     */
+    private static boolean isAlphabet(final char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+' || c == '/';
+    }
+
+    /**
+     * Describe a character for a problem report.
+     *
+     * @param c the character
+     * @return the quoted character if it is printable ASCII, otherwise its code point
+     */
+    private static String describe(final char c) {
+        if (c >= ' ' && c < 0x7f) {
+            return "'" + c + "'";
+        }
+        return String.format("U+%04X", (int) c);
+    }
+
+}
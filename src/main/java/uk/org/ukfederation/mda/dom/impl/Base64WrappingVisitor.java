@@ -14,61 +14,323 @@
 
 package uk.org.ukfederation.mda.dom.impl;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
 
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.dom.ElementVisitor;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 
 /**
  * {@link Element} visitor which wraps the visited element's text content.
+ *
+ * <p>
+ * An element whose content is already in the wrapped form is left untouched, so that its
+ * text nodes are not replaced.
+ * </p>
+ *
+ * <p>
+ * Parsers often deliver a large blob as several adjacent text nodes. These are read through a
+ * {@link CharSequence} view rather than first being concatenated, so that the only copy made is
+ * the wrapped result, built in an exactly sized buffer. The element's content is then replaced
+ * by a single text node.
+ * </p>
  */
 @Immutable
 public class Base64WrappingVisitor implements ElementVisitor {
 
+    /** Number of characters on each line of wrapped output. */
+    protected static final int LINE_LENGTH = 64;
+
     @Override
     public void visitElement(@Nonnull final Element visited, @Nonnull final Item<Element> item) {
-        final String originalText = visited.getTextContent();
-        final String newText = "\n" + wrapBase64(originalText) + "\n";
-        visited.setTextContent(newText);
+        wrapElement(visited);
     }
-    
+
+    /**
+     * Wrap the element's text content, unless it is already wrapped.
+     *
+     * @param element the element whose text content is to be wrapped
+     * @return <code>true</code> if the element's content was replaced
+     */
+    public boolean wrapElement(@Nonnull final Element element) {
+        return wrapContent(element, null);
+    }
+
+    /**
+     * Wrap the element's text content, unless it is already wrapped, checking in the same scans
+     * that it is valid Base64 in the standard alphabet and correctly padded.
+     *
+     * @param element the element whose text content is to be wrapped
+     * @param problems list to which a description of any problem with the content is added
+     * @return <code>true</code> if the element's content was replaced
+     */
+    public boolean wrapElement(@Nonnull final Element element, @Nonnull @NonnullElements final List<String> problems) {
+        final Base64Checker checker = new Base64Checker();
+        final boolean replaced = wrapContent(element, checker);
+        final String problem = checker.getProblem();
+        if (problem != null) {
+            problems.add(problem);
+        }
+        return replaced;
+    }
+
+    /**
+     * Wrap the element's text content, unless it is already wrapped.
+     *
+     * @param element the element whose text content is to be wrapped
+     * @param checker checker to be fed the content's characters, or <code>null</code>
+     * @return <code>true</code> if the element's content was replaced
+     */
+    boolean wrapContent(@Nonnull final Element element, @Nullable final Base64Checker checker) {
+        final int checked = scanContent(element, checker);
+        if (checked < 0) {
+            return false;
+        }
+        final CharSequence content = getContent(element);
+        element.setTextContent(wrapText(content, countContent(content, checked, checker)));
+        return true;
+    }
+
+    /**
+     * Get an element's text content, without concatenating it if it is held in several text nodes.
+     *
+     * @param element the element whose content is to be returned
+     * @return a view of the element's text and CDATA section children, or its text content
+     *      if it has children of any other type
+     */
+    @Nonnull static CharSequence getContent(@Nonnull final Element element) {
+        final Node first = element.getFirstChild();
+        if (first != null && first.getNextSibling() == null && first.getNodeType() == Node.TEXT_NODE) {
+            return ((Text) first).getData();
+        }
+        final List<Text> texts = getTextChildren(element);
+        return texts == null ? element.getTextContent() : new TextContentSequence(texts);
+    }
+
+    /**
+     * Determine whether an element's content consists only of text nodes, other than CDATA sections,
+     * whose data is already in wrapped form.
+     *
+     * @param element the element to check
+     * @return <code>true</code> if the element's content is already wrapped
+     */
+    protected static boolean hasWrappedContent(@Nonnull final Element element) {
+        return scanContent(element, null) < 0;
+    }
+
+    /**
+     * Determine whether an element's content is already in wrapped form, as
+     * {@link #hasWrappedContent(Element)} does, feeding the checker as the scan proceeds.
+     *
+     * <p>
+     * The scan stops at the first character which shows that the content is not wrapped. The position
+     * returned is then that character's position within the sequence returned by {@link #getContent(Element)},
+     * so that a later scan of that sequence can feed the checker the remaining characters.
+     * </p>
+     *
+     * @param element the element to check
+     * @param checker checker to be fed the content's non-white space characters, or <code>null</code>
+     * @return -1 if the element's content is already wrapped, otherwise the position before which
+     *      all of the content's non-white space characters have been fed to the checker
+     */
+    static int scanContent(@Nonnull final Element element, @Nullable final Base64Checker checker) {
+        final Node first = element.getFirstChild();
+        if (first == null || first.getNodeType() != Node.TEXT_NODE) {
+            return 0;
+        } else if (first.getNextSibling() == null) {
+            return scanWrapped(((Text) first).getData(), checker);
+        }
+
+        final List<Text> texts = getTextChildren(element);
+        if (texts == null) {
+            return 0;
+        }
+        for (final Text text : texts) {
+            if (text.getNodeType() != Node.TEXT_NODE) {
+                return 0;
+            }
+        }
+        return scanWrapped(new TextContentSequence(texts), checker);
+    }
+
+    /**
+     * Return the children of an element, if they are all text nodes.
+     *
+     * @param element the element whose children are to be returned
+     * @return the element's text and CDATA section children, or <code>null</code> if it has
+     *      children of any other type
+     */
+    @Nullable @NonnullElements
+    protected static List<Text> getTextChildren(@Nonnull final Element element) {
+        final List<Text> texts = new ArrayList<>();
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            final short type = child.getNodeType();
+            if (type != Node.TEXT_NODE && type != Node.CDATA_SECTION_NODE) {
+                return null;
+            }
+            texts.add((Text) child);
+        }
+        return texts;
+    }
+
+    /**
+     * Determine whether a character sequence is already in the form produced by this visitor: a line break, the
+     * Base64 characters in lines of 64 characters each, and a final line break.
+     *
+     * @param s the characters to check
+     * @return <code>true</code> if the characters are already wrapped
+     */
+    public static boolean isWrapped(@Nonnull final CharSequence s) {
+        return scanWrapped(s, null) < 0;
+    }
+
+    /**
+     * Determine whether a character sequence is already in wrapped form.
+     *
+     * @param s the characters to check
+     * @param checker checker to be fed the non-white space characters scanned, or <code>null</code>
+     * @return -1 if the characters are already wrapped, otherwise the position of the character at which
+     *      the scan stopped
+     */
+    private static int scanWrapped(@Nonnull final CharSequence s, @Nullable final Base64Checker checker) {
+        final int last = s.length() - 1;
+        if (last < 1 || s.charAt(0) != '\n' || s.charAt(last) != '\n') {
+            return 0;
+        }
+        int column = 0;
+        for (int i = 1; i < last; i++) {
+            final char c = s.charAt(i);
+            if (c == '\n') {
+                if (column != LINE_LENGTH) {
+                    return i;
+                }
+                column = 0;
+            } else if (column == LINE_LENGTH || Character.isWhitespace(c)) {
+                return i;
+            } else {
+                if (checker != null) {
+                    checker.accept(c);
+                }
+                column++;
+            }
+        }
+        // Either empty content, or a non-empty final line
+        return last == 1 || column != 0 ? -1 : last;
+    }
+
     /**
      * The argument string is the base-64 encoding of something. Normalise this
      * so that it doesn't have white space in peculiar places, then break it into
      * lines of 64 characters each.
+     *
+     * <p>
+     * The result is built in a single character array, sized exactly from a first pass
+     * which counts the non-white space characters in the input.
+     * </p>
      * 
      * @param s base-64 encoded string
      * @return normalised string with line breaks
      */
     @Nonnull
     public static String wrapBase64(@Nonnull final String s) {
-        final StringBuilder result = new StringBuilder();
-        final StringBuilder line = new StringBuilder();
-        for (final char c : s.toCharArray()) {
+        final int count = countContent(s, 0, null);
+        if (count == 0) {
+            return "";
+        }
+        final char[] result = new char[wrappedLength(count)];
+        fill(s, result, 0);
+        return new String(result);
+    }
 
-            // Skip over any white space in the input string
-            if (Character.isWhitespace(c)) {
-                continue;
-            }
+    /**
+     * Normalise and wrap base-64 encoded text as {@link #wrapBase64(String)} does, with an additional
+     * line break at the start and at the end, as it is to appear as the content of an element.
+     *
+     * @param s base-64 encoded characters
+     * @param count number of non-white space characters in the input
+     * @return normalised string with line breaks
+     */
+    @Nonnull
+    static String wrapText(@Nonnull final CharSequence s, final int count) {
+        final char[] result = new char[wrappedLength(count) + 2];
+        result[0] = '\n';
+        fill(s, result, 1);
+        result[result.length - 1] = '\n';
+        return new String(result);
+    }
 
-            if (line.length() == 64) {
-                if (result.length() != 0) {
-                    result.append('\n');
+    /**
+     * Count the non-white space characters in a character sequence.
+     *
+     * <p>
+     * The checker is only fed the characters from the given position on, so that each character is checked
+     * once when this scan follows {@link #scanContent(Element, Base64Checker)}.
+     * </p>
+     *
+     * @param s base-64 encoded characters
+     * @param checked position before which the characters have already been fed to the checker
+     * @param checker checker to be fed the remaining non-white space characters, or <code>null</code>
+     * @return the number of non-white space characters
+     */
+    static int countContent(@Nonnull final CharSequence s, final int checked, @Nullable final Base64Checker checker) {
+        final int length = s.length();
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                if (checker != null && i >= checked) {
+                    checker.accept(c);
                 }
-                result.append(line);
-                line.setLength(0);
+                count++;
             }
-            line.append(c);
         }
-        if (line.length() != 0) {
-            if (result.length() != 0) {
-                result.append('\n');
+        return count;
+    }
+
+    /**
+     * Get the length of the wrapped form of some characters.
+     *
+     * @param count number of non-white space characters
+     * @return the number of characters in their wrapped form, including line breaks between lines
+     */
+    private static int wrappedLength(final int count) {
+        return count == 0 ? 0 : count + (count - 1) / LINE_LENGTH;
+    }
+
+    /**
+     * Write the wrapped form of a character sequence into a character array.
+     *
+     * @param s base-64 encoded characters
+     * @param dest array to write into, with room for the wrapped form
+     * @param offset position in the array at which to start writing
+     */
+    private static void fill(@Nonnull final CharSequence s, @Nonnull final char[] dest, final int offset) {
+        final int length = s.length();
+        int out = offset;
+        int column = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+
+            // Skip over any white space in the input
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+
+            if (column == LINE_LENGTH) {
+                dest[out++] = '\n';
+                column = 0;
             }
-            result.append(line);
+            dest[out++] = c;
+            column++;
         }
-        return result.toString();
     }
 }
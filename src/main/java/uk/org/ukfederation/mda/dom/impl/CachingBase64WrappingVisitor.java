@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.org.ukfederation.mda.dom.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.w3c.dom.Element;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * {@link Element} visitor which wraps the visited element's text content, sharing a single
+ * {@link String} between all elements with the same content.
+ *
+ * <p>
+ * Wrapped text is cached in a bounded, concurrent cache, indexed by a 64-bit FNV-1a hash of the
+ * content's non-white space characters computed during the scan which counts them. On a cache
+ * hit, the cached text is compared with the content before it is used, so a hash collision can
+ * only cost the wrapping that the cache would have saved.
+ * </p>
+ *
+ * <p>
+ * Identical blobs, such as the signing certificates of entities sharing a hosting provider,
+ * are then wrapped once, and a single {@link String} holds their text in every document.
+ * </p>
+ */
+@ThreadSafe
+public class CachingBase64WrappingVisitor extends Base64WrappingVisitor {
+
+    /** FNV-1a 64-bit offset basis. */
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    /** FNV-1a 64-bit prime. */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /** Wrapped element content, indexed by the hash of its non-white space characters. */
+    @Nonnull private final Cache<Long, String> cache;
+
+    /**
+     * Constructor.
+     *
+     * @param maximumSize maximum number of wrapped texts to cache
+     */
+    public CachingBase64WrappingVisitor(final long maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximum cache size must be positive");
+        }
+        cache = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    /**
+     * Get the number of wrapped texts currently cached.
+     *
+     * @return the approximate number of cached texts
+     */
+    public long getCacheSize() {
+        return cache.size();
+    }
+
+    @Override
+    boolean wrapContent(@Nonnull final Element element, @Nullable final Base64Checker checker) {
+        final int checked = scanContent(element, checker);
+        if (checked < 0) {
+            return false;
+        }
+
+        // One scan counts and hashes the non-white space characters, and checks any not already checked
+        final CharSequence content = getContent(element);
+        final int length = content.length();
+        long hash = FNV_OFFSET_BASIS;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = content.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                if (checker != null && i >= checked) {
+                    checker.accept(c);
+                }
+                hash = (hash ^ c) * FNV_PRIME;
+                count++;
+            }
+        }
+
+        final Long key = hash;
+        String newText = cache.getIfPresent(key);
+        if (newText == null || !hasSameContent(newText, content)) {
+            newText = wrapText(content, count);
+            cache.put(key, newText);
+        }
+        element.setTextContent(newText);
+        return true;
+    }
+
+    /**
+     * Determine whether two character sequences have the same non-white space characters.
+     *
+     * @param a the first character sequence
+     * @param b the second character sequence
+     * @return <code>true</code> if the sequences have the same non-white space characters
+     */
+    private static boolean hasSameContent(@Nonnull final CharSequence a, @Nonnull final CharSequence b) {
+        int i = 0;
+        int j = 0;
+        while (true) {
+            while (i < a.length() && Character.isWhitespace(a.charAt(i))) {
+                i++;
+            }
+            while (j < b.length() && Character.isWhitespace(b.charAt(j))) {
+                j++;
+            }
+            if (i == a.length() || j == b.length()) {
+                return i == a.length() && j == b.length();
+            }
+            if (a.charAt(i++) != b.charAt(j++)) {
+                return false;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.org.ukfederation.mda.dom.impl;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.w3c.dom.Text;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * A read-only {@link CharSequence} view of the concatenated data of a list of {@link Text} nodes.
+ *
+ * <p>
+ * The data of each node is read once, when the view is created, and not copied. Access is fastest
+ * when it is sequential.
+ * </p>
+ */
+@NotThreadSafe
+final class TextContentSequence implements CharSequence {
+
+    /** The data of each text node. */
+    @Nonnull @NonnullElements private final String[] segments;
+
+    /** The offset within the sequence of the start of each segment. */
+    @Nonnull private final int[] offsets;
+
+    /** Total length of the sequence. */
+    private final int length;
+
+    /** Index of the segment containing the most recently accessed character. */
+    private int current;
+
+    /**
+     * Constructor.
+     *
+     * @param nodes the text nodes to view
+     */
+    TextContentSequence(@Nonnull @NonnullElements final List<Text> nodes) {
+        segments = new String[nodes.size()];
+        offsets = new int[nodes.size()];
+        int total = 0;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = nodes.get(i).getData();
+            offsets[i] = total;
+            total += segments[i].length();
+        }
+        length = total;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        if (index < offsets[current]) {
+            current = 0;
+        }
+        while (index - offsets[current] >= segments[current].length()) {
+            current++;
+        }
+        return segments[current].charAt(index - offsets[current]);
+    }
+
+    @Override
+    @Nonnull public CharSequence subSequence(final int start, final int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+        final StringBuilder builder = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            builder.append(charAt(i));
+        }
+        return builder;
+    }
+
+    @Override
+    @Nonnull public String toString() {
+        return subSequence(0, length).toString();
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Item metadata indexing the descendant elements of an entity's DOM by name, so that stages
+ * looking for particular elements need not each scan the entity's subtree.
+ *
+ * <p>
+ * The index is built by a single traversal of the entity and records, for each of a given
+ * set of element names, the descendant elements with that name in document order: the same
+ * elements <code>getElementsByTagNameNS</code> would return.
+ * </p>
+ *
+ * <p>
+ * The index refers to the item's DOM and is only valid until elements are added to or removed
+ * from it; changes to text content do not affect it. Stages in this artifact which add or remove
+ * elements call {@link #invalidate(Item)}, and {@link #get(Item, QName...)} removes an index built
+ * for a different DOM, such as one carried over from the original by {@link Item#copy()}, so that
+ * the copy does not keep the original's DOM reachable.
+ * It also checks that each of the elements the caller needs is still within the entity, and
+ * removes the index from the item if any has been detached, so that removals made by stages
+ * from elsewhere are detected. Elements added by such stages can not be detected in this way,
+ * so those stages should be followed by an {@link EntityElementIndexPopulationStage} if later
+ * stages make use of the index.
+ * </p>
+ */
+@Immutable
+public final class EntityElementIndex implements ItemMetadata {
+
+    /** The element which was indexed. */
+    @Nonnull private final Element entity;
+
+    /** The indexed descendant elements, by name. */
+    @Nonnull @NonnullElements @Unmodifiable private final Map<QName, List<Element>> elements;
+
+    /**
+     * Constructor.
+     *
+     * @param element the element, normally an <code>EntityDescriptor</code>, whose descendants are to be indexed
+     * @param names the names of the descendant elements to index
+     */
+    public EntityElementIndex(@Nonnull final Element element, @Nonnull @NonnullElements final Collection<QName> names) {
+        entity = Constraint.isNotNull(element, "element to index may not be null");
+        Constraint.isNotNull(names, "names to index may not be null");
+
+        final QName[] indexed = names.toArray(new QName[0]);
+        final List<List<Element>> found = new ArrayList<>(indexed.length);
+        for (int i = 0; i < indexed.length; i++) {
+            found.add(new ArrayList<>());
+        }
+
+        // Pre-order traversal of the descendants, which gives document order
+        Node node = element.getFirstChild();
+        while (node != null) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                final String localName = node.getLocalName();
+                for (int i = 0; i < indexed.length; i++) {
+                    if (indexed[i].getLocalPart().equals(localName)
+                            && indexed[i].getNamespaceURI().equals(nullToEmpty(node.getNamespaceURI()))) {
+                        found.get(i).add((Element) node);
+                    }
+                }
+                if (node.hasChildNodes()) {
+                    node = node.getFirstChild();
+                    continue;
+                }
+            }
+            while (node != element && node.getNextSibling() == null) {
+                node = node.getParentNode();
+            }
+            node = node == element ? null : node.getNextSibling();
+        }
+
+        final Map<QName, List<Element>> map = new HashMap<>();
+        for (int i = 0; i < indexed.length; i++) {
+            map.put(indexed[i], Collections.unmodifiableList(found.get(i)));
+        }
+        elements = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Map a <code>null</code> namespace URI to the empty string used by {@link QName}.
+     *
+     * @param uri namespace URI, or <code>null</code>
+     * @return the namespace URI, or the empty string
+     */
+    @Nonnull private static String nullToEmpty(@Nullable final String uri) {
+        return uri == null ? "" : uri;
+    }
+
+    /**
+     * Get the element which was indexed.
+     *
+     * @return the indexed element
+     */
+    @Nonnull public Element getEntity() {
+        return entity;
+    }
+
+    /**
+     * Determine whether elements with the given name were indexed.
+     *
+     * @param name the element name
+     * @return <code>true</code> if elements with the name were indexed
+     */
+    public boolean isIndexed(@Nonnull final QName name) {
+        return elements.containsKey(name);
+    }
+
+    /**
+     * Get the descendant elements with the given name.
+     *
+     * @param name the element name, which must have been indexed
+     * @return the descendant elements with the name, in document order
+     */
+    @Nonnull @NonnullElements @Unmodifiable public List<Element> getElements(@Nonnull final QName name) {
+        final List<Element> list = elements.get(name);
+        Constraint.isTrue(list != null, "elements named " + name + " were not indexed");
+        return list;
+    }
+
+    /**
+     * Get a valid index for an item which includes the given element names.
+     *
+     * @param item the item
+     * @param names the element names the caller needs
+     * @return the item's index, or <code>null</code> if it has no valid index including all of the names
+     */
+    @Nullable public static EntityElementIndex get(@Nonnull final Item<Element> item,
+            @Nonnull @NonnullElements final QName... names) {
+        final Element element = item.unwrap();
+        for (final EntityElementIndex index : item.getItemMetadata().get(EntityElementIndex.class)) {
+            if (index.getEntity() != element) {
+                // the index was built for another DOM, such as the one this item was copied from
+                invalidate(item);
+                return null;
+            }
+            if (index.isIndexedAll(names)) {
+                if (!index.isAttachedAll(names)) {
+                    // the DOM has been changed without invalidating the index
+                    invalidate(item);
+                    return null;
+                }
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determine whether all of the indexed elements with the given names are still within the indexed element.
+     *
+     * @param names the element names, all of which must have been indexed
+     * @return <code>true</code> if none of the elements has been detached
+     */
+    private boolean isAttachedAll(@Nonnull @NonnullElements final QName[] names) {
+        for (final QName name : names) {
+            for (final Element indexed : elements.get(name)) {
+                Node node = indexed.getParentNode();
+                while (node != null && node != entity) {
+                    node = node.getParentNode();
+                }
+                if (node == null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determine whether all of the given names were indexed.
+     *
+     * @param names the element names
+     * @return <code>true</code> if all of the names were indexed
+     */
+    private boolean isIndexedAll(@Nonnull @NonnullElements final QName[] names) {
+        for (final QName name : names) {
+            if (!isIndexed(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove any index from an item, because elements have been added to or removed from its DOM.
+     *
+     * @param item the item
+     */
+    public static void invalidate(@Nonnull final Item<Element> item) {
+        invalidate(item.getItemMetadata());
+    }
+
+    /**
+     * Remove any index from an item's metadata, because elements have been added to or removed from its DOM.
+     *
+     * @param metadata the item's metadata
+     */
+    public static void invalidate(@Nonnull final ClassToInstanceMultiMap<ItemMetadata> metadata) {
+        final List<EntityElementIndex> indexes = metadata.get(EntityElementIndex.class);
+        if (!indexes.isEmpty()) {
+            for (final EntityElementIndex index : new ArrayList<>(indexes)) {
+                metadata.remove(index);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.dom.saml.mdui.MDUISupport;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.UKFedLabelSupport;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelIteratingStage;
+
+/**
+ * Stage which attaches a fresh {@link EntityElementIndex} to each item, replacing any existing one.
+ *
+ * <p>Properties:</p>
+ *
+ * <dl>
+ *   <dt>elementNames</dt>
+ *   <dd>
+ *      The names of the elements to index. By default, {@link #DEFAULT_ELEMENT_NAMES}: the elements
+ *      used by the display name and flow constraint stages.
+ *   </dd>
+ * </dl>
+ */
+@ThreadSafe
+public class EntityElementIndexPopulationStage extends AbstractParallelIteratingStage<Element> {
+
+    /** The names of the elements indexed by default. */
+    @Nonnull @NonnullElements @Unmodifiable public static final List<QName> DEFAULT_ELEMENT_NAMES = List.of(
+            new QName(SAMLMetadataSupport.MD_NS, "IDPSSODescriptor"),
+            new QName(SAMLMetadataSupport.MD_NS, "OrganizationDisplayName"),
+            MDUISupport.DISPLAYNAME_NAME,
+            UKFedLabelSupport.UK_FEDERATION_ENABLE_FLOW_NAME,
+            UKFedLabelSupport.UK_FEDERATION_DISABLE_FLOW_NAME);
+
+    /** The names of the elements to index. */
+    @GuardedBy("this") @Nonnull @NonnullElements @Unmodifiable
+    private List<QName> elementNames = DEFAULT_ELEMENT_NAMES;
+
+    /**
+     * Get the names of the elements to index.
+     *
+     * @return the element names
+     */
+    @Nonnull @NonnullElements @Unmodifiable
+    public final synchronized List<QName> getElementNames() {
+        return elementNames;
+    }
+
+    /**
+     * Set the names of the elements to index.
+     *
+     * @param names the element names
+     */
+    public final synchronized void setElementNames(@Nonnull @NonnullElements final Collection<QName> names) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        elementNames = List.copyOf(Constraint.isNotNull(names, "element names can not be null"));
+    }
+
+    @Override
+    protected void doExecute(@Nonnull final Item<Element> item) throws StageProcessingException {
+        EntityElementIndex.invalidate(item);
+        item.getItemMetadata().put(new EntityElementIndex(item.unwrap(), getElementNames()));
+    }
+
+    @Override
+    protected void doDestroy() {
+        elementNames = null;
+
+        super.doDestroy();
+    }
+
+}
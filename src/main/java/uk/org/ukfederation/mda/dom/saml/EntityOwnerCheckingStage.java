@@ -27,14 +27,15 @@ import net.shibboleth.metadata.ErrorStatus;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemMetadata;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
-import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.xml.AttributeSupport;
 import net.shibboleth.utilities.java.support.xml.ElementSupport;
 import uk.org.ukfederation.mda.dom.saml.ukfedlabel.UKFedLabelSupport;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelIteratingStage;
 import uk.org.ukfederation.members.Members;
 import uk.org.ukfederation.members.jaxb.MemberElement;
 
@@ -42,7 +43,7 @@ import uk.org.ukfederation.members.jaxb.MemberElement;
  * Stage to check that each entity in a collection is owned by a UK federation member.
  */
 @ThreadSafe
-public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
+public class EntityOwnerCheckingStage extends AbstractParallelIteratingStage<Element> {
 
     /** Information about members of the UK federation. */
     @GuardedBy("this") @NonnullAfterInit private Members members;
@@ -63,6 +64,8 @@ public class EntityOwnerCheckingStage extends AbstractIteratingStage<Element> {
      * @param m the members API object to use
      */
     public final synchronized void setMembers(@Nonnull final Members m) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
         members = m;
     }
     
@@ -33,19 +33,20 @@ import net.shibboleth.metadata.dom.Container;
 import net.shibboleth.metadata.dom.ElementMaker;
 import net.shibboleth.metadata.dom.ElementMatcher;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
-import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.xml.AttributeSupport;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelIteratingStage;
 import uk.org.ukfederation.members.Members;
 
 /**
  * Stage to inject scope lists into IdP entities from the members.xml file.
  */
 @ThreadSafe
-public class ScopeInjectionStage extends AbstractIteratingStage<Element> {
+public class ScopeInjectionStage extends AbstractParallelIteratingStage<Element> {
 
     /** Element matcher for the <code>Extensions</code> element. */
     private static final Predicate<Element> EXTENSIONS_MATCHER =
@@ -97,6 +98,8 @@ public class ScopeInjectionStage extends AbstractIteratingStage<Element> {
      * @param m the members API object to use
      */
     public final synchronized void setMembers(@Nonnull final Members m) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
         members = m;
     }
     
@@ -134,6 +137,9 @@ public class ScopeInjectionStage extends AbstractIteratingStage<Element> {
 
         log.debug("entity {} has {} pushed scopes", entityID, pushedScopes.size());
 
+        // We will be adding elements, so any element index will no longer be valid
+        EntityElementIndex.invalidate(metadata);
+
         // Make a container for the EntityDescriptor
         final Container entityContainer = new Container(entity);
         
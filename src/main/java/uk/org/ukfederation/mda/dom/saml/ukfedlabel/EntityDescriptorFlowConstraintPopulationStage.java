@@ -14,44 +14,128 @@
 
 package uk.org.ukfederation.mda.dom.saml.ukfedlabel;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.namespace.QName;
 
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
-import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.xml.ElementSupport;
+import uk.org.ukfederation.mda.dom.saml.EntityElementIndex;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelIteratingStage;
 
 /**
  * A stage which extracts flow constraint extensions from each entity in the collection,
  * then adds {@link EnableFlow} and {@link DisableFlow} instances to the item metadata.
+ *
+ * <p>
+ * If a {@link FlowRegistry} is supplied, a {@link FlowMask} summarising those constraints over
+ * the registered flows is also added to each item.
+ * </p>
  */
 @ThreadSafe
-public class EntityDescriptorFlowConstraintPopulationStage extends AbstractIteratingStage<Element> {
+public class EntityDescriptorFlowConstraintPopulationStage extends AbstractParallelIteratingStage<Element> {
 
-    @Override
-    protected void doExecute(@Nonnull final Item<Element> item) throws StageProcessingException {
+    /** Registry of flows to summarise constraints over, or <code>null</code>. */
+    @GuardedBy("this") @Nullable private FlowRegistry flowRegistry;
+
+    /**
+     * Get the registry of flows to summarise constraints over.
+     *
+     * @return the flow registry, or <code>null</code>
+     */
+    @Nullable public final synchronized FlowRegistry getFlowRegistry() {
+        return flowRegistry;
+    }
+
+    /**
+     * Set the registry of flows to summarise constraints over.
+     *
+     * @param registry the flow registry, or <code>null</code> for no {@link FlowMask}
+     */
+    public final synchronized void setFlowRegistry(@Nullable final FlowRegistry registry) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        flowRegistry = registry;
+    }
+
+    /**
+     * Get the extension elements with a given name from an entity's own <code>Extensions</code> element.
+     *
+     * <p>
+     * The item's {@link EntityElementIndex} is used if it has one covering the name.
+     * </p>
+     *
+     * @param item the item representing the entity
+     * @param name the name of the extension elements
+     * @return the extension elements, in document order
+     */
+    @Nonnull @NonnullElements private List<Element> getDescriptorExtensionList(@Nonnull final Item<Element> item,
+            @Nonnull final QName name) {
         final Element entity = item.unwrap();
+        final EntityElementIndex index = EntityElementIndex.get(item, name);
+        if (index == null) {
+            return SAMLMetadataSupport.getDescriptorExtensionList(entity, name);
+        }
+
+        final List<Element> extensions = new ArrayList<>();
+        for (final Element element : index.getElements(name)) {
+            final Node parent = element.getParentNode();
+            if (parent.getParentNode() == entity && ElementSupport.isElementNamed((Element) parent,
+                    SAMLMetadataSupport.EXTENSIONS_NAME)) {
+                extensions.add(element);
+            }
+        }
+        return extensions;
+    }
 
+    @Override
+    protected void doExecute(@Nonnull final Item<Element> item) throws StageProcessingException {
         // Process EnableFlow extensions
-        final List<Element> enables = SAMLMetadataSupport.getDescriptorExtensionList(entity,
-                UKFedLabelSupport.UK_FEDERATION_ENABLE_FLOW_NAME);
+        final List<Element> enables =
+                getDescriptorExtensionList(item, UKFedLabelSupport.UK_FEDERATION_ENABLE_FLOW_NAME);
+        final List<EnableFlow> enableFlows = new ArrayList<>(enables.size());
         for (final Element enable : enables) {
             final String flowName = enable.getAttribute("flow");
-            item.getItemMetadata().put(new EnableFlow(flowName));
+            final EnableFlow constraint = new EnableFlow(flowName);
+            enableFlows.add(constraint);
+            item.getItemMetadata().put(constraint);
         }
 
         // Process DisableFlow extensions
-        final List<Element> disables = SAMLMetadataSupport.getDescriptorExtensionList(entity,
-                UKFedLabelSupport.UK_FEDERATION_DISABLE_FLOW_NAME);
+        final List<Element> disables =
+                getDescriptorExtensionList(item, UKFedLabelSupport.UK_FEDERATION_DISABLE_FLOW_NAME);
+        final List<DisableFlow> disableFlows = new ArrayList<>(disables.size());
         for (final Element disable : disables) {
             final String flowName = disable.getAttribute("flow");
-            item.getItemMetadata().put(new DisableFlow(flowName));
+            final DisableFlow constraint = new DisableFlow(flowName);
+            disableFlows.add(constraint);
+            item.getItemMetadata().put(constraint);
+        }
+
+        // Summarise the constraints over the registered flows
+        final FlowRegistry registry = getFlowRegistry();
+        if (registry != null) {
+            item.getItemMetadata().put(new FlowMask(registry, enableFlows, disableFlows));
         }
     }
 
+    @Override
+    protected void doDestroy() {
+        flowRegistry = null;
+
+        super.doDestroy();
+    }
+
 }
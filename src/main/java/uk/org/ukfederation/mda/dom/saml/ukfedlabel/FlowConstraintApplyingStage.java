@@ -17,6 +17,7 @@ package uk.org.ukfederation.mda.dom.saml.ukfedlabel;
 import java.util.List;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -28,11 +29,18 @@ import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import uk.org.ukfederation.mda.UKItemIdentificationStrategy;
 
 /**
  * A {@link Stage} to apply flow constraints to entities.
  *
+ * <p>
+ * If a {@link FlowRegistry} is supplied, items carrying a {@link FlowMask} over the same
+ * registry are filtered with a single bit test; other items fall back to examining their
+ * {@link EnableFlow} and {@link DisableFlow} constraints.
+ * </p>
+ *
  * @param <T> type of item being processed
  */
 @ThreadSafe
@@ -46,7 +54,7 @@ public class FlowConstraintApplyingStage<T> extends AbstractFilteringStage<T> {
      * in principle we might extend this if we upstream this component.
      * </p>
      */
-    @GuardedBy("this") private final ItemIdentificationStrategy<T> idStrategy = new UKItemIdentificationStrategy<>();
+    @Nonnull private final ItemIdentificationStrategy<T> idStrategy = new UKItemIdentificationStrategy<>();
     
     /**
      * The name of the flow this stage is controlling.
@@ -54,14 +62,11 @@ public class FlowConstraintApplyingStage<T> extends AbstractFilteringStage<T> {
     @GuardedBy("this") @NonnullAfterInit
     private String flowName;
 
-    /**
-     * Returns the designated item identification strategy.
-     *
-     * @return the item identification strategy
-     */
-    @Nonnull private final synchronized ItemIdentificationStrategy<T> getIdStrategy() {
-        return idStrategy;
-    }
+    /** Registry of flows containing this stage's flow, or <code>null</code>. */
+    @GuardedBy("this") @Nullable private FlowRegistry flowRegistry;
+
+    /** Index of this stage's flow in the {@link #flowRegistry}, computed on initialization. */
+    @GuardedBy("this") private int flowIndex = -1;
 
     /**
      * Get the name of the flow this stage is controlling.
@@ -79,24 +84,73 @@ public class FlowConstraintApplyingStage<T> extends AbstractFilteringStage<T> {
      * @param newFlowName name of the flow to control
      */
     public final synchronized void setFlowName(@Nonnull final String newFlowName) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
         flowName = newFlowName;
     }
 
+    /**
+     * Get the registry of flows containing this stage's flow.
+     *
+     * @return the flow registry, or <code>null</code>
+     */
+    @Nullable public final synchronized FlowRegistry getFlowRegistry() {
+        return flowRegistry;
+    }
+
+    /**
+     * Set the registry of flows containing this stage's flow.
+     *
+     * <p>
+     * This should be the same registry as supplied to the
+     * {@link EntityDescriptorFlowConstraintPopulationStage} which populated the items.
+     * </p>
+     *
+     * @param registry the flow registry, or <code>null</code> to ignore any {@link FlowMask}
+     */
+    public final synchronized void setFlowRegistry(@Nullable final FlowRegistry registry) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        flowRegistry = registry;
+    }
+
     @Override
     protected boolean doExecute(@Nonnull @NonnullElements final Item<T> item) throws StageProcessingException {
+        final String ourFlowName;
+        final FlowRegistry registry;
+        final int ourFlowIndex;
+        synchronized (this) {
+            ourFlowName = flowName;
+            registry = flowRegistry;
+            ourFlowIndex = flowIndex;
+        }
+
+        // Use the item's flow mask if it was computed over our registry
+        if (registry != null) {
+            final List<FlowMask> masks = item.getItemMetadata().get(FlowMask.class);
+            if (masks.size() == 1 && masks.get(0).getRegistry() == registry) {
+                final FlowMask mask = masks.get(0);
+                if (mask.isConflicting()) {
+                    throw new StageProcessingException("item " + idStrategy.getItemIdentifier(item)
+                        + " has both enables and disables");
+                }
+                return mask.isPreserved(ourFlowIndex);
+            }
+        }
+
         final List<EnableFlow> enables = item.getItemMetadata().get(EnableFlow.class);
         final List<DisableFlow> disables = item.getItemMetadata().get(DisableFlow.class);
         
         // Can't have both enables and disables
         if (!enables.isEmpty() && !disables.isEmpty()) {
-            throw new StageProcessingException("item " + getIdStrategy().getItemIdentifier(item)
+            throw new StageProcessingException("item " + idStrategy.getItemIdentifier(item)
                 + " has both enables and disables");
         }
         
         // Process enables, if present
         if (!enables.isEmpty()) {
             for (final EnableFlow enable : enables) {
-                if (getFlowName().equals(enable.getFlowName())) {
+                if (ourFlowName.equals(enable.getFlowName())) {
                     return true;
                 }
             }
@@ -107,7 +161,7 @@ public class FlowConstraintApplyingStage<T> extends AbstractFilteringStage<T> {
         // Process disables, if present
         if (!disables.isEmpty()) {
             for (final DisableFlow disable : disables) {
-                if (getFlowName().equals(disable.getFlowName())) {
+                if (ourFlowName.equals(disable.getFlowName())) {
                     return false;
                 }
             }
@@ -126,6 +180,13 @@ public class FlowConstraintApplyingStage<T> extends AbstractFilteringStage<T> {
         if (flowName == null) {
             throw new ComponentInitializationException("flowName must not be null");
         }
+
+        if (flowRegistry != null) {
+            flowIndex = flowRegistry.getIndex(flowName);
+            if (flowIndex < 0) {
+                throw new ComponentInitializationException("flow " + flowName + " is not in the flow registry");
+            }
+        }
     }
 
 }
@@ -0,0 +1,284 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml.ukfedlabel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemIdentificationStrategy;
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.Pipeline;
+import net.shibboleth.metadata.pipeline.PipelineProcessingException;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import uk.org.ukfederation.mda.UKItemIdentificationStrategy;
+
+/**
+ * A stage which divides a collection of items between a number of flows in a single pass,
+ * executing a separate {@link Pipeline} on each flow's collection.
+ *
+ * <p>
+ * Each flow's collection contains the items which a {@link FlowConstraintApplyingStage}
+ * for that flow would preserve: items with {@link EnableFlow} metadata are included only in the
+ * flows they enable, items with {@link DisableFlow} metadata are included in all flows except the
+ * ones they disable, and items with neither are included in all flows. As with
+ * {@link FlowConstraintApplyingStage}, an item with both is an error.
+ * </p>
+ *
+ * <p>
+ * The collection given to the stage is not modified. An item without any flow constraints is
+ * the same object in each flow's collection, so the flow pipelines should not modify such items.
+ * Each flow after the first to include an item which does have flow constraints receives its
+ * own copy of it.
+ * </p>
+ *
+ * <p>Properties:</p>
+ *
+ * <dl>
+ *   <dt>flowPipelines</dt>
+ *   <dd>
+ *      A {@link Map} from flow names to the {@link Pipeline}s to execute on each flow's collection.
+ *      The pipelines are executed in the order of the map's entries. Required.
+ *   </dd>
+ *
+ *   <dt>flowRegistry</dt>
+ *   <dd>
+ *      A {@link FlowRegistry} containing all of the flows. Items carrying a {@link FlowMask}
+ *      over this registry are assigned to flows by bit tests. Optional.
+ *   </dd>
+ * </dl>
+ *
+ * @param <T> type of item being processed
+ */
+@ThreadSafe
+public class FlowDemultiplexerStage<T> extends AbstractStage<T> {
+
+    /** Item identification strategy to use if we need to throw errors. */
+    @Nonnull private final ItemIdentificationStrategy<T> idStrategy = new UKItemIdentificationStrategy<>();
+
+    /** Pipelines to execute, indexed by flow name. */
+    @GuardedBy("this") @Nonnull @NonnullElements @Unmodifiable
+    private Map<String, Pipeline<T>> flowPipelines = Collections.emptyMap();
+
+    /** Registry of flows containing all of the flows, or <code>null</code>. */
+    @GuardedBy("this") @Nullable private FlowRegistry flowRegistry;
+
+    /** Registry index of each flow, in the order of {@link #flowPipelines}, computed by {@link #doInitialize()}. */
+    @GuardedBy("this") @Nullable private int[] flowIndexes;
+
+    /**
+     * Get the pipelines to execute, indexed by flow name.
+     *
+     * @return the pipelines to execute
+     */
+    @Nonnull @NonnullElements @Unmodifiable
+    public final synchronized Map<String, Pipeline<T>> getFlowPipelines() {
+        return flowPipelines;
+    }
+
+    /**
+     * Set the pipelines to execute, indexed by flow name.
+     *
+     * @param pipelines the pipelines to execute
+     */
+    public final synchronized void setFlowPipelines(
+            @Nonnull @NonnullElements final Map<String, Pipeline<T>> pipelines) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isNotNull(pipelines, "flow pipelines can not be null");
+        flowPipelines = Collections.unmodifiableMap(new LinkedHashMap<>(pipelines));
+    }
+
+    /**
+     * Get the registry of flows containing all of the flows.
+     *
+     * @return the flow registry, or <code>null</code>
+     */
+    @Nullable public final synchronized FlowRegistry getFlowRegistry() {
+        return flowRegistry;
+    }
+
+    /**
+     * Set the registry of flows containing all of the flows.
+     *
+     * @param registry the flow registry, or <code>null</code> to ignore any {@link FlowMask}
+     */
+    public final synchronized void setFlowRegistry(@Nullable final FlowRegistry registry) {
+        ComponentSupport.ifDestroyedThrowDestroyedComponentException(this);
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        flowRegistry = registry;
+    }
+
+    /**
+     * Decide which flows an item should be included in, using its {@link FlowMask} if that was
+     * computed over the given registry.
+     *
+     * @param item the item
+     * @param flows the flow names
+     * @param registry the flow registry, or <code>null</code>
+     * @param indexes the registry index of each flow, or <code>null</code>
+     * @param named scratch set for flow names
+     * @return whether the item should be included in each flow
+     * @throws StageProcessingException if the item has both enables and disables
+     */
+    private boolean[] selectFlows(@Nonnull final Item<T> item, @Nonnull @NonnullElements final List<String> flows,
+            @Nullable final FlowRegistry registry, @Nullable final int[] indexes, @Nonnull final Set<String> named)
+                    throws StageProcessingException {
+        final boolean[] selected = new boolean[flows.size()];
+
+        if (registry != null) {
+            final List<FlowMask> masks = item.getItemMetadata().get(FlowMask.class);
+            if (masks.size() == 1 && masks.get(0).getRegistry() == registry) {
+                final FlowMask mask = masks.get(0);
+                if (mask.isConflicting()) {
+                    throw new StageProcessingException("item " + idStrategy.getItemIdentifier(item)
+                        + " has both enables and disables");
+                }
+                for (int i = 0; i < selected.length; i++) {
+                    selected[i] = mask.isPreserved(indexes[i]);
+                }
+                return selected;
+            }
+        }
+
+        final List<EnableFlow> enables = item.getItemMetadata().get(EnableFlow.class);
+        final List<DisableFlow> disables = item.getItemMetadata().get(DisableFlow.class);
+
+        // Can't have both enables and disables
+        if (!enables.isEmpty() && !disables.isEmpty()) {
+            throw new StageProcessingException("item " + idStrategy.getItemIdentifier(item)
+                + " has both enables and disables");
+        }
+
+        // Items enabled for particular flows are included only in those; disabled ones in all others.
+        named.clear();
+        for (final FlowConstraint constraint : enables.isEmpty() ? disables : enables) {
+            named.add(constraint.getFlowName());
+        }
+        final boolean includeNamed = !enables.isEmpty();
+        for (int i = 0; i < selected.length; i++) {
+            selected[i] = named.contains(flows.get(i)) == includeNamed;
+        }
+        return selected;
+    }
+
+    /**
+     * Determine whether an item has any flow constraints, either directly or summarised in a {@link FlowMask}.
+     *
+     * @param item the item
+     * @return <code>true</code> if the item has any flow constraints
+     */
+    private static boolean isConstrained(@Nonnull final Item<?> item) {
+        final ClassToInstanceMultiMap<ItemMetadata> metadata = item.getItemMetadata();
+        if (!metadata.get(EnableFlow.class).isEmpty() || !metadata.get(DisableFlow.class).isEmpty()) {
+            return true;
+        }
+        for (final FlowMask mask : metadata.get(FlowMask.class)) {
+            if (mask.isConstrained()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items) throws StageProcessingException {
+        final Map<String, Pipeline<T>> pipelines = getFlowPipelines();
+
+        // One output collection per flow, in the same order as the pipelines.
+        final List<String> flows = new ArrayList<>(pipelines.keySet());
+        final List<List<Item<T>>> outputs = new ArrayList<>(flows.size());
+        for (int i = 0; i < flows.size(); i++) {
+            outputs.add(new ArrayList<>(items.size()));
+        }
+
+        final FlowRegistry registry;
+        final int[] indexes;
+        synchronized (this) {
+            registry = flowRegistry;
+            indexes = flowIndexes;
+        }
+
+        final Set<String> named = new HashSet<>();
+        for (final Item<T> item : items) {
+            final boolean[] selected = selectFlows(item, flows, registry, indexes, named);
+            // Items without flow constraints are shared; others are copied for each further flow.
+            final boolean copy = isConstrained(item);
+            boolean used = false;
+            for (int i = 0; i < selected.length; i++) {
+                if (selected[i]) {
+                    outputs.get(i).add(used && copy ? item.copy() : item);
+                    used = true;
+                }
+            }
+        }
+
+        for (int i = 0; i < flows.size(); i++) {
+            try {
+                pipelines.get(flows.get(i)).execute(outputs.get(i));
+            } catch (final PipelineProcessingException e) {
+                throw new StageProcessingException("pipeline for flow " + flows.get(i) + " failed", e);
+            }
+        }
+    }
+
+    @Override
+    protected void doDestroy() {
+        flowPipelines = null;
+        flowRegistry = null;
+        flowIndexes = null;
+
+        super.doDestroy();
+    }
+
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+
+        if (flowPipelines.isEmpty()) {
+            throw new ComponentInitializationException("flowPipelines must not be empty");
+        }
+
+        if (flowRegistry != null) {
+            flowIndexes = new int[flowPipelines.size()];
+            int i = 0;
+            for (final String flow : flowPipelines.keySet()) {
+                flowIndexes[i] = flowRegistry.getIndex(flow);
+                if (flowIndexes[i] < 0) {
+                    throw new ComponentInitializationException("flow " + flow + " is not in the flow registry");
+                }
+                i++;
+            }
+        }
+    }
+
+}
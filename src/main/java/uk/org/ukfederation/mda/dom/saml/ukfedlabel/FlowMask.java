@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml.ukfedlabel;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * Summary of an item's {@link EnableFlow} and {@link DisableFlow} constraints, expressed
+ * as bit masks over the flows in a {@link FlowRegistry}.
+ *
+ * <p>
+ * Constraints naming flows outside the registry do not set any bit, but are still
+ * taken into account: an item enabled only for unregistered flows is not preserved by any
+ * registered flow.
+ * </p>
+ */
+@Immutable
+public final class FlowMask implements ItemMetadata {
+
+    /** The registry the masks are expressed over. */
+    @Nonnull private final FlowRegistry registry;
+
+    /** Bits set for the registered flows the item is enabled for. */
+    private final long enabled;
+
+    /** Bits set for the registered flows the item is disabled for. */
+    private final long disabled;
+
+    /** Whether the item has any {@link EnableFlow} constraints. */
+    private final boolean enabling;
+
+    /** Whether the item has any {@link DisableFlow} constraints. */
+    private final boolean disabling;
+
+    /**
+     * Constructor.
+     *
+     * @param flowRegistry the registry to express the constraints over
+     * @param enables the item's {@link EnableFlow} constraints
+     * @param disables the item's {@link DisableFlow} constraints
+     */
+    public FlowMask(@Nonnull final FlowRegistry flowRegistry,
+            @Nonnull @NonnullElements final List<EnableFlow> enables,
+            @Nonnull @NonnullElements final List<DisableFlow> disables) {
+        registry = flowRegistry;
+        enabled = bits(flowRegistry, enables);
+        disabled = bits(flowRegistry, disables);
+        enabling = !enables.isEmpty();
+        disabling = !disables.isEmpty();
+    }
+
+    /**
+     * Compute the bit mask for a list of constraints.
+     *
+     * @param flowRegistry the registry to express the constraints over
+     * @param constraints the constraints
+     * @return bit mask with a bit set for each registered flow named by a constraint
+     */
+    private static long bits(@Nonnull final FlowRegistry flowRegistry,
+            @Nonnull @NonnullElements final List<? extends FlowConstraint> constraints) {
+        long bits = 0;
+        for (final FlowConstraint constraint : constraints) {
+            final int index = flowRegistry.getIndex(constraint.getFlowName());
+            if (index >= 0) {
+                bits |= 1L << index;
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Get the registry the masks are expressed over.
+     *
+     * @return the registry
+     */
+    @Nonnull public FlowRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Get the bit mask of registered flows the item is enabled for.
+     *
+     * @return the bit mask, with bit <code>n</code> representing the flow with index <code>n</code>
+     */
+    public long getEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Get the bit mask of registered flows the item is disabled for.
+     *
+     * @return the bit mask, with bit <code>n</code> representing the flow with index <code>n</code>
+     */
+    public long getDisabled() {
+        return disabled;
+    }
+
+    /**
+     * Determine whether the item has both {@link EnableFlow} and {@link DisableFlow} constraints,
+     * which is an error.
+     *
+     * @return <code>true</code> if the item has both kinds of constraint
+     */
+    public boolean isConflicting() {
+        return enabling && disabling;
+    }
+
+    /**
+     * Determine whether the item has any {@link EnableFlow} or {@link DisableFlow} constraints.
+     *
+     * @return <code>true</code> if the item has any flow constraints
+     */
+    public boolean isConstrained() {
+        return enabling || disabling;
+    }
+
+    /**
+     * Determine whether the item should be preserved by a flow, following the same rules
+     * as {@link FlowConstraintApplyingStage}.
+     *
+     * @param index the registry index of the flow
+     * @return <code>true</code> if the item should be preserved by the flow
+     */
+    public boolean isPreserved(final int index) {
+        final long bit = 1L << index;
+        if (enabling) {
+            return (enabled & bit) != 0;
+        }
+        return (disabled & bit) == 0;
+    }
+
+}
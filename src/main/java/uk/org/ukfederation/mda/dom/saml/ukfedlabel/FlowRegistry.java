@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml.ukfedlabel;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.annotation.constraint.Unmodifiable;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A fixed set of flow names, each assigned a small integer index.
+ *
+ * <p>
+ * Given a registry, {@link EntityDescriptorFlowConstraintPopulationStage} summarises each entity's
+ * flow constraints as a {@link FlowMask}, and stages using the same registry can then decide whether
+ * an item belongs to a flow with a single bit test.
+ * </p>
+ *
+ * <p>
+ * Flow names are indexed in the order given, and at most {@link #MAX_FLOWS} flows can be registered.
+ * </p>
+ */
+@Immutable
+public class FlowRegistry {
+
+    /** Maximum number of flows in a registry. */
+    public static final int MAX_FLOWS = Long.SIZE;
+
+    /** The registered flow names, in index order. */
+    @Nonnull @NonnullElements @Unmodifiable private final List<String> flowNames;
+
+    /** The index of each registered flow name. */
+    @Nonnull @NonnullElements private final Map<String, Integer> indexes;
+
+    /**
+     * Constructor.
+     *
+     * @param names the flow names to register, in index order
+     */
+    public FlowRegistry(@Nonnull @NonnullElements final List<String> names) {
+        flowNames = List.copyOf(Constraint.isNotNull(names, "flow names may not be null"));
+        Constraint.isTrue(flowNames.size() <= MAX_FLOWS, "at most " + MAX_FLOWS + " flows may be registered");
+        indexes = new HashMap<>();
+        for (final String name : flowNames) {
+            Constraint.isTrue(indexes.put(name, indexes.size()) == null, "flow " + name + " registered twice");
+        }
+    }
+
+    /**
+     * Get the registered flow names, in index order.
+     *
+     * @return the registered flow names
+     */
+    @Nonnull @NonnullElements @Unmodifiable public List<String> getFlowNames() {
+        return flowNames;
+    }
+
+    /**
+     * Get the index of a flow name.
+     *
+     * @param flowName the flow name to look up
+     * @return the index of the flow, or -1 if it is not registered
+     */
+    public int getIndex(@Nonnull final String flowName) {
+        final Integer index = indexes.get(flowName);
+        return index == null ? -1 : index;
+    }
+
+}
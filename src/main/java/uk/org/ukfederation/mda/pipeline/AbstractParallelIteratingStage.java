@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.pipeline;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.pipeline.AbstractIteratingStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * An {@link AbstractIteratingStage} which can optionally process its items in parallel.
+ *
+ * <p>
+ * If an {@link ExecutorService} (for example, a {@link java.util.concurrent.ForkJoinPool}) is supplied,
+ * each item is processed as a separate task on that executor. Otherwise, the items are processed one
+ * at a time on the calling thread, exactly as by {@link AbstractIteratingStage}.
+ * </p>
+ *
+ * <p>
+ * In parallel mode, the collection is not modified and each item's metadata is only changed by the task
+ * processing that item, so the metadata added to each item is the same as in sequential mode. If the
+ * processing of any item throws an exception, the exception thrown for the earliest such item in the
+ * collection is propagated and any tasks which have not yet completed are cancelled. Some items after
+ * the failing one may already have been processed.
+ * </p>
+ *
+ * <p>
+ * Subclasses must be able to process different items concurrently. In particular, items processed
+ * in parallel should not share a DOM document. The executor is not shut down by this stage.
+ * </p>
+ *
+ * @param <T> type of item being processed
+ */
+@ThreadSafe
+public abstract class AbstractParallelIteratingStage<T> extends AbstractIteratingStage<T> {
+
+    /** Executor on which to process items, or <code>null</code> to process them sequentially. */
+    @GuardedBy("this") @Nullable private ExecutorService executorService;
+
+    /**
+     * Get the executor on which items are processed.
+     *
+     * @return the executor, or <code>null</code> if items are processed sequentially
+     */
+    @Nullable public final synchronized ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * Set the executor on which items are processed.
+     *
+     * @param executor the executor to use, or <code>null</code> to process items sequentially
+     */
+    public final synchronized void setExecutorService(@Nullable final ExecutorService executor) {
+        executorService = executor;
+    }
+
+    @Override
+    protected void doExecute(@Nonnull @NonnullElements final List<Item<T>> items) throws StageProcessingException {
+        final ExecutorService executor = getExecutorService();
+        if (executor == null || items.size() < 2) {
+            super.doExecute(items);
+            return;
+        }
+
+        ParallelSupport.map(executor, items, item -> {
+            doExecute(item);
+            return null;
+        });
+    }
+
+    @Override
+    protected void doDestroy() {
+        executorService = null;
+
+        super.doDestroy();
+    }
+
+}
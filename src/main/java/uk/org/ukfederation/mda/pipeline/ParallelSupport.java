@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+
+/**
+ * Helper methods for stages which process parts of their work in parallel.
+ */
+@ThreadSafe
+public final class ParallelSupport {
+
+    /**
+     * A task to be applied to each of a list of inputs.
+     *
+     * @param <T> type of the inputs
+     * @param <R> type of the results
+     */
+    @FunctionalInterface
+    public interface Task<T, R> {
+
+        /**
+         * Apply the task to an input.
+         *
+         * @param input the input to process
+         * @return the result of processing the input
+         * @throws StageProcessingException if the input cannot be processed
+         */
+        R apply(@Nonnull T input) throws StageProcessingException;
+    }
+
+    /** Constructor. */
+    private ParallelSupport() {
+    }
+
+    /**
+     * Apply a task to each of a list of inputs, returning the results in the order of the inputs.
+     *
+     * <p>
+     * If an {@link ExecutorService} is supplied and there is more than one input, the task is applied
+     * to each input as a separate task on that executor. Otherwise, it is applied to each input in turn
+     * on the calling thread.
+     * </p>
+     *
+     * <p>
+     * If the task throws an exception for any input, the exception thrown for the earliest such input
+     * is propagated and any tasks which have not yet completed are cancelled. The task may already have
+     * been applied to some inputs after the failing one.
+     * </p>
+     *
+     * @param <T> type of the inputs
+     * @param <R> type of the results
+     * @param executor the executor to use, or <code>null</code> to process the inputs sequentially
+     * @param inputs the inputs to process
+     * @param task the task to apply to each input
+     * @return the results of the task, in the order of the inputs
+     * @throws StageProcessingException if the task throws one, or if interrupted while waiting
+     */
+    @Nonnull public static <T, R> List<R> map(@Nullable final ExecutorService executor,
+            @Nonnull @NonnullElements final List<T> inputs, @Nonnull final Task<T, R> task)
+            throws StageProcessingException {
+        final List<R> results = new ArrayList<>(inputs.size());
+        if (executor == null || inputs.size() < 2) {
+            for (final T input : inputs) {
+                results.add(task.apply(input));
+            }
+            return results;
+        }
+
+        final List<Future<R>> futures = new ArrayList<>(inputs.size());
+        try {
+            for (final T input : inputs) {
+                futures.add(executor.submit(() -> task.apply(input)));
+            }
+
+            // Waiting in input order means that the earliest failure is the one reported.
+            for (final Future<R> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof StageProcessingException) {
+                throw (StageProcessingException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new StageProcessingException(cause);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StageProcessingException("interrupted while processing items", e);
+        } finally {
+            // Has no effect on tasks which have already completed.
+            for (final Future<R> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package uk.org.ukfederation.mda;
+
+import java.text.MessageFormat;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class DiscoveryNameTemplateTest {
+
+    /** Patterns which should format exactly as {@link MessageFormat} does. */
+    private static final String[] PATTERNS = {
+        "[{1}] {0}",
+        "{0} (from {1})",
+        "{0}",
+        "no arguments",
+        "",
+        "{1}{0}{1}",
+        "'{0}' {0}",
+        "it''s {1}: {0}",
+        "'it''s' {0}",
+        "x } y {0}",
+        "'abc {1}",
+        "{2} {0}",
+        "{01} {0,}",
+    };
+
+    @Test
+    public void testMatchesMessageFormat() {
+        for (final String pattern : PATTERNS) {
+            final String expected = new MessageFormat(pattern).format(new Object[] {"Example", "UK"});
+            Assert.assertEquals(DiscoveryNameTemplate.compile(pattern).format("Example", "UK"), expected, pattern);
+        }
+    }
+
+    @Test
+    public void testBind() {
+        for (final String pattern : PATTERNS) {
+            final String expected = new MessageFormat(pattern).format(new Object[] {"Example", "UK"});
+            final DiscoveryNameTemplate bound = DiscoveryNameTemplate.compile(pattern).bind(1, "UK");
+            Assert.assertEquals(bound.format("Example"), expected, pattern);
+        }
+        Assert.assertEquals(DiscoveryNameTemplate.compile("[{1}] {0}").bind(0, "Example").format(), "[{1}] Example");
+    }
+
+    @Test
+    public void testInvalid() {
+        for (final String pattern : new String[] {"{0", "{x}", "{-1}", "{}", "{0,number}", "{0,choice,0#none}"}) {
+            try {
+                DiscoveryNameTemplate.compile(pattern);
+                Assert.fail("pattern should have been rejected: " + pattern);
+            } catch (final IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+}
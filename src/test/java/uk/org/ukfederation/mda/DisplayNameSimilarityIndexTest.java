@@ -0,0 +1,102 @@
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class DisplayNameSimilarityIndexTest {
+
+    /** Trigrams of a name, computed the obvious way. */
+    private Set<String> trigrams(final String name) {
+        final String padded = " " + name + " ";
+        final Set<String> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            trigrams.add(padded.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    private double similarity(final String a, final String b) {
+        final Set<String> ta = trigrams(a);
+        final Set<String> tb = trigrams(b);
+        final Set<String> intersection = new HashSet<>(ta);
+        intersection.retainAll(tb);
+        return (double) intersection.size() / (ta.size() + tb.size() - intersection.size());
+    }
+
+    private List<String> pairs(final DisplayNameSimilarityIndex index, final double threshold) {
+        final List<String> pairs = new ArrayList<>();
+        for (final int[] pair : index.findSimilarPairs(threshold)) {
+            pairs.add(index.getName(pair[0]) + "|" + index.getName(pair[1]));
+        }
+        return pairs;
+    }
+
+    @Test
+    public void testAdd() {
+        final DisplayNameSimilarityIndex index = new DisplayNameSimilarityIndex();
+        Assert.assertEquals(index.add("example university"), 0);
+        Assert.assertEquals(index.add("university of exampleton"), 1);
+        Assert.assertEquals(index.add("example university"), 0);
+        Assert.assertEquals(index.size(), 2);
+        Assert.assertEquals(index.getName(1), "university of exampleton");
+    }
+
+    @Test
+    public void testFindSimilarPairs() {
+        final DisplayNameSimilarityIndex index = new DisplayNameSimilarityIndex();
+        index.add("university of exampleton");
+        index.add("university of oxford");
+        index.add("univ. of exampleton");
+        index.add("exampleton university");
+        index.add("");
+        index.add("x");
+
+        Assert.assertEquals(pairs(index, 0.55), List.of(
+                "university of exampleton|univ. of exampleton",
+                "university of exampleton|exampleton university"));
+        Assert.assertEquals(pairs(index, 0.75), List.of("university of exampleton|exampleton university"));
+        Assert.assertEquals(pairs(index, 1.0), List.of());
+    }
+
+    /**
+     * The index should find exactly the pairs an exhaustive comparison would.
+     */
+    @Test
+    public void testMatchesExhaustive() {
+        final String[] words = {"university", "univ.", "of", "college", "exampleton", "examplefield", "royal",
+                "academy", "music", "institute", "the", "london", "school"};
+        final Random random = new Random(42);
+        final DisplayNameSimilarityIndex index = new DisplayNameSimilarityIndex();
+        for (int i = 0; i < 400; i++) {
+            final StringBuilder name = new StringBuilder();
+            final int length = 1 + random.nextInt(4);
+            for (int w = 0; w < length; w++) {
+                if (w > 0) {
+                    name.append(' ');
+                }
+                name.append(words[random.nextInt(words.length)]);
+            }
+            index.add(name.toString());
+        }
+
+        for (final double threshold : new double[] {0.3, 0.5, 0.6, 0.7, 0.9}) {
+            final List<String> expected = new ArrayList<>();
+            for (int b = 0; b < index.size(); b++) {
+                for (int a = 0; a < b; a++) {
+                    if (similarity(index.getName(a), index.getName(b)) >= threshold) {
+                        expected.add(index.getName(a) + "|" + index.getName(b));
+                    }
+                }
+            }
+            Assert.assertFalse(expected.isEmpty());
+            Assert.assertEquals(pairs(index, threshold), expected, "threshold " + threshold);
+        }
+    }
+
+}
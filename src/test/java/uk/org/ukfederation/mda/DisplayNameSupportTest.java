@@ -0,0 +1,85 @@
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import uk.org.ukfederation.mda.dom.saml.EntityElementIndex;
+import uk.org.ukfederation.mda.dom.saml.EntityElementIndexPopulationStage;
+
+public class DisplayNameSupportTest extends BaseDOMTest {
+
+    protected DisplayNameSupportTest() {
+        super(DisplayNameSupport.class);
+    }
+
+    private List<String> texts(final List<Element> elements) {
+        final List<String> texts = new ArrayList<>();
+        for (final Element element : elements) {
+            texts.add(element.getTextContent());
+        }
+        return texts;
+    }
+
+    @Test
+    public void testKey() {
+        // Already in canonical form: no new string
+        final String plain = "example university";
+        Assert.assertSame(DisplayNameSupport.key(plain), plain);
+
+        Assert.assertEquals(DisplayNameSupport.key("Example University"), "example university");
+        Assert.assertEquals(DisplayNameSupport.key("  Example \t\n University  "), "example university");
+        Assert.assertEquals(DisplayNameSupport.key("Example\u00a0University"), "example university");
+
+        // Composed and decomposed forms
+        Assert.assertEquals(DisplayNameSupport.key("Universit\u00e9"), DisplayNameSupport.key("Universite\u0301"));
+
+        // Compatibility forms
+        Assert.assertEquals(DisplayNameSupport.key("\uff25\uff58\uff41\uff4d\uff50\uff4c\uff45"), "example");
+        Assert.assertEquals(DisplayNameSupport.key("\ufb01ne"), "fine");
+
+        // Full case folding
+        Assert.assertEquals(DisplayNameSupport.key("Stra\u00dfe"), DisplayNameSupport.key("STRASSE"));
+    }
+
+    @Test
+    public void testKeyLocaleIndependent() {
+        final Locale saved = Locale.getDefault();
+        try {
+            Locale.setDefault(new Locale("tr", "TR"));
+            Assert.assertEquals(DisplayNameSupport.key("TITLE"), "title");
+        } finally {
+            Locale.setDefault(saved);
+        }
+    }
+
+    @Test
+    public void testStrayNamesIgnored() throws Exception {
+        final Item<Element> item = readDOMItem("stray.xml");
+        Assert.assertEquals(texts(DisplayNameSupport.getDisplayNames(item)),
+                List.of("Example IdP", "Enghraifft IdP", "Example AA"));
+        Assert.assertEquals(texts(DisplayNameSupport.getOrganizationDisplayNames(item)),
+                List.of("Example Organization"));
+    }
+
+    @Test
+    public void testIndexed() throws Exception {
+        final Item<Element> item = readDOMItem("stray.xml");
+        final EntityElementIndex index =
+                new EntityElementIndex(item.unwrap(), EntityElementIndexPopulationStage.DEFAULT_ELEMENT_NAMES);
+        item.getItemMetadata().put(index);
+
+        // The index holds the stray names, but they are still ignored
+        Assert.assertEquals(index.getElements(DisplayNameSupport.MD_ORG_DISPLAY_NAME).size(), 2);
+        Assert.assertEquals(texts(DisplayNameSupport.getDisplayNames(item)),
+                List.of("Example IdP", "Enghraifft IdP", "Example AA"));
+        Assert.assertEquals(texts(DisplayNameSupport.getOrganizationDisplayNames(item)),
+                List.of("Example Organization"));
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+public class EntityDescriptorUKIdPopulationStageTest {
+
+    private Item<Element> makeEntity(final String id) throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final Document document = factory.newDocumentBuilder().newDocument();
+        final Element entity = document.createElementNS(SAMLMetadataSupport.MD_NS, "md:EntityDescriptor");
+        entity.setAttributeNS(null, "entityID", "https://example.org/" + id);
+        if (id != null) {
+            entity.setAttributeNS(null, "ID", id);
+        }
+        document.appendChild(entity);
+        return new DOMElementItem(entity);
+    }
+
+    private List<Item<Element>> makeItems(final String... ids) throws Exception {
+        final List<Item<Element>> items = new ArrayList<>();
+        for (final String id : ids) {
+            items.add(makeEntity(id));
+        }
+        return items;
+    }
+
+    private static void assertUKId(final Item<Element> item, final String id) {
+        Assert.assertTrue(item.getItemMetadata().get(ErrorStatus.class).isEmpty());
+        final List<UKId> ukids = item.getItemMetadata().get(UKId.class);
+        Assert.assertEquals(ukids.size(), 1);
+        Assert.assertEquals(ukids.get(0).getId(), id);
+    }
+
+    private static void assertError(final Item<Element> item, final String fragment) {
+        Assert.assertTrue(item.getItemMetadata().get(UKId.class).isEmpty());
+        final List<ErrorStatus> errors = item.getItemMetadata().get(ErrorStatus.class);
+        Assert.assertEquals(errors.size(), 1);
+        Assert.assertTrue(errors.get(0).getStatusMessage().contains(fragment), errors.get(0).getStatusMessage());
+    }
+
+    @Test
+    public void defaults() throws Exception {
+        final EntityDescriptorUKIdPopulationStage stage = new EntityDescriptorUKIdPopulationStage();
+        stage.setId("test");
+        stage.initialize();
+        Assert.assertEquals(stage.getIdPrefix(), "uk");
+        Assert.assertEquals(stage.getIdDigits(), 6);
+
+        final List<Item<Element>> items = makeItems("uk000000", "uk999999", "uk12345", "uk1234567", "ux123456",
+                "uk12345a", "uk12345\u0661", "UK123456", "uk000000", null);
+        stage.execute(items);
+        assertUKId(items.get(0), "uk000000");
+        assertUKId(items.get(1), "uk999999");
+        assertError(items.get(2), "does not look like");
+        assertError(items.get(3), "does not look like");
+        assertError(items.get(4), "does not look like");
+        assertError(items.get(5), "does not look like");
+        assertError(items.get(6), "does not look like");
+        assertError(items.get(7), "does not look like");
+        assertError(items.get(8), "duplicate ID value uk000000");
+        assertError(items.get(9), "did not have an ID attribute");
+    }
+
+    @Test
+    public void configured() throws Exception {
+        final EntityDescriptorUKIdPopulationStage stage = new EntityDescriptorUKIdPopulationStage();
+        stage.setId("test");
+        stage.setIdPrefix("fed-");
+        stage.setIdDigits(4);
+        stage.initialize();
+
+        final List<Item<Element>> items = makeItems("fed-0042", "fed-042", "uk000042", "fed-0042");
+        stage.execute(items);
+        assertUKId(items.get(0), "fed-0042");
+        assertError(items.get(1), "does not look like");
+        assertError(items.get(2), "does not look like");
+        assertError(items.get(3), "duplicate ID value");
+    }
+
+    @Test
+    public void manyDigits() throws Exception {
+        final EntityDescriptorUKIdPopulationStage stage = new EntityDescriptorUKIdPopulationStage();
+        stage.setId("test");
+        stage.setIdDigits(9);
+        stage.initialize();
+
+        final List<Item<Element>> items = makeItems("uk999999999", "uk000000001", "uk999999999");
+        stage.execute(items);
+        assertUKId(items.get(0), "uk999999999");
+        assertUKId(items.get(1), "uk000000001");
+        assertError(items.get(2), "duplicate ID value uk999999999");
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void tooManyDigits() throws Exception {
+        final EntityDescriptorUKIdPopulationStage stage = new EntityDescriptorUKIdPopulationStage();
+        stage.setId("test");
+        stage.setIdDigits(10);
+        stage.initialize();
+    }
+
+}
@@ -5,6 +5,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.annotation.Nonnull;
 import javax.xml.namespace.QName;
@@ -19,6 +21,9 @@ import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
 import net.shibboleth.metadata.dom.saml.mdui.MDUISupport;
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import uk.org.ukfederation.mda.dom.saml.EntityElementIndex;
+import uk.org.ukfederation.mda.dom.saml.EntityElementIndexPopulationStage;
 
 public class IdPDisplayNameDuplicateAvoidingStageTest extends BaseDOMTest {
 
@@ -141,6 +146,51 @@ public class IdPDisplayNameDuplicateAvoidingStageTest extends BaseDOMTest {
         stage.destroy();
     }
     
+    @Test
+    public void royalAcademyCaseClash() throws Exception {
+        final List<Item<Element>> items = readDOMItems(new String[] { "ram-uk.xml", "ram-dk-clash.xml" });
+        final Element dkName = extractDiscoveryNameElements(items.get(1).unwrap()).get(1);
+        dkName.setTextContent("  ROYAL ACADEMY  of music ");
+
+        final IdPDisplayNameDuplicateAvoidingStage stage = new IdPDisplayNameDuplicateAvoidingStage();
+        stage.setId("test");
+        stage.setRegistrationAuthorityDisplayNames(makeRegMap());
+        stage.initialize();
+        
+        stage.execute(items);
+
+        // The name is regarded as clashing, and is rewritten from its trimmed form
+        Assert.assertEquals(dkName.getTextContent(), "[DK] ROYAL ACADEMY  of music");
+
+        stage.destroy();
+    }
+
+    @Test
+    public void royalAcademyClashIndexed() throws Exception {
+        final List<Item<Element>> items = readDOMItems(new String[] { "ram-uk.xml", "ram-dk-clash.xml" });
+        final Item<Element> originalUKItem = items.get(0).copy();
+
+        final EntityElementIndexPopulationStage indexer = new EntityElementIndexPopulationStage();
+        indexer.setId("index");
+        indexer.initialize();
+        indexer.execute(items);
+
+        final IdPDisplayNameDuplicateAvoidingStage stage = new IdPDisplayNameDuplicateAvoidingStage();
+        stage.setId("test");
+        stage.setRegistrationAuthorityDisplayNames(makeRegMap());
+        stage.initialize();
+        
+        stage.execute(items);
+
+        assertXMLEqual(originalUKItem.unwrap(), items.get(0).unwrap());
+        assertXMLEqual(readXMLData("ram-dk-out.xml"), items.get(1).unwrap());
+
+        // Only text content has changed, so the index remains valid
+        Assert.assertNotNull(EntityElementIndex.get(items.get(1), MDUISupport.DISPLAYNAME_NAME));
+
+        stage.destroy();
+    }
+
     @Test
     public void defaultRegistrarHandle() throws Exception {
         final List<Item<Element>> items = readDOMItems(new String[] { "ram-uk.xml", "ram-dk-clash.xml" });
@@ -220,6 +270,14 @@ public class IdPDisplayNameDuplicateAvoidingStageTest extends BaseDOMTest {
         stage.destroy();
     }
 
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void setNameFormatInvalid() throws Exception {
+        final IdPDisplayNameDuplicateAvoidingStage stage = new IdPDisplayNameDuplicateAvoidingStage();
+        stage.setId("test");
+        stage.setNameFormat("{0} (from {1");
+        stage.initialize();
+    }
+
     @Test
     public void royalAcademyClashOtherFoot() throws Exception {
         final List<Item<Element>> items = readDOMItems(new String[] { "ram-uk.xml", "ram-dk-clash.xml" });
@@ -246,4 +304,34 @@ public class IdPDisplayNameDuplicateAvoidingStageTest extends BaseDOMTest {
         stage.destroy();
     }
 
+    @Test
+    public void royalAcademyClashParallel() throws Exception {
+        final List<Item<Element>> items = readDOMItems(new String[] { "ram-uk.xml", "ram-dk-clash.xml" });
+        final Item<Element> originalUKItem = items.get(0).copy();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final IdPDisplayNameDuplicateAvoidingStage stage = new IdPDisplayNameDuplicateAvoidingStage();
+            stage.setId("test");
+            stage.setRegistrationAuthorityDisplayNames(makeRegMap());
+            stage.setExecutorService(executor);
+            stage.initialize();
+            Assert.assertSame(stage.getExecutorService(), executor);
+
+            stage.execute(items);
+
+            // Results should be the same as in sequential mode
+            assertXMLEqual(originalUKItem.unwrap(), items.get(0).unwrap());
+            assertXMLEqual(readXMLData("ram-dk-out.xml"), items.get(1).unwrap());
+            final List<InfoStatus> infos = items.get(1).getItemMetadata().get(InfoStatus.class);
+            Assert.assertEquals(infos.size(), 1);
+            Assert.assertEquals(infos.get(0).getStatusMessage(),
+                    "discovery name changed to '[DK] Royal Academy of Music'");
+
+            stage.destroy();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
 }
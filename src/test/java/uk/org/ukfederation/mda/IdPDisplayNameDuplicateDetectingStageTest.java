@@ -1,6 +1,8 @@
 package uk.org.ukfederation.mda;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.testng.Assert;
@@ -10,10 +12,13 @@ import org.w3c.dom.Element;
 import net.shibboleth.metadata.ErrorStatus;
 import net.shibboleth.metadata.Item;
 import net.shibboleth.metadata.ItemMetadata;
+import net.shibboleth.metadata.WarningStatus;
 import net.shibboleth.metadata.dom.DOMElementItem;
 import net.shibboleth.utilities.java.support.collection.ClassToInstanceMultiMap;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.UnmodifiableComponentException;
 import net.shibboleth.utilities.java.support.xml.XMLParserException;
+import uk.org.ukfederation.mda.dom.saml.EntityElementIndexPopulationStage;
 
 public class IdPDisplayNameDuplicateDetectingStageTest extends BaseDOMTest {
 
@@ -119,6 +124,32 @@ public class IdPDisplayNameDuplicateDetectingStageTest extends BaseDOMTest {
         Assert.assertEquals(countErrors(dup), 1, "deliberate duplicate");
     }
 
+    @Test
+    public void duplicateMDUIIndexed() throws Exception {
+        final DOMElementItem item1 = makeItem("sv-and-en-1");
+        final DOMElementItem item2 = makeItem("sv-and-en-2");
+        final DOMElementItem dup   = makeItem("dup-mdui");
+        
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item1);
+        items.add(item2);
+        items.add(dup);
+
+        final EntityElementIndexPopulationStage indexer = new EntityElementIndexPopulationStage();
+        indexer.setId("index");
+        indexer.initialize();
+        indexer.execute(items);
+
+        final IdPDisplayNameDuplicateDetectingStage stage = makeStage();
+
+        populateIdentifiers(items);
+        stage.execute(items);
+        
+        Assert.assertEquals(countErrors(item1), 0, "first item");
+        Assert.assertEquals(countErrors(item2), 1, "second item");
+        Assert.assertEquals(countErrors(dup), 1, "deliberate duplicate");
+    }
+
     @Test
     public void duplicateODN() throws Exception {
         final DOMElementItem item1 = makeItem("sv-and-en-1");
@@ -193,8 +224,35 @@ public class IdPDisplayNameDuplicateDetectingStageTest extends BaseDOMTest {
     }
     
     /**
-     * In this test, the duplicate clashes against both of the previous examples so should
-     * be reported one for each independent clash.
+     * In this test, the duplicate's name is written with full-width letters and a no-break space,
+     * which NFKC normalisation maps to the earlier entity's name.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void duplicateODNCompatibility() throws Exception {
+        final DOMElementItem item1 = makeItem("sv-and-en-1");
+        final DOMElementItem item2 = makeItem("sv-and-en-2");
+        final DOMElementItem dup   = makeItem("dup-nfkc");
+        
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item1);
+        items.add(item2);
+        items.add(dup);
+        
+        final IdPDisplayNameDuplicateDetectingStage stage = makeStage();
+
+        populateIdentifiers(items);
+        stage.execute(items);
+        
+        Assert.assertEquals(countErrors(item1), 0, "first item");
+        Assert.assertEquals(countErrors(item2), 1, "second item");
+        Assert.assertEquals(countErrors(dup), 1, "deliberate duplicate");
+    }
+    
+    /**
+     * In this test, the duplicate clashes against both of the previous examples, joining all three
+     * into a single clash group reported once on each member.
      * 
      * @throws Exception if something goes wrong
      */
@@ -216,12 +274,28 @@ public class IdPDisplayNameDuplicateDetectingStageTest extends BaseDOMTest {
         
         Assert.assertEquals(countErrors(item1), 1, "first item");
         Assert.assertEquals(countErrors(item2), 1, "second item");
-        Assert.assertEquals(countErrors(dup), 2, "deliberate duplicate");
+        Assert.assertEquals(countErrors(dup), 1, "deliberate duplicate");
+
+        final var strategy = stage.getIdentificationStrategy();
+        final String group = strategy.getItemIdentifier(item1) + ", " + strategy.getItemIdentifier(item2) + ", " +
+                strategy.getItemIdentifier(dup);
+        Assert.assertEquals(errorMessage(item1),
+                "duplicate display name 'Example Organization' shared within clash group: " + group);
+        Assert.assertEquals(errorMessage(item2),
+                "duplicate display name 'Second Organization' shared within clash group: " + group);
+        Assert.assertTrue(errorMessage(dup).endsWith(" shared within clash group: " + group));
+        Assert.assertTrue(errorMessage(dup).startsWith("duplicate display names '"));
+    }
+
+    private String errorMessage(final Item<Element> item) {
+        final List<ErrorStatus> errors = item.getItemMetadata().get(ErrorStatus.class);
+        Assert.assertEquals(errors.size(), 1);
+        return errors.get(0).getStatusMessage();
     }
 
     /**
-     * In this test, several duplicates clash against multiple originals, each entity should only
-     * have independent clashes.
+     * In this test, several duplicates clash against multiple originals, forming a single clash
+     * group; each entity should be marked once, whatever the order of the items.
      * 
      * @throws Exception if something goes wrong
      */
@@ -249,7 +323,27 @@ public class IdPDisplayNameDuplicateDetectingStageTest extends BaseDOMTest {
         Assert.assertEquals(countErrors(item2), 1, "second item");
         Assert.assertEquals(countErrors(dupA), 1, "deliberate duplicate 1");
         Assert.assertEquals(countErrors(dupB), 1, "deliberate duplicate 2");
-        Assert.assertEquals(countErrors(dupC), 2, "deliberate duplicate 3");
+        Assert.assertEquals(countErrors(dupC), 1, "deliberate duplicate 3");
+
+        // the same group is reported, with every member, when the items arrive in another order
+        final String message = errorMessage(item1);
+        for (final Item<Element> item : items) {
+            item.getItemMetadata().clear();
+        }
+        final List<Item<Element>> reversed = new ArrayList<>(items);
+        Collections.reverse(reversed);
+        populateIdentifiers(reversed);
+        stage.execute(reversed);
+        for (final Item<Element> item : items) {
+            Assert.assertEquals(countErrors(item), 1);
+        }
+        final String reversedMessage = errorMessage(item1);
+        final String[] ids = message.substring(message.indexOf(": ") + 2).split(", ");
+        final String[] reversedIds = reversedMessage.substring(reversedMessage.indexOf(": ") + 2).split(", ");
+        Assert.assertEquals(ids.length, 5);
+        Arrays.sort(ids);
+        Arrays.sort(reversedIds);
+        Assert.assertEquals(Arrays.asList(reversedIds), Arrays.asList(ids));
     }
 
     /**
@@ -273,6 +367,134 @@ public class IdPDisplayNameDuplicateDetectingStageTest extends BaseDOMTest {
         Assert.assertEquals(countErrors(item1), 0, "first item");
     }
 
+    private int countWarnings(final Item<Element> item) {
+        return item.getItemMetadata().get(WarningStatus.class).size();
+    }
+
+    /**
+     * "Second Organisation" is not a duplicate of "Second Organization", and near-duplicate
+     * detection is off by default.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void nearDuplicateDisabled() throws Exception {
+        final DOMElementItem item1 = makeItem("sv-and-en-1");
+        final DOMElementItem item2 = makeItem("sv-and-en-2");
+        final DOMElementItem near  = makeItem("near-odn");
+
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item1);
+        items.add(item2);
+        items.add(near);
+
+        final IdPDisplayNameDuplicateDetectingStage stage = makeStage();
+
+        populateIdentifiers(items);
+        stage.execute(items);
+
+        for (final Item<Element> item : items) {
+            Assert.assertEquals(countErrors(item), 0);
+            Assert.assertEquals(countWarnings(item), 0);
+        }
+    }
+
+    @Test
+    public void nearDuplicate() throws Exception {
+        final DOMElementItem item1 = makeItem("sv-and-en-1");
+        final DOMElementItem item2 = makeItem("sv-and-en-2");
+        final DOMElementItem dup   = makeItem("dup-odn");
+        final DOMElementItem near  = makeItem("near-odn");
+
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item1);
+        items.add(item2);
+        items.add(dup);
+        items.add(near);
+
+        final IdPDisplayNameDuplicateDetectingStage stage = new IdPDisplayNameDuplicateDetectingStage();
+        stage.setId("test");
+        stage.setDetectingNearDuplicates(true);
+        stage.initialize();
+
+        populateIdentifiers(items);
+        stage.execute(items);
+
+        // exact duplicates are still errors, and are not also reported as near-duplicates
+        Assert.assertEquals(countErrors(item1), 0, "first item");
+        Assert.assertEquals(countErrors(item2), 1, "second item");
+        Assert.assertEquals(countErrors(dup), 1, "deliberate duplicate");
+        Assert.assertEquals(countErrors(near), 0, "near-duplicate");
+
+        // the near-duplicate is similar to both entities named "Second Organization"
+        Assert.assertEquals(countWarnings(item1), 0, "first item");
+        Assert.assertEquals(countWarnings(item2), 1, "second item");
+        Assert.assertEquals(countWarnings(dup), 1, "deliberate duplicate");
+        Assert.assertEquals(countWarnings(near), 2, "near-duplicate");
+        final String message = near.getItemMetadata().get(WarningStatus.class).get(0).getStatusMessage();
+        Assert.assertEquals(message, "display name 'Second Organisation' is similar to 'Second Organization' used by "
+                + stage.getIdentificationStrategy().getItemIdentifier(item2));
+    }
+
+    /**
+     * Test that an abbreviated name is found as a near-duplicate at the default threshold.
+     *
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void nearDuplicateAbbreviation() throws Exception {
+        final DOMElementItem full   = makeItem("near-abbrev-1");
+        final DOMElementItem abbrev = makeItem("near-abbrev-2");
+
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(full);
+        items.add(abbrev);
+
+        final IdPDisplayNameDuplicateDetectingStage stage = new IdPDisplayNameDuplicateDetectingStage();
+        stage.setId("test");
+        stage.setDetectingNearDuplicates(true);
+        stage.initialize();
+
+        populateIdentifiers(items);
+        stage.execute(items);
+
+        Assert.assertEquals(countErrors(full), 0);
+        Assert.assertEquals(countErrors(abbrev), 0);
+        Assert.assertEquals(countWarnings(full), 1);
+        Assert.assertEquals(countWarnings(abbrev), 1);
+        final String message = abbrev.getItemMetadata().get(WarningStatus.class).get(0).getStatusMessage();
+        Assert.assertTrue(message.startsWith("display name 'Univ. of Exampleton' is similar to "
+                + "'University of Exampleton'"), message);
+    }
+
+    @Test(expectedExceptions = UnmodifiableComponentException.class)
+    public void nearDuplicateThresholdAfterInit() throws Exception {
+        final IdPDisplayNameDuplicateDetectingStage stage = makeStage();
+        stage.setNearDuplicateThreshold(0.9);
+    }
+
+    @Test
+    public void nearDuplicateThreshold() throws Exception {
+        final DOMElementItem item2 = makeItem("sv-and-en-2");
+        final DOMElementItem near  = makeItem("near-odn");
+
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item2);
+        items.add(near);
+
+        final IdPDisplayNameDuplicateDetectingStage stage = new IdPDisplayNameDuplicateDetectingStage();
+        stage.setId("test");
+        stage.setDetectingNearDuplicates(true);
+        stage.setNearDuplicateThreshold(0.9);
+        stage.initialize();
+
+        populateIdentifiers(items);
+        stage.execute(items);
+
+        Assert.assertEquals(countWarnings(item2), 0);
+        Assert.assertEquals(countWarnings(near), 0);
+    }
+
     @Test
     public void idStrategy() throws Exception {
         final IdPDisplayNameDuplicateDetectingStage stage = makeStage();
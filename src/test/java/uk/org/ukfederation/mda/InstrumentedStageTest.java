@@ -0,0 +1,283 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.MockItem;
+import net.shibboleth.metadata.WarningStatus;
+import net.shibboleth.metadata.pipeline.AbstractFilteringStage;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import uk.org.ukfederation.mda.pipeline.AbstractParallelIteratingStage;
+
+public class InstrumentedStageTest {
+
+    /**
+     * A stage which removes the first item, adds a new item with an error,
+     * and adds a warning and an informational status to each remaining item.
+     */
+    private static class TestStage extends AbstractStage<String> {
+
+        @Override
+        protected void doExecute(final List<Item<String>> items) throws StageProcessingException {
+            items.remove(0);
+            final Item<String> added = new MockItem("added");
+            added.getItemMetadata().put(new ErrorStatus("inner", "error"));
+            items.add(added);
+            for (final Item<String> item : items) {
+                item.getItemMetadata().put(new WarningStatus("inner", "warning"));
+                item.getItemMetadata().put(new InfoStatus("inner", "info"));
+            }
+        }
+
+    }
+
+    /** A stage which removes items whose value is "drop". */
+    private static class DroppingStage extends AbstractFilteringStage<String> {
+
+        @Override
+        protected boolean doExecute(final Item<String> item) throws StageProcessingException {
+            return !"drop".equals(item.unwrap());
+        }
+
+    }
+
+    private InstrumentedStage<String> makeStage() throws ComponentInitializationException {
+        final TestStage inner = new TestStage();
+        inner.setId("inner");
+        inner.initialize();
+        final InstrumentedStage<String> stage = new InstrumentedStage<>();
+        stage.setId("test");
+        stage.setStage(inner);
+        stage.initialize();
+        return stage;
+    }
+
+    @Test
+    public void statistics() throws Exception {
+        final InstrumentedStage<String> stage = makeStage();
+        Assert.assertNull(stage.getLastStatistics());
+
+        final List<Item<String>> items = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final Item<String> item = new MockItem("item" + i);
+            // statuses already present are not counted
+            item.getItemMetadata().put(new ErrorStatus("earlier", "error"));
+            items.add(item);
+        }
+        stage.execute(items);
+        Assert.assertEquals(items.size(), 3);
+
+        final StageStatistics stats = stage.getLastStatistics();
+        Assert.assertNotNull(stats);
+        Assert.assertEquals(stats.getStageId(), "inner");
+        Assert.assertEquals(stats.getInputItems(), 3);
+        Assert.assertEquals(stats.getOutputItems(), 3);
+        Assert.assertEquals(stats.getErrors(), 1);
+        Assert.assertEquals(stats.getWarnings(), 3);
+        Assert.assertEquals(stats.getInfos(), 3);
+        Assert.assertTrue(stats.getWallTime() >= 0);
+        Assert.assertTrue(stats.getCpuTime() >= -1);
+        Assert.assertTrue(stats.getAllocatedBytes() >= -1);
+        Assert.assertTrue(stats.toString().contains("items 3 -> 3"));
+    }
+
+    @Test(expectedExceptions = ComponentInitializationException.class)
+    public void noStage() throws Exception {
+        final InstrumentedStage<String> stage = new InstrumentedStage<>();
+        stage.setId("test");
+        stage.initialize();
+    }
+
+    /** A parallel stage which marks each item it processes. */
+    private static class MarkingStage extends AbstractParallelIteratingStage<String> {
+
+        @Override
+        protected void doExecute(final Item<String> item) throws StageProcessingException {
+            item.getItemMetadata().put(new InfoStatus("marker", "marked"));
+        }
+
+    }
+
+    /**
+     * Execute a stage on a collection of items while recording flight recorder events.
+     *
+     * @param stage the stage to execute
+     * @param items the items to process
+     * @return the recorded events
+     * @throws Exception if something goes wrong
+     */
+    private List<RecordedEvent> record(final InstrumentedStage<String> stage, final List<Item<String>> items)
+            throws Exception {
+        final Path file = Files.createTempFile("InstrumentedStageTest", ".jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                recording.enable("uk.org.ukfederation.mda.StageExecution");
+                recording.enable("uk.org.ukfederation.mda.SlowItem").withThreshold(Duration.ZERO);
+                recording.start();
+                stage.execute(items);
+                recording.stop();
+                recording.dump(file);
+            }
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private List<Item<String>> makeItems() {
+        final List<Item<String>> items = new ArrayList<>();
+        for (final String value : List.of("keep1", "drop", "keep2")) {
+            final Item<String> item = new MockItem(value);
+            item.getItemMetadata().put(new UKId("uk-" + value));
+            items.add(item);
+        }
+        return items;
+    }
+
+    private int countSlowItems(final List<RecordedEvent> events) {
+        int count = 0;
+        for (final RecordedEvent event : events) {
+            if ("uk.org.ukfederation.mda.SlowItem".equals(event.getEventType().getName())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void flightRecorderEvents() throws Exception {
+        final DroppingStage inner = new DroppingStage();
+        inner.setId("dropper");
+        inner.initialize();
+        final InstrumentedStage<String> stage = new InstrumentedStage<>();
+        stage.setId("test");
+        stage.setStage(inner);
+        stage.setTimingEachItem(true);
+        stage.initialize();
+
+        final List<Item<String>> items = makeItems();
+        final List<RecordedEvent> events = record(stage, items);
+
+        // executing one item at a time must give the same result
+        Assert.assertEquals(items.size(), 2);
+        Assert.assertEquals(items.get(0).unwrap(), "keep1");
+        Assert.assertEquals(items.get(1).unwrap(), "keep2");
+
+        int executions = 0;
+        final Set<String> slowItems = new HashSet<>();
+        for (final RecordedEvent event : events) {
+            final String name = event.getEventType().getName();
+            if ("uk.org.ukfederation.mda.StageExecution".equals(name)) {
+                executions++;
+                Assert.assertEquals(event.getString("stageId"), "dropper");
+                Assert.assertEquals(event.getInt("inputItems"), 3);
+                Assert.assertEquals(event.getInt("outputItems"), 2);
+            } else if ("uk.org.ukfederation.mda.SlowItem".equals(name)) {
+                Assert.assertEquals(event.getString("stageId"), "dropper");
+                slowItems.add(event.getString("itemId"));
+            }
+        }
+        Assert.assertEquals(executions, 1);
+        // identified by UKId, possibly qualified by registration authority
+        Assert.assertEquals(slowItems.size(), 3);
+        for (final String value : List.of("keep1", "drop", "keep2")) {
+            Assert.assertTrue(slowItems.stream().anyMatch(id -> id.startsWith("uk-" + value)), value);
+        }
+    }
+
+    @Test
+    public void noSlowItemsByDefault() throws Exception {
+        final DroppingStage inner = new DroppingStage();
+        inner.setId("dropper");
+        inner.initialize();
+        final InstrumentedStage<String> stage = new InstrumentedStage<>();
+        stage.setId("test");
+        stage.setStage(inner);
+        stage.initialize();
+        Assert.assertFalse(stage.isTimingEachItem());
+
+        final List<Item<String>> items = makeItems();
+        Assert.assertEquals(countSlowItems(record(stage, items)), 0);
+        Assert.assertEquals(items.size(), 2);
+    }
+
+    @Test
+    public void slowItemsForSequentialParallelStage() throws Exception {
+        final MarkingStage inner = new MarkingStage();
+        inner.setId("marker");
+        inner.initialize();
+        final InstrumentedStage<String> stage = new InstrumentedStage<>();
+        stage.setId("test");
+        stage.setStage(inner);
+        stage.setTimingEachItem(true);
+        stage.initialize();
+
+        // without an executor, the stage processes its items one at a time in any case
+        final List<Item<String>> items = makeItems();
+        Assert.assertEquals(countSlowItems(record(stage, items)), 3);
+        Assert.assertEquals(items.size(), 3);
+        for (final Item<String> item : items) {
+            Assert.assertEquals(item.getItemMetadata().get(InfoStatus.class).size(), 1);
+        }
+    }
+
+    @Test
+    public void noSlowItemsForParallelStage() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final MarkingStage inner = new MarkingStage();
+            inner.setId("marker");
+            inner.setExecutorService(executor);
+            inner.initialize();
+            final InstrumentedStage<String> stage = new InstrumentedStage<>();
+            stage.setId("test");
+            stage.setStage(inner);
+            stage.setTimingEachItem(true);
+            stage.initialize();
+
+            // the parallel stage sees the whole collection
+            final List<Item<String>> items = makeItems();
+            Assert.assertEquals(countSlowItems(record(stage, items)), 0);
+            Assert.assertEquals(items.size(), 3);
+            for (final Item<String> item : items) {
+                Assert.assertEquals(item.getItemMetadata().get(InfoStatus.class).size(), 1);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,787 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.dom.DOMElementItem;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+import uk.org.ukfederation.mda.dom.saml.ShibbolethMetadataSupport;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.UKFedLabelSupport;
+import uk.org.ukfederation.mda.validate.XMLDSIGSupport;
+import uk.org.ukfederation.mda.validate.mdui.MDUISupport;
+import uk.org.ukfederation.members.Members;
+
+/**
+ * Generates synthetic federation aggregates of arbitrary size for scale tests and benchmarks.
+ *
+ * <p>
+ * Each generated item is an <code>md:EntityDescriptor</code>, in its own document, with:
+ * </p>
+ *
+ * <ul>
+ * <li>a unique <code>ukNNNNNN</code> <code>ID</code> attribute, in ascending order,</li>
+ * <li>an identity provider or service provider role, in a configurable mix,</li>
+ * <li><code>mdui:DisplayName</code> and <code>md:OrganizationDisplayName</code> elements
+ *     in English and, sometimes, other languages,</li>
+ * <li>an <code>mdrpi:RegistrationInfo</code> element, usually for the UK federation registrar,</li>
+ * <li>a <code>ukfedlabel:UKFederationMember</code> label for UK-registered entities,</li>
+ * <li>occasional <code>ukfedlabel:EnableFlow</code> and <code>ukfedlabel:DisableFlow</code> labels,</li>
+ * <li><code>md:KeyDescriptor</code> elements carrying real RSA and (rarely) DSA certificates,
+ *     sometimes wrapped and sometimes on a single line.</li>
+ * </ul>
+ *
+ * <p>
+ * A matching <code>Members</code> document is generated alongside the entities: every
+ * UK-registered entity's owner is a member, and some members push scopes to their identity
+ * providers.
+ * </p>
+ *
+ * <p>
+ * The output depends only on the seed, the configured properties and the requested size.
+ * All choices are made from a {@link Random} constructed from the seed, whose algorithm is
+ * fully specified, and no hash-ordered collection is ever iterated, so the same aggregate
+ * is produced on every run and every machine.
+ * </p>
+ */
+@NotThreadSafe
+public class SyntheticAggregateGenerator {
+
+    /** Registration authority for UK-registered entities. */
+    public static final String UK_REGISTRAR = "http://ukfederation.org.uk";
+
+    /** Flow names used in the generated flow constraint labels. */
+    public static final List<String> FLOWS = List.of("wibble", "wobble", "export", "edugain");
+
+    /** Maximum aggregate size, so that all generated IDs fit in six digits. */
+    public static final int MAX_SIZE = 333_333;
+
+    /** Namespace for the <code>members.xml</code> document. */
+    public static final String MEMBERS_NS = "http://ukfederation.org.uk/2007/01/members";
+
+    /** Namespace for <code>mdrpi</code> elements. */
+    private static final String MDRPI_NS = "urn:oasis:names:tc:SAML:metadata:rpi";
+
+    /** Namespace for namespace declarations. */
+    private static final String XMLNS_NS = XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+
+    /** Certificate fixtures, relative to this class. The last one is the only DSA certificate. */
+    private static final String[] CERTIFICATES = {"rsa1.pem", "rsa2.pem", "rsa3.pem", "rsa4.pem", "dsa1.pem"};
+
+    /** Places used to build organization names. */
+    private static final String[] PLACES = {
+        "Aberdeen", "Aberystwyth", "Bangor", "Bath", "Belfast", "Birmingham", "Bristol", "Cambridge",
+        "Cardiff", "Carlisle", "Chester", "Coventry", "Derby", "Dundee", "Durham", "Edinburgh",
+        "Exeter", "Glasgow", "Gloucester", "Hull", "Inverness", "Kent", "Lancaster", "Leeds",
+        "Leicester", "Lincoln", "Liverpool", "London", "Manchester", "Newcastle", "Norwich", "Nottingham",
+        "Oxford", "Plymouth", "Portsmouth", "Reading", "Salford", "Sheffield", "Southampton", "Stirling",
+        "Sunderland", "Swansea", "Warwick", "Winchester", "Wolverhampton", "Wrexham", "York", "Truro",
+    };
+
+    /** Kinds of organization, in English. */
+    private static final String[] KINDS = {
+        "University", "College", "Institute", "Library", "Research Centre", "Academy", "School",
+    };
+
+    /**
+     * Kinds of organization in languages other than English, parallel to {@link #KINDS}.
+     * In these languages the kind precedes the place.
+     */
+    private static final Map<String, String[]> FOREIGN_KINDS = new LinkedHashMap<>();
+
+    /** Qualifiers used to distinguish organizations once all place and kind combinations are used up. */
+    private static final String[] QUALIFIERS = {"", "City of ", "Royal ", "New ", "North ", "South ", "East ", "West "};
+
+    /** Services offered by service providers. */
+    private static final String[] SERVICES = {
+        "Library Portal", "Journal Access", "Learning Platform", "Research Data Service", "Wiki",
+        "Video Platform", "Student Records", "Room Booking", "E-Books", "Survey Tool",
+    };
+
+    /** Other languages used by UK-registered entities. */
+    private static final String[] UK_LANGUAGES = {"cy", "gd", "ga"};
+
+    /** Foreign registration authorities: registrar, top level domain and language. */
+    private static final String[][] FOREIGN_REGISTRARS = {
+        {"https://www.wayf.dk", "dk", "da"},
+        {"http://www.swamid.se/", "se", "sv"},
+        {"https://www.aai.dfn.de", "de", "de"},
+        {"https://federation.renater.fr/", "fr", "fr"},
+    };
+
+    static {
+        FOREIGN_KINDS.put("cy", new String[] {
+            "Prifysgol", "Coleg", "Athrofa", "Llyfrgell", "Canolfan Ymchwil", "Academi", "Ysgol"});
+        FOREIGN_KINDS.put("gd", new String[] {
+            "Oilthigh", "Colaiste", "Institiud", "Leabharlann", "Ionad Rannsachaidh", "Acadamaidh", "Sgoil"});
+        FOREIGN_KINDS.put("ga", new String[] {
+            "Ollscoil", "Col\u00e1iste", "Institi\u00faid", "Leabharlann", "Ionad Taighde", "Acadamh", "Scoil"});
+        FOREIGN_KINDS.put("da", new String[] {
+            "Universitet", "Kollegium", "Institut", "Bibliotek", "Forskningscenter", "Akademi", "Skole"});
+        FOREIGN_KINDS.put("sv", new String[] {
+            "Universitet", "H\u00f6gskola", "Institut", "Bibliotek", "Forskningscentrum", "Akademi", "Skola"});
+        FOREIGN_KINDS.put("de", new String[] {
+            "Universit\u00e4t", "Hochschule", "Institut", "Bibliothek", "Forschungszentrum", "Akademie", "Schule"});
+        FOREIGN_KINDS.put("fr", new String[] {
+            "Universit\u00e9 de", "Coll\u00e8ge de", "Institut de", "Biblioth\u00e8que de", "Centre de Recherche de",
+            "Acad\u00e9mie de", "\u00c9cole de"});
+    }
+
+    /** Seed for the random number generator. */
+    private final long seed;
+
+    /** Fraction of entities which are identity providers. */
+    private double idpFraction = 0.3;
+
+    /** Fraction of entities registered by a registrar other than the UK federation. */
+    private double foreignFraction = 0.1;
+
+    /** Fraction of entities carrying flow constraint labels. */
+    private double flowFraction = 0.2;
+
+    /** Fraction of certificates which are DSA certificates. */
+    private double dsaFraction = 0.02;
+
+    /** Fraction of certificates whose Base64 text is on a single line. */
+    private double unwrappedFraction = 0.5;
+
+    /** Fraction of identity providers reusing the display names of an earlier identity provider. */
+    private double duplicateNameFraction = 0.005;
+
+    /** Fraction of non-English languages in which each name is also given. */
+    private double languageFraction = 0.25;
+
+    /** Average number of entities owned by each member. */
+    private int entitiesPerMember = 4;
+
+    /** Number of additional signing certificates on each role descriptor, as during a key rollover. */
+    private int extraKeyDescriptors;
+
+    /** Whether to add {@link ItemId}, {@link UKId} and {@link RegistrationAuthority} item metadata. */
+    private boolean populatingItemMetadata = true;
+
+    /** Base64 text of each certificate fixture, without line breaks. */
+    private List<String> certificates;
+
+    /**
+     * Constructor.
+     *
+     * @param randomSeed seed from which all random choices are made
+     */
+    public SyntheticAggregateGenerator(final long randomSeed) {
+        seed = randomSeed;
+    }
+
+    /**
+     * Set the fraction of entities which are identity providers.
+     *
+     * @param fraction fraction between 0 and 1
+     */
+    public void setIdPFraction(final double fraction) {
+        idpFraction = checkFraction(fraction);
+    }
+
+    /**
+     * Set the fraction of entities registered by a registrar other than the UK federation.
+     *
+     * @param fraction fraction between 0 and 1
+     */
+    public void setForeignFraction(final double fraction) {
+        foreignFraction = checkFraction(fraction);
+    }
+
+    /**
+     * Set the fraction of entities carrying flow constraint labels.
+     *
+     * @param fraction fraction between 0 and 1
+     */
+    public void setFlowFraction(final double fraction) {
+        flowFraction = checkFraction(fraction);
+    }
+
+    /**
+     * Set the fraction of certificates which are DSA certificates.
+     *
+     * @param fraction fraction between 0 and 1
+     */
+    public void setDSAFraction(final double fraction) {
+        dsaFraction = checkFraction(fraction);
+    }
+
+    /**
+     * Set the fraction of certificates whose Base64 text is on a single line.
+     *
+     * @param fraction fraction between 0 and 1
+     */
+    public void setUnwrappedFraction(final double fraction) {
+        unwrappedFraction = checkFraction(fraction);
+    }
+
+    /**
+     * Set the fraction of identity providers reusing the display names of an earlier identity provider.
+     *
+     * @param fraction fraction between 0 and 1
+     */
+    public void setDuplicateNameFraction(final double fraction) {
+        duplicateNameFraction = checkFraction(fraction);
+    }
+
+    /**
+     * Set the fraction of non-English languages in which each name is also given.
+     *
+     * @param fraction fraction between 0 and 1
+     */
+    public void setLanguageFraction(final double fraction) {
+        languageFraction = checkFraction(fraction);
+    }
+
+    /**
+     * Set the average number of entities owned by each member.
+     *
+     * @param count average number of entities per member
+     */
+    public void setEntitiesPerMember(final int count) {
+        entitiesPerMember = Constraint.isGreaterThan(0, count, "entities per member must be positive");
+    }
+
+    /**
+     * Set the number of additional <code>md:KeyDescriptor</code> elements on each role descriptor,
+     * to produce certificate-heavy entities.
+     *
+     * <p>Defaults to 0.</p>
+     *
+     * @param count number of additional key descriptors per role descriptor
+     */
+    public void setExtraKeyDescriptors(final int count) {
+        extraKeyDescriptors = (int) Constraint.isGreaterThanOrEqual(0, count,
+                "number of additional key descriptors must not be negative");
+    }
+
+    /**
+     * Set whether to add {@link ItemId}, {@link UKId} and {@link RegistrationAuthority} item metadata
+     * to each item, as the usual population stages would.
+     *
+     * <p>Defaults to <code>true</code>.</p>
+     *
+     * @param populate whether to populate item metadata
+     */
+    public void setPopulatingItemMetadata(final boolean populate) {
+        populatingItemMetadata = populate;
+    }
+
+    /**
+     * Generate an aggregate.
+     *
+     * @param size number of entities in the aggregate
+     * @return the generated {@link SyntheticAggregate}
+     * @throws ComponentInitializationException if the parser pool can not be initialized
+     * @throws XMLParserException if a document can not be created
+     * @throws IOException if the certificate fixtures can not be read
+     */
+    @Nonnull
+    public SyntheticAggregate generate(final int size)
+            throws ComponentInitializationException, XMLParserException, IOException {
+        Constraint.isTrue(size >= 0 && size <= MAX_SIZE, "size must be between 0 and " + MAX_SIZE);
+        if (certificates == null) {
+            certificates = loadCertificates();
+        }
+
+        final BasicParserPool pool = new BasicParserPool();
+        pool.initialize();
+        final Random random = new Random(seed);
+
+        final int memberCount = Math.max(1, (size + entitiesPerMember - 1) / entitiesPerMember);
+        final List<Organization> members = new ArrayList<>(memberCount);
+        for (int m = 0; m < memberCount; m++) {
+            members.add(new Organization(m, "ukforg" + (m + 1), "ac.uk", UK_LANGUAGES));
+        }
+
+        final List<Map<String, String>> idpNames = new ArrayList<>();
+        final List<Item<Element>> items = new ArrayList<>(size);
+        int id = 0;
+        int foreignCount = 0;
+        for (int i = 0; i < size; i++) {
+            id += 1 + random.nextInt(3);
+            final String ukId = String.format(Locale.ROOT, "uk%06d", id);
+            final boolean idp = random.nextDouble() < idpFraction;
+
+            final Organization owner;
+            final String registrar;
+            if (random.nextDouble() < foreignFraction) {
+                final String[] foreign = FOREIGN_REGISTRARS[random.nextInt(FOREIGN_REGISTRARS.length)];
+                // Foreign organizations are numbered after the members, so their names are distinct.
+                owner = new Organization(memberCount + foreignCount++, null, foreign[1], new String[]{foreign[2]});
+                registrar = foreign[0];
+            } else {
+                owner = members.get(random.nextInt(memberCount));
+                registrar = UK_REGISTRAR;
+            }
+
+            final Document doc = pool.newDocument();
+            final Element entity = buildEntity(doc, random, ukId, idp, owner, registrar, idpNames);
+            final Item<Element> item = new DOMElementItem(entity);
+            if (populatingItemMetadata) {
+                item.getItemMetadata().put(new ItemId(entity.getAttributeNS(null, "entityID")));
+                item.getItemMetadata().put(UKId.valueOf(ukId));
+                item.getItemMetadata().put(new RegistrationAuthority(registrar));
+            }
+            items.add(item);
+        }
+
+        return new SyntheticAggregate(items, buildMembers(pool.newDocument(), random, members));
+    }
+
+    /**
+     * Build a single entity.
+     *
+     * @param doc document to build the entity in
+     * @param random source of random choices
+     * @param ukId the entity's <code>ID</code>
+     * @param idp whether the entity is an identity provider
+     * @param owner the entity's owner
+     * @param registrar the entity's registration authority
+     * @param idpNames display names of the identity providers generated so far
+     * @return the entity's <code>md:EntityDescriptor</code> element
+     */
+    @Nonnull
+    private Element buildEntity(@Nonnull final Document doc, @Nonnull final Random random,
+            @Nonnull final String ukId, final boolean idp, @Nonnull final Organization owner,
+            @Nonnull final String registrar, @Nonnull final List<Map<String, String>> idpNames) {
+        final Element entity = doc.createElementNS(SAMLMetadataSupport.MD_NS, "md:EntityDescriptor");
+        doc.appendChild(entity);
+        entity.setAttributeNS(XMLNS_NS, "xmlns:md", SAMLMetadataSupport.MD_NS);
+        entity.setAttributeNS(XMLNS_NS, "xmlns:ds", XMLDSIGSupport.XML_DSIG_NS);
+        entity.setAttributeNS(XMLNS_NS, "xmlns:mdrpi", MDRPI_NS);
+        entity.setAttributeNS(XMLNS_NS, "xmlns:mdui", MDUISupport.MDUI_NS);
+        entity.setAttributeNS(XMLNS_NS, "xmlns:shibmd", ShibbolethMetadataSupport.SHIBMD_NS);
+        entity.setAttributeNS(XMLNS_NS, "xmlns:ukfedlabel", UKFedLabelSupport.UKFEDLABEL_NS);
+        entity.setAttributeNS(null, "ID", ukId);
+
+        final String host;
+        if (idp) {
+            final int n = owner.idps++;
+            host = (n == 0 ? "idp" : "idp" + n) + "." + owner.domain;
+            entity.setAttributeNS(null, "entityID", "https://" + host + "/idp/shibboleth");
+            owner.idpEntityIDs.add(entity.getAttributeNS(null, "entityID"));
+        } else {
+            host = "sp" + owner.sps++ + "." + owner.domain;
+            entity.setAttributeNS(null, "entityID", "https://" + host + "/shibboleth");
+        }
+
+        // Entity extensions: registration, ownership and flow constraints.
+        final Element extensions = child(entity, SAMLMetadataSupport.MD_NS, "md:Extensions");
+        final Element regInfo = child(extensions, MDRPI_NS, "mdrpi:RegistrationInfo");
+        regInfo.setAttributeNS(null, "registrationAuthority", registrar);
+        regInfo.setAttributeNS(null, "registrationInstant",
+                String.format(Locale.ROOT, "%04d-%02d-%02dT00:00:00Z", 2006 + random.nextInt(15),
+                        1 + random.nextInt(12), 1 + random.nextInt(28)));
+        if (owner.orgID != null) {
+            child(extensions, UKFedLabelSupport.UKFEDLABEL_NS, "ukfedlabel:UKFederationMember")
+                    .setAttributeNS(null, UKFedLabelSupport.UK_FEDERATION_MEMBER_ORGID.getLocalPart(), owner.orgID);
+        }
+        if (random.nextDouble() < flowFraction) {
+            final int count = 1 + random.nextInt(2);
+            for (int f = 0; f < count; f++) {
+                final String label = random.nextBoolean() ? "ukfedlabel:EnableFlow" : "ukfedlabel:DisableFlow";
+                final Element flow = child(extensions, UKFedLabelSupport.UKFEDLABEL_NS, label);
+                flow.setAttributeNS(null, "date", "2020-02-17");
+                flow.setAttributeNS(null, "flow", FLOWS.get(random.nextInt(FLOWS.size())));
+            }
+        }
+
+        // Display names for the role descriptor.
+        final Map<String, String> names;
+        if (idp) {
+            if (!idpNames.isEmpty() && random.nextDouble() < duplicateNameFraction) {
+                names = idpNames.get(random.nextInt(idpNames.size()));
+            } else {
+                names = owner.names(random, owner.idps == 1 ? null : "Login " + owner.idps);
+            }
+            idpNames.add(names);
+        } else {
+            names = owner.names(random, SERVICES[random.nextInt(SERVICES.length)]);
+        }
+
+        final Element role;
+        if (idp) {
+            role = child(entity, SAMLMetadataSupport.MD_NS, "md:IDPSSODescriptor");
+        } else {
+            role = child(entity, SAMLMetadataSupport.MD_NS, "md:SPSSODescriptor");
+        }
+        role.setAttributeNS(null, "protocolSupportEnumeration", "urn:oasis:names:tc:SAML:2.0:protocol");
+        final Element roleExtensions = child(role, SAMLMetadataSupport.MD_NS, "md:Extensions");
+        if (idp) {
+            final Element scope = child(roleExtensions, ShibbolethMetadataSupport.SHIBMD_NS, "shibmd:Scope");
+            scope.setAttributeNS(null, ShibbolethMetadataSupport.REGEXP_ATTRIB_NAME.getLocalPart(), "false");
+            scope.setTextContent(owner.domain);
+        }
+        final Element uiInfo = child(roleExtensions, MDUISupport.MDUI_NS, "mdui:UIInfo");
+        for (final Map.Entry<String, String> name : names.entrySet()) {
+            langChild(uiInfo, MDUISupport.MDUI_NS, "mdui:DisplayName", name.getKey(), name.getValue());
+        }
+
+        keyDescriptor(role, random, idp ? "signing" : null);
+        for (int k = 0; k < extraKeyDescriptors; k++) {
+            keyDescriptor(role, random, "signing");
+        }
+        if (idp) {
+            child(role, SAMLMetadataSupport.MD_NS, "md:SingleSignOnService", "Binding",
+                    "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect",
+                    "Location", "https://" + host + "/idp/profile/SAML2/Redirect/SSO");
+            child(role, SAMLMetadataSupport.MD_NS, "md:SingleSignOnService", "Binding",
+                    "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST",
+                    "Location", "https://" + host + "/idp/profile/SAML2/POST/SSO");
+        } else {
+            keyDescriptor(role, random, "encryption");
+            child(role, SAMLMetadataSupport.MD_NS, "md:AssertionConsumerService", "Binding",
+                    "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST",
+                    "Location", "https://" + host + "/Shibboleth.sso/SAML2/POST")
+                    .setAttributeNS(null, "index", "1");
+        }
+
+        if (idp && random.nextBoolean()) {
+            final Element aa = child(entity, SAMLMetadataSupport.MD_NS, "md:AttributeAuthorityDescriptor");
+            aa.setAttributeNS(null, "protocolSupportEnumeration", "urn:oasis:names:tc:SAML:2.0:protocol");
+            final Element aaExtensions = child(aa, SAMLMetadataSupport.MD_NS, "md:Extensions");
+            final Element scope = child(aaExtensions, ShibbolethMetadataSupport.SHIBMD_NS, "shibmd:Scope");
+            scope.setAttributeNS(null, ShibbolethMetadataSupport.REGEXP_ATTRIB_NAME.getLocalPart(), "false");
+            scope.setTextContent(owner.domain);
+            keyDescriptor(aa, random, null);
+            for (int k = 0; k < extraKeyDescriptors; k++) {
+                keyDescriptor(aa, random, "signing");
+            }
+            child(aa, SAMLMetadataSupport.MD_NS, "md:AttributeService", "Binding",
+                    "urn:oasis:names:tc:SAML:2.0:bindings:SOAP",
+                    "Location", "https://" + host + ":8443/idp/profile/SAML2/SOAP/AttributeQuery");
+        }
+
+        final Element organization = child(entity, SAMLMetadataSupport.MD_NS, "md:Organization");
+        langChild(organization, SAMLMetadataSupport.MD_NS, "md:OrganizationName", "en", owner.name);
+        for (final Map.Entry<String, String> name : owner.names(random, null).entrySet()) {
+            langChild(organization, SAMLMetadataSupport.MD_NS, "md:OrganizationDisplayName",
+                    name.getKey(), name.getValue());
+        }
+        langChild(organization, SAMLMetadataSupport.MD_NS, "md:OrganizationURL", "en",
+                "https://www." + owner.domain + "/");
+
+        final Element contact = child(entity, SAMLMetadataSupport.MD_NS, "md:ContactPerson",
+                "contactType", "technical");
+        child(contact, SAMLMetadataSupport.MD_NS, "md:GivenName").setTextContent("IT Services");
+        child(contact, SAMLMetadataSupport.MD_NS, "md:EmailAddress").setTextContent("mailto:it@" + owner.domain);
+
+        return entity;
+    }
+
+    /**
+     * Append a <code>md:KeyDescriptor</code> containing one of the certificate fixtures.
+     *
+     * @param role role descriptor to add the key descriptor to
+     * @param random source of random choices
+     * @param use value for the <code>use</code> attribute, or <code>null</code> to omit it
+     */
+    private void keyDescriptor(@Nonnull final Element role, @Nonnull final Random random, final String use) {
+        final Element kd = child(role, SAMLMetadataSupport.MD_NS, "md:KeyDescriptor");
+        if (use != null) {
+            kd.setAttributeNS(null, "use", use);
+        }
+        final Element data = child(child(kd, XMLDSIGSupport.XML_DSIG_NS, "ds:KeyInfo"),
+                XMLDSIGSupport.XML_DSIG_NS, "ds:X509Data");
+
+        final String base64;
+        if (random.nextDouble() < dsaFraction) {
+            base64 = certificates.get(certificates.size() - 1);
+        } else {
+            base64 = certificates.get(random.nextInt(certificates.size() - 1));
+        }
+
+        final String text;
+        if (random.nextDouble() < unwrappedFraction) {
+            text = base64;
+        } else {
+            final StringBuilder wrapped = new StringBuilder(base64.length() + base64.length() / 16 + 32);
+            for (int pos = 0; pos < base64.length(); pos += 64) {
+                wrapped.append("\n                        ");
+                wrapped.append(base64, pos, Math.min(pos + 64, base64.length()));
+            }
+            wrapped.append("\n                    ");
+            text = wrapped.toString();
+        }
+        child(data, XMLDSIGSupport.XML_DSIG_NS, "ds:X509Certificate").setTextContent(text);
+    }
+
+    /**
+     * Build the <code>Members</code> document.
+     *
+     * @param doc document to build it in
+     * @param random source of random choices
+     * @param members the member organizations
+     * @return the document
+     */
+    @Nonnull
+    private Document buildMembers(@Nonnull final Document doc, @Nonnull final Random random,
+            @Nonnull @NonnullElements final List<Organization> members) {
+        final Element root = doc.createElementNS(MEMBERS_NS, "Members");
+        root.setAttributeNS(XMLNS_NS, "xmlns", MEMBERS_NS);
+        doc.appendChild(root);
+        for (final Organization org : members) {
+            final Element member = child(root, MEMBERS_NS, "Member", "ID", org.orgID);
+            child(member, MEMBERS_NS, "Name").setTextContent(org.name);
+            child(member, MEMBERS_NS, "JoinDate").setTextContent(String.format(Locale.ROOT, "%04d-%02d-%02d",
+                    2006 + random.nextInt(15), 1 + random.nextInt(12), 1 + random.nextInt(28)));
+            if (!org.idpEntityIDs.isEmpty() && random.nextBoolean()) {
+                final Element scopes = child(member, MEMBERS_NS, "Scopes");
+                for (final String entityID : org.idpEntityIDs) {
+                    child(scopes, MEMBERS_NS, "Entity").setTextContent(entityID);
+                }
+                child(scopes, MEMBERS_NS, "Scope").setTextContent("pushed." + org.domain);
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Load the Base64 text of each certificate fixture.
+     *
+     * @return list of Base64 strings, without line breaks
+     * @throws IOException if a fixture can not be read
+     */
+    @Nonnull @NonnullElements
+    private List<String> loadCertificates() throws IOException {
+        final List<String> result = new ArrayList<>(CERTIFICATES.length);
+        for (final String which : CERTIFICATES) {
+            final String path = getClass().getSimpleName() + "-" + which;
+            final InputStream input = SyntheticAggregateGenerator.class.getResourceAsStream(path);
+            if (input == null) {
+                throw new IOException(path + " does not exist or is not readable");
+            }
+            final StringBuilder base64 = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.US_ASCII))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.startsWith("-----")) {
+                        base64.append(line.trim());
+                    }
+                }
+            }
+            result.add(base64.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Append a new child element.
+     *
+     * @param parent parent element
+     * @param ns namespace of the new element
+     * @param qname prefixed name of the new element
+     * @param attributes alternating unqualified attribute names and values
+     * @return the new element
+     */
+    @Nonnull
+    private static Element child(@Nonnull final Element parent, @Nonnull final String ns,
+            @Nonnull final String qname, @Nonnull final String... attributes) {
+        final Element element = parent.getOwnerDocument().createElementNS(ns, qname);
+        for (int a = 0; a < attributes.length; a += 2) {
+            element.setAttributeNS(null, attributes[a], attributes[a + 1]);
+        }
+        parent.appendChild(element);
+        return element;
+    }
+
+    /**
+     * Append a new child element with an <code>xml:lang</code> attribute and text content.
+     *
+     * @param parent parent element
+     * @param ns namespace of the new element
+     * @param qname prefixed name of the new element
+     * @param lang value for the <code>xml:lang</code> attribute
+     * @param text text content of the new element
+     */
+    private static void langChild(@Nonnull final Element parent, @Nonnull final String ns,
+            @Nonnull final String qname, @Nonnull final String lang, @Nonnull final String text) {
+        final Element element = child(parent, ns, qname);
+        element.setAttributeNS(XMLConstants.XML_NS_URI, "xml:lang", lang);
+        element.setTextContent(text);
+    }
+
+    /**
+     * Check that a fraction is between 0 and 1.
+     *
+     * @param fraction fraction to check
+     * @return the fraction
+     */
+    private static double checkFraction(final double fraction) {
+        Constraint.isTrue(fraction >= 0.0 && fraction <= 1.0, "fraction must be between 0 and 1");
+        return fraction;
+    }
+
+    /** An organization owning entities. */
+    private final class Organization {
+
+        /** UK federation organization ID, or <code>null</code> for foreign organizations. */
+        private final String orgID;
+
+        /** English name. */
+        private final String name;
+
+        /** Domain name. */
+        private final String domain;
+
+        /** Index of the place in {@link #PLACES}. */
+        private final int place;
+
+        /** Index of the kind in {@link #KINDS}. */
+        private final int kind;
+
+        /** Qualifier for the organization's names. */
+        private final String qualifier;
+
+        /** Numeric suffix for the organization's names, or empty. */
+        private final String suffix;
+
+        /** Non-English languages which may be used for the organization's names. */
+        private final String[] languages;
+
+        /** Entity IDs of the organization's identity providers. */
+        private final List<String> idpEntityIDs = new ArrayList<>();
+
+        /** Number of identity providers generated so far. */
+        private int idps;
+
+        /** Number of service providers generated so far. */
+        private int sps;
+
+        /**
+         * Constructor.
+         *
+         * @param index index of the organization, which determines its names
+         * @param id UK federation organization ID, or <code>null</code>
+         * @param tld top level domain for the organization
+         * @param langs non-English languages which may be used for the organization's names
+         */
+        Organization(final int index, final String id, @Nonnull final String tld, @Nonnull final String[] langs) {
+            orgID = id;
+            languages = langs;
+            place = index % PLACES.length;
+            kind = index / PLACES.length % KINDS.length;
+            final int combination = index / (PLACES.length * KINDS.length);
+            qualifier = QUALIFIERS[combination % QUALIFIERS.length];
+            suffix = combination < QUALIFIERS.length ? "" : " " + (combination / QUALIFIERS.length + 1);
+            name = qualifier + PLACES[place] + " " + KINDS[kind] + suffix;
+            domain = name.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]+", "-") + "." + tld;
+        }
+
+        /**
+         * Generate a set of names for the organization, or one of its services, by language.
+         *
+         * @param random source of random choices
+         * @param service name of a service to add to the organization's names, or <code>null</code>
+         * @return names indexed by language, English first
+         */
+        @Nonnull
+        Map<String, String> names(@Nonnull final Random random, final String service) {
+            final String tail = service == null ? "" : " " + service;
+            final Map<String, String> names = new LinkedHashMap<>();
+            names.put("en", name + tail);
+            for (final String lang : languages) {
+                if (random.nextDouble() < languageFraction) {
+                    names.put(lang, qualifier + FOREIGN_KINDS.get(lang)[kind] + " " + PLACES[place] + suffix + tail);
+                }
+            }
+            return Collections.unmodifiableMap(names);
+        }
+
+    }
+
+    /** A generated aggregate, with its matching <code>Members</code> document. */
+    public static final class SyntheticAggregate {
+
+        /** The generated entities. */
+        @Nonnull @NonnullElements private final List<Item<Element>> items;
+
+        /** The generated <code>Members</code> document. */
+        @Nonnull private final Document membersDocument;
+
+        /**
+         * Constructor.
+         *
+         * @param entities the generated entities
+         * @param members the generated <code>Members</code> document
+         */
+        SyntheticAggregate(@Nonnull @NonnullElements final List<Item<Element>> entities,
+                @Nonnull final Document members) {
+            items = entities;
+            membersDocument = members;
+        }
+
+        /**
+         * Get the generated entities.
+         *
+         * @return the (modifiable) list of entity items
+         */
+        @Nonnull @NonnullElements
+        public List<Item<Element>> getItems() {
+            return items;
+        }
+
+        /**
+         * Get the generated <code>Members</code> document.
+         *
+         * @return the <code>Members</code> document
+         */
+        @Nonnull
+        public Document getMembersDocument() {
+            return membersDocument;
+        }
+
+        /**
+         * Get a new {@link Members} object built from the generated <code>Members</code> document.
+         *
+         * @return a new {@link Members}
+         */
+        @Nonnull
+        public Members getMembers() {
+            return new Members(membersDocument);
+        }
+
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import net.shibboleth.metadata.ErrorStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.ItemId;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.dom.saml.mdrpi.RegistrationAuthority;
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import uk.org.ukfederation.mda.SyntheticAggregateGenerator.SyntheticAggregate;
+import uk.org.ukfederation.mda.dom.saml.EntityOwnerCheckingStage;
+import uk.org.ukfederation.mda.dom.saml.ScopeInjectionStage;
+import uk.org.ukfederation.mda.dom.saml.ShibbolethMetadataSupport;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.UKFedLabelSupport;
+import uk.org.ukfederation.mda.validate.XMLDSIGSupport;
+import uk.org.ukfederation.mda.validate.mdui.MDUISupport;
+
+public class SyntheticAggregateGeneratorTest {
+
+    private List<String> serialize(final SyntheticAggregate aggregate) {
+        final List<String> result = new ArrayList<>();
+        for (final Item<Element> item : aggregate.getItems()) {
+            result.add(SerializeSupport.nodeToString(item.unwrap()));
+        }
+        result.add(SerializeSupport.nodeToString(aggregate.getMembersDocument()));
+        return result;
+    }
+
+    private int count(final List<Item<Element>> items, final String ns, final String localName) {
+        int count = 0;
+        for (final Item<Element> item : items) {
+            count += item.unwrap().getElementsByTagNameNS(ns, localName).getLength();
+        }
+        return count;
+    }
+
+    @Test
+    public void sameSeedSameAggregate() throws Exception {
+        final List<String> first = serialize(new SyntheticAggregateGenerator(1234).generate(500));
+        final List<String> second = serialize(new SyntheticAggregateGenerator(1234).generate(500));
+        Assert.assertEquals(second, first);
+
+        // A generator can be reused, and starts again from its seed.
+        final SyntheticAggregateGenerator generator = new SyntheticAggregateGenerator(1234);
+        generator.generate(10);
+        Assert.assertEquals(serialize(generator.generate(500)), first);
+    }
+
+    @Test
+    public void differentSeedDifferentAggregate() throws Exception {
+        final List<String> first = serialize(new SyntheticAggregateGenerator(1).generate(100));
+        final List<String> second = serialize(new SyntheticAggregateGenerator(2).generate(100));
+        Assert.assertNotEquals(second, first);
+    }
+
+    @Test
+    public void identifiers() throws Exception {
+        final List<Item<Element>> items = new SyntheticAggregateGenerator(0).generate(2000).getItems();
+        Assert.assertEquals(items.size(), 2000);
+        final Set<String> entityIDs = new HashSet<>();
+        String previous = "";
+        for (final Item<Element> item : items) {
+            final Element entity = item.unwrap();
+            Assert.assertTrue(SAMLMetadataSupport.isEntityDescriptor(entity));
+            final String id = entity.getAttributeNS(null, "ID");
+            Assert.assertTrue(id.matches("uk[0-9]{6}"), id);
+            Assert.assertTrue(id.compareTo(previous) > 0, "IDs should be unique and ascending");
+            previous = id;
+            Assert.assertTrue(entityIDs.add(entity.getAttributeNS(null, "entityID")), "entityIDs should be unique");
+
+            Assert.assertEquals(item.getItemMetadata().get(UKId.class).get(0).getId(), id);
+            Assert.assertEquals(item.getItemMetadata().get(ItemId.class).get(0).getId(),
+                    entity.getAttributeNS(null, "entityID"));
+            Assert.assertEquals(item.getItemMetadata().get(RegistrationAuthority.class).size(), 1);
+        }
+    }
+
+    @Test
+    public void noItemMetadata() throws Exception {
+        final SyntheticAggregateGenerator generator = new SyntheticAggregateGenerator(0);
+        generator.setPopulatingItemMetadata(false);
+        for (final Item<Element> item : generator.generate(10).getItems()) {
+            Assert.assertTrue(item.getItemMetadata().isEmpty());
+        }
+    }
+
+    @Test
+    public void content() throws Exception {
+        final List<Item<Element>> items = new SyntheticAggregateGenerator(99).generate(1000).getItems();
+        final int idps = count(items, SAMLMetadataSupport.MD_NS, "IDPSSODescriptor");
+        final int sps = count(items, SAMLMetadataSupport.MD_NS, "SPSSODescriptor");
+        Assert.assertEquals(idps + sps, 1000);
+        Assert.assertTrue(idps > 200 && idps < 400, "about 30% should be identity providers: " + idps);
+
+        Assert.assertTrue(count(items, UKFedLabelSupport.UKFEDLABEL_NS, "EnableFlow") > 0);
+        Assert.assertTrue(count(items, UKFedLabelSupport.UKFEDLABEL_NS, "DisableFlow") > 0);
+        Assert.assertTrue(count(items, UKFedLabelSupport.UKFEDLABEL_NS, "UKFederationMember") > 800);
+        Assert.assertEquals(count(items, "urn:oasis:names:tc:SAML:metadata:rpi", "RegistrationInfo"), 1000);
+
+        // Display names appear in more than one language
+        final Set<String> languages = new HashSet<>();
+        for (final Item<Element> item : items) {
+            final NodeList names = item.unwrap().getElementsByTagNameNS(MDUISupport.MDUI_NS, "DisplayName");
+            for (int i = 0; i < names.getLength(); i++) {
+                languages.add(((Element) names.item(i)).getAttributeNS("http://www.w3.org/XML/1998/namespace",
+                        "lang"));
+            }
+        }
+        Assert.assertTrue(languages.contains("en"));
+        Assert.assertTrue(languages.size() > 3, "expected several languages: " + languages);
+    }
+
+    @Test
+    public void certificates() throws Exception {
+        final SyntheticAggregateGenerator generator = new SyntheticAggregateGenerator(7);
+        generator.setDSAFraction(1.0);
+        final CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        for (final Item<Element> item : generator.generate(20).getItems()) {
+            final NodeList certs = item.unwrap().getElementsByTagNameNS(XMLDSIGSupport.XML_DSIG_NS,
+                    "X509Certificate");
+            Assert.assertTrue(certs.getLength() > 0);
+            for (int i = 0; i < certs.getLength(); i++) {
+                final byte[] der = Base64.getMimeDecoder().decode(
+                        certs.item(i).getTextContent().trim().getBytes(StandardCharsets.US_ASCII));
+                final X509Certificate cert =
+                        (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(der));
+                Assert.assertEquals(cert.getPublicKey().getAlgorithm(), "DSA");
+            }
+        }
+    }
+
+    @Test
+    public void matchingMembers() throws Exception {
+        final SyntheticAggregate aggregate = new SyntheticAggregateGenerator(5).generate(500);
+
+        final List<Item<Element>> ukItems = new ArrayList<>();
+        for (final Item<Element> item : aggregate.getItems()) {
+            if (SyntheticAggregateGenerator.UK_REGISTRAR.equals(
+                    item.getItemMetadata().get(RegistrationAuthority.class).get(0).getRegistrationAuthority())) {
+                ukItems.add(item);
+            }
+        }
+        final EntityOwnerCheckingStage owners = new EntityOwnerCheckingStage();
+        owners.setId("owners");
+        owners.setMembers(aggregate.getMembers());
+        owners.initialize();
+        owners.execute(ukItems);
+        owners.destroy();
+        for (final Item<Element> item : ukItems) {
+            Assert.assertTrue(item.getItemMetadata().get(ErrorStatus.class).isEmpty());
+        }
+
+        final int before = count(aggregate.getItems(), ShibbolethMetadataSupport.SHIBMD_NS, "Scope");
+        final ScopeInjectionStage scopes = new ScopeInjectionStage();
+        scopes.setId("scopes");
+        scopes.setMembers(aggregate.getMembers());
+        scopes.initialize();
+        scopes.execute(aggregate.getItems());
+        scopes.destroy();
+        Assert.assertTrue(count(aggregate.getItems(), ShibbolethMetadataSupport.SHIBMD_NS, "Scope") > before,
+                "some members should push scopes");
+    }
+
+}
@@ -1,7 +1,10 @@
 package uk.org.ukfederation.mda;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -80,4 +83,83 @@ public class UKEntityOrderingStrategyTest extends BaseDOMTest {
         Assert.assertEquals(items2.get(7), i5);
     }
 
+    /**
+     * Field-by-field comparison of two items, as documented for the strategy.
+     */
+    private static final Comparator<Item<Element>> REFERENCE = Comparator
+            .comparing((Item<Element> item) -> "EntitiesDescriptor".equals(item.unwrap().getLocalName()) ? "yes" : null,
+                    Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(item -> item.unwrap().hasAttribute("Name") ? item.unwrap().getAttribute("Name") : null,
+                    Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(item -> item.getItemMetadata().get(UKId.class).isEmpty() ? null :
+                    item.getItemMetadata().get(UKId.class).get(0).getId(),
+                    Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(item -> item.getItemMetadata().get(ItemId.class).isEmpty() ? null :
+                    item.getItemMetadata().get(ItemId.class).get(0).getId(),
+                    Comparator.nullsLast(Comparator.naturalOrder()));
+
+    /**
+     * Make a large shuffled collection, including duplicated keys and items with
+     * no {@link UKId}, and compare the result with a stable reference sort.
+     *
+     * @param nonStandard whether to include a {@link UKId} which is not in the standard format
+     * @throws Exception if something goes wrong
+     */
+    private void checkLargeCollection(final boolean nonStandard) throws Exception {
+        final Element trivialDoc = readXMLData("trivial.xml");
+        final Element named = readXMLData("named.xml");
+        final Element unnamed = readXMLData("unnamed.xml");
+        final Random random = new Random(20200217L);
+
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(new DOMElementItem(named));
+        items.add(new DOMElementItem(unnamed));
+        items.add(new DOMElementItem(unnamed));
+        for (int i = 0; i < 12_000; i++) {
+            final DOMElementItem item = new DOMElementItem(trivialDoc);
+            if (random.nextInt(4) != 0) {
+                item.getItemMetadata().put(UKId.valueOf(String.format("uk%06d", random.nextInt(20_000))));
+            }
+            if (random.nextInt(3) != 0) {
+                item.getItemMetadata().put(new ItemId("https://example.org/" + random.nextInt(5_000)));
+            }
+            items.add(item);
+        }
+        if (nonStandard) {
+            final DOMElementItem item = new DOMElementItem(trivialDoc);
+            item.getItemMetadata().put(new UKId("uk-other"));
+            items.add(item);
+        }
+        Collections.shuffle(items, random);
+
+        final List<Item<Element>> expected = new ArrayList<>(items);
+        expected.sort(REFERENCE);
+
+        final List<Item<Element>> ordered = new UKEntityOrderingStrategy().order(items);
+        Assert.assertEquals(ordered.size(), expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertSame(ordered.get(i), expected.get(i), "position " + i);
+        }
+    }
+
+    /**
+     * Test ordering of a large collection using sort keys.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testOrderLarge() throws Exception {
+        checkLargeCollection(false);
+    }
+
+    /**
+     * Test ordering of a large collection which can not use sort keys.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    @Test
+    public void testOrderLargeNonStandard() throws Exception {
+        checkLargeCollection(true);
+    }
+
 }
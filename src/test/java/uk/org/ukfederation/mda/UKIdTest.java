@@ -56,4 +56,46 @@ public class UKIdTest {
         Assert.assertFalse(one.hashCode() == two.hashCode());
     }
 
+    /**
+     * Test that standard format IDs are shared, and that other IDs are not.
+     */
+    @Test
+    public void testValueOf() {
+        final UKId one = UKId.valueOf("uk000123");
+        Assert.assertSame(UKId.valueOf(" uk000123 "), one);
+        Assert.assertEquals(one.getId(), "uk000123");
+        Assert.assertEquals(one, new UKId("uk000123"));
+        Assert.assertEquals(one.hashCode(), new UKId("uk000123").hashCode());
+        Assert.assertSame(UKId.valueOf("uk999999"), UKId.valueOf("uk999999"));
+        Assert.assertNotSame(UKId.valueOf("uk999999"), one);
+
+        final UKId other = UKId.valueOf("other");
+        Assert.assertNotSame(UKId.valueOf("other"), other);
+        Assert.assertEquals(UKId.valueOf("other"), other);
+
+        try {
+            UKId.valueOf("  ");
+            Assert.fail();
+        } catch (ConstraintViolationException e) {
+            // expected this
+        }
+    }
+
+    /**
+     * Test that standard format IDs compare in the same order as their strings,
+     * including against IDs in other formats.
+     */
+    @Test
+    public void testStandardOrdering() {
+        final String[] ids = {"uk00001", "uk000001", "uk000002", "uk000010", "uk100000", "uk99999", "uk999999",
+                "uk9999999", "ukx00000"};
+        for (final String a : ids) {
+            for (final String b : ids) {
+                final int expected = Integer.signum(a.compareTo(b));
+                Assert.assertEquals(Integer.signum(UKId.valueOf(a).compareTo(UKId.valueOf(b))), expected, a + " " + b);
+                Assert.assertEquals(UKId.valueOf(a).equals(UKId.valueOf(b)), a.equals(b), a + " " + b);
+            }
+        }
+    }
+
 }
@@ -5,9 +5,12 @@ import java.util.List;
 
 import javax.xml.namespace.QName;
 
+import org.testng.Assert;
 import org.testng.annotations.Test;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
+import net.shibboleth.metadata.ErrorStatus;
 import net.shibboleth.metadata.Item;
 import uk.org.ukfederation.mda.BaseDOMTest;
 
@@ -82,4 +85,95 @@ public class ElementBase64WrappingStageTest extends BaseDOMTest {
         final Element expected = readXMLData("out-3.xml");
         assertXMLEqual(expected, data.unwrap());
     }
+
+    /*
+     * Test that content which is already wrapped is left alone, and that only the
+     * elements actually changed are counted as rewritten.
+     */
+    @Test
+    public void testAlreadyWrapped() throws Exception {
+
+        final Item<Element> data = readDOMItem("in-1.xml");
+        final List<Item<Element>> coll = new ArrayList<>();
+        coll.add(data);
+
+        final ElementBase64WrappingStage stage = new ElementBase64WrappingStage();
+        stage.setId("test");
+        stage.setElementName(certQName);
+        stage.initialize();
+        stage.execute(coll);
+        Assert.assertEquals(stage.getVisitedElementCount(), 2);
+        Assert.assertEquals(stage.getRewrittenElementCount(), 2);
+
+        final Node text = data.unwrap().getElementsByTagNameNS(certQName.getNamespaceURI(),
+                certQName.getLocalPart()).item(0).getFirstChild();
+        stage.execute(coll);
+        Assert.assertEquals(stage.getVisitedElementCount(), 4);
+        Assert.assertEquals(stage.getRewrittenElementCount(), 2);
+        Assert.assertSame(data.unwrap().getElementsByTagNameNS(certQName.getNamespaceURI(),
+                certQName.getLocalPart()).item(0).getFirstChild(), text);
+
+        final Element expected = readXMLData("out-1.xml");
+        assertXMLEqual(expected, data.unwrap());
+    }
+
+    /*
+     * Test that invalid content is reported when validating, and still wrapped.
+     */
+    @Test
+    public void testValidating() throws Exception {
+
+        final Item<Element> good = readDOMItem("in-1.xml");
+        final Item<Element> bad = readDOMItem("in-1.xml");
+        final Node cert = bad.unwrap().getElementsByTagNameNS(certQName.getNamespaceURI(),
+                certQName.getLocalPart()).item(0);
+        cert.setTextContent(cert.getTextContent().replace('M', '*'));
+        final List<Item<Element>> coll = new ArrayList<>();
+        coll.add(good);
+        coll.add(bad);
+
+        final ElementBase64WrappingStage stage = new ElementBase64WrappingStage();
+        stage.setId("test");
+        stage.setElementName(certQName);
+        stage.setValidating(true);
+        stage.initialize();
+        Assert.assertTrue(stage.isValidating());
+        stage.execute(coll);
+
+        Assert.assertTrue(good.getItemMetadata().get(ErrorStatus.class).isEmpty());
+        final List<ErrorStatus> errors = bad.getItemMetadata().get(ErrorStatus.class);
+        Assert.assertEquals(errors.size(), 1);
+        Assert.assertEquals(errors.get(0).getStatusMessage(),
+                "invalid Base64 content in ds:X509Certificate: invalid character '*' at position 0");
+        Assert.assertEquals(stage.getRewrittenElementCount(), 4);
+    }
+
+    /*
+     * Test that identical content in different items shares a single wrapped string.
+     */
+    @Test
+    public void testCaching() throws Exception {
+
+        final Item<Element> data1 = readDOMItem("in-1.xml");
+        final Item<Element> data2 = readDOMItem("in-1.xml");
+        final List<Item<Element>> coll = new ArrayList<>();
+        coll.add(data1);
+        coll.add(data2);
+
+        final ElementBase64WrappingStage stage = new ElementBase64WrappingStage();
+        stage.setId("test");
+        stage.setElementName(certQName);
+        stage.setCacheSize(100);
+        stage.initialize();
+        Assert.assertEquals(stage.getCacheSize(), 100);
+        stage.execute(coll);
+
+        final Element expected = readXMLData("out-1.xml");
+        assertXMLEqual(expected, data1.unwrap());
+        assertXMLEqual(expected, data2.unwrap());
+        Assert.assertSame(data2.unwrap().getElementsByTagNameNS(certQName.getNamespaceURI(),
+                certQName.getLocalPart()).item(0).getFirstChild().getNodeValue(),
+                data1.unwrap().getElementsByTagNameNS(certQName.getNamespaceURI(),
+                certQName.getLocalPart()).item(0).getFirstChild().getNodeValue());
+    }
 }
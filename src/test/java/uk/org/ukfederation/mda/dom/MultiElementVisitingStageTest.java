@@ -0,0 +1,88 @@
+package uk.org.ukfederation.mda.dom;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.ElementVisitor;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import uk.org.ukfederation.mda.BaseDOMTest;
+import uk.org.ukfederation.mda.dom.impl.Base64WrappingVisitor;
+
+public class MultiElementVisitingStageTest extends BaseDOMTest {
+
+    protected MultiElementVisitingStageTest() {
+        super(MultiElementVisitingStage.class);
+    }
+
+    private final QName certQName =
+            new QName("http://www.w3.org/2000/09/xmldsig#", "X509Certificate");
+
+    private final QName keyDescriptorQName = new QName(SAMLMetadataSupport.MD_NS, "KeyDescriptor");
+
+    /*
+     * Test that several visitors are applied in a single stage, and that the result of
+     * wrapping is the same as that of ElementBase64WrappingStage.
+     */
+    @Test
+    public void testVisitors() throws Exception {
+
+        // Share the input with ElementBase64WrappingStageTest
+        final Item<Element> data = readDOMItem(packageRelativeResource("ElementBase64WrappingStage-in-1.xml"));
+        final List<Item<Element>> coll = new ArrayList<>();
+        coll.add(data);
+
+        final List<Element> keyDescriptors = new ArrayList<>();
+        final List<String> order = new ArrayList<>();
+        final Map<QName, ElementVisitor> visitors = new HashMap<>();
+        final Base64WrappingVisitor wrapper = new Base64WrappingVisitor();
+        visitors.put(certQName, (e, item) -> {
+            order.add(e.getLocalName());
+            wrapper.visitElement(e, item);
+        });
+        visitors.put(keyDescriptorQName, (e, item) -> {
+            order.add(e.getLocalName());
+            keyDescriptors.add(e);
+        });
+        visitors.put(new QName("urn:example:unused", "KeyDescriptor"), (e, item) -> Assert.fail());
+
+        final MultiElementVisitingStage stage = new MultiElementVisitingStage();
+        stage.setId("test");
+        stage.setVisitors(visitors);
+        stage.initialize();
+        Assert.assertEquals(stage.getVisitors(), visitors);
+        stage.execute(coll);
+
+        final Element expected = readXMLData(packageRelativeResource("ElementBase64WrappingStage-out-1.xml"));
+        assertXMLEqual(expected, data.unwrap());
+
+        Assert.assertEquals(keyDescriptors.size(), 2);
+        // Descendants are visited before their ancestors
+        Assert.assertEquals(order, List.of("X509Certificate", "KeyDescriptor", "X509Certificate", "KeyDescriptor"));
+    }
+
+    @Test
+    public void testNoVisitors() throws Exception {
+        final Item<Element> data = readDOMItem(packageRelativeResource("ElementBase64WrappingStage-in-1.xml"));
+        final Item<Element> original = data.copy();
+        final List<Item<Element>> coll = new ArrayList<>();
+        coll.add(data);
+
+        final MultiElementVisitingStage stage = new MultiElementVisitingStage();
+        stage.setId("test");
+        stage.initialize();
+        Assert.assertTrue(stage.getVisitors().isEmpty());
+        stage.execute(coll);
+
+        assertXMLEqual(original.unwrap(), data.unwrap());
+    }
+
+}
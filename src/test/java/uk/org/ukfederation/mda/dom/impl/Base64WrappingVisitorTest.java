@@ -1,9 +1,18 @@
 package uk.org.ukfederation.mda.dom.impl;
 
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
 import javax.annotation.Nonnull;
+import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 import uk.ac.sdss.xalan.md.TextUtils;
 
@@ -46,4 +55,149 @@ public class Base64WrappingVisitorTest {
         testCase(sixtyFour + sixtyFour + "wibble",
                 sixtyFour + "\n" + sixtyFour +"\n" + "wibble");
     }
+
+    @Test
+    public void testBoundaries() {
+        testCase(sixtyFour + "1", sixtyFour + "\n" + "1");
+        testCase(sixtyFour + sixtyFour, sixtyFour + "\n" + sixtyFour);
+        testCase("\n  " + sixty + "\n  1234" + sixtyFour + "\t\n", sixtyFour + "\n" + sixtyFour);
+    }
+
+    @Test
+    public void testMimeEncoded() {
+        final byte[] blob = new byte[5000];
+        new Random(42).nextBytes(blob);
+        final String text = "\n    " + Base64.getMimeEncoder().encodeToString(blob).replace("\r\n", "\n    ") + "\n";
+        Assert.assertEquals(Base64WrappingVisitor.wrapBase64(text), TextUtils.wrapBase64(text));
+    }
+
+    @Test
+    public void testIsWrapped() {
+        Assert.assertTrue(Base64WrappingVisitor.isWrapped("\n\n"));
+        Assert.assertTrue(Base64WrappingVisitor.isWrapped("\nabcd\n"));
+        Assert.assertTrue(Base64WrappingVisitor.isWrapped("\n" + sixtyFour + "\n"));
+        Assert.assertTrue(Base64WrappingVisitor.isWrapped("\n" + sixtyFour + "\n" + sixtyFour + "\nab\n"));
+
+        Assert.assertFalse(Base64WrappingVisitor.isWrapped(""));
+        Assert.assertFalse(Base64WrappingVisitor.isWrapped("\n"));
+        Assert.assertFalse(Base64WrappingVisitor.isWrapped("abcd"));
+        Assert.assertFalse(Base64WrappingVisitor.isWrapped("\nabcd"));
+        Assert.assertFalse(Base64WrappingVisitor.isWrapped("\nab cd\n"));
+        Assert.assertFalse(Base64WrappingVisitor.isWrapped("\n" + sixty + "\n" + sixty + "\n"));
+        Assert.assertFalse(Base64WrappingVisitor.isWrapped("\n" + sixtyFour + "1\n"));
+        Assert.assertFalse(Base64WrappingVisitor.isWrapped("\n" + sixtyFour + "\n\n"));
+        Assert.assertFalse(Base64WrappingVisitor.isWrapped("\r\n" + sixtyFour + "\r\n"));
+    }
+
+    @Test
+    public void testIsWrappedMatchesWrap() {
+        final String[] inputs = {"", " ab cd ", sixty, sixtyFour, sixtyFour + sixtyFour + "wibble"};
+        for (final String input : inputs) {
+            Assert.assertTrue(Base64WrappingVisitor.isWrapped("\n" + Base64WrappingVisitor.wrapBase64(input) + "\n"));
+        }
+    }
+
+    private Element makeElement(final String... texts) throws Exception {
+        final Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        final Element element = doc.createElementNS("http://www.w3.org/2000/09/xmldsig#", "ds:X509Certificate");
+        doc.appendChild(element);
+        for (final String text : texts) {
+            element.appendChild(doc.createTextNode(text));
+        }
+        return element;
+    }
+
+    private String makeBlob(final int size) {
+        final byte[] blob = new byte[size];
+        new Random(size).nextBytes(blob);
+        return "\n    " + Base64.getMimeEncoder().encodeToString(blob).replace("\r\n", "\n    ") + "\n";
+    }
+
+    private int countChildren(final Element element) {
+        int count = 0;
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testSplitContent() throws Exception {
+        for (final int size : new int[] {0, 1, 47, 48, 49, 1000, 20000}) {
+            final String blob = makeBlob(size);
+            final Element expected = makeElement(blob);
+            Assert.assertTrue(new Base64WrappingVisitor().wrapElement(expected));
+
+            final Element element = makeElement(blob.substring(0, blob.length() / 3),
+                    blob.substring(blob.length() / 3));
+            Assert.assertTrue(new Base64WrappingVisitor().wrapElement(element));
+            Assert.assertEquals(element.getTextContent(), expected.getTextContent());
+
+            // The content is replaced by a single text node
+            Assert.assertEquals(countChildren(element), 1);
+            Assert.assertEquals(element.getFirstChild().getNodeType(), Node.TEXT_NODE);
+        }
+    }
+
+    @Test
+    public void testSplitAlreadyWrapped() throws Exception {
+        final String blob = makeBlob(5000);
+        final Element element = makeElement(blob.substring(0, 1000), blob.substring(1000));
+        final Base64WrappingVisitor visitor = new Base64WrappingVisitor();
+        Assert.assertTrue(visitor.wrapElement(element));
+        final Node first = element.getFirstChild();
+        Assert.assertFalse(visitor.wrapElement(element));
+        Assert.assertSame(element.getFirstChild(), first);
+
+        // Wrapped content split between several text nodes is also left untouched
+        final String wrapped = first.getNodeValue();
+        final Element split = makeElement(wrapped.substring(0, 100), wrapped.substring(100));
+        final Node splitFirst = split.getFirstChild();
+        Assert.assertFalse(visitor.wrapElement(split));
+        Assert.assertSame(split.getFirstChild(), splitFirst);
+        Assert.assertEquals(countChildren(split), 2);
+    }
+
+    @Test
+    public void testMixedContent() throws Exception {
+        final Element element = makeElement(" ab ");
+        element.appendChild(element.getOwnerDocument().createComment("comment"));
+        element.appendChild(element.getOwnerDocument().createTextNode(" cd "));
+        Assert.assertTrue(new Base64WrappingVisitor().wrapElement(element));
+        Assert.assertEquals(countChildren(element), 1);
+        Assert.assertEquals(element.getTextContent(), "\nabcd\n");
+    }
+
+    private String validate(final String... texts) throws Exception {
+        final List<String> problems = new ArrayList<>();
+        new Base64WrappingVisitor().wrapElement(makeElement(texts), problems);
+        Assert.assertTrue(problems.size() <= 1);
+        return problems.isEmpty() ? null : problems.get(0);
+    }
+
+    @Test
+    public void testValidation() throws Exception {
+        // Valid, both unwrapped and already wrapped
+        Assert.assertNull(validate(makeBlob(1000)));
+        Assert.assertNull(validate(makeBlob(1001)));
+        Assert.assertNull(validate(makeBlob(1002)));
+        Assert.assertNull(validate("\n" + sixtyFour + "\nAB==\n"));
+        Assert.assertNull(validate("\n" + sixtyFour + "\n", "ABC=\n"));
+        Assert.assertNull(validate(""));
+
+        // Valid, but found not to be wrapped part way through: each character is checked once
+        Assert.assertNull(validate("\n" + sixtyFour + "\nAB CD\n"));
+        Assert.assertNull(validate("\n" + sixtyFour + "\n", "AB", " CD\n"));
+
+        // Invalid, both unwrapped and already wrapped
+        Assert.assertEquals(validate(" AB!D "), "invalid character '!' at position 2");
+        Assert.assertEquals(validate("\nAB-D\n"), "invalid character '-' at position 2");
+        Assert.assertEquals(validate("AB\u00a0D"), "invalid character U+00A0 at position 2");
+        Assert.assertEquals(validate("ABC"), "length 3 is not a multiple of 4");
+        Assert.assertEquals(validate("\nA===\n"), "too much padding");
+        Assert.assertEquals(validate("AB=CABCD"), "data after padding");
+        Assert.assertEquals(validate("\n" + sixtyFour + "\n", "A=BC\n"), "data after padding");
+        Assert.assertEquals(validate("\n" + sixtyFour + "\nAB !D\n"), "invalid character '!' at position 66");
+        Assert.assertEquals(validate("\nA!" + sixtyFour + "\n"), "invalid character '!' at position 1");
+    }
 }
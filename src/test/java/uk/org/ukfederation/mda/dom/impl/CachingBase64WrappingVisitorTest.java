@@ -0,0 +1,92 @@
+package uk.org.ukfederation.mda.dom.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Text;
+
+public class CachingBase64WrappingVisitorTest {
+
+    final String ten = "1234567890";
+    final String sixtyFour = ten + ten + ten + ten + ten + ten + "1234";
+
+    private Element makeElement(final String text) throws Exception {
+        final Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        final Element element = doc.createElementNS("http://www.w3.org/2000/09/xmldsig#", "ds:X509Certificate");
+        doc.appendChild(element);
+        element.appendChild(doc.createTextNode(text));
+        return element;
+    }
+
+    private String data(final Element element) {
+        return ((Text) element.getFirstChild()).getData();
+    }
+
+    @Test
+    public void testSharing() throws Exception {
+        final CachingBase64WrappingVisitor visitor = new CachingBase64WrappingVisitor(10);
+        final Element a = makeElement("  " + sixtyFour + "\n  ABCD  ");
+        final Element b = makeElement(sixtyFour + "AB\nCD");
+        final Element c = makeElement(sixtyFour + "ABCE");
+
+        Assert.assertTrue(visitor.wrapElement(a));
+        Assert.assertTrue(visitor.wrapElement(b));
+        Assert.assertTrue(visitor.wrapElement(c));
+        Assert.assertEquals(data(a), "\n" + sixtyFour + "\nABCD\n");
+        Assert.assertSame(data(b), data(a));
+        Assert.assertEquals(data(c), "\n" + sixtyFour + "\nABCE\n");
+        Assert.assertEquals(visitor.getCacheSize(), 2);
+
+        // Already wrapped content is not replaced
+        Assert.assertFalse(visitor.wrapElement(a));
+    }
+
+    @Test
+    public void testSplitContent() throws Exception {
+        final CachingBase64WrappingVisitor visitor = new CachingBase64WrappingVisitor(10);
+        final Element a = makeElement("  " + sixtyFour + "\n  ABCD  ");
+        final Element b = makeElement("  " + sixtyFour.substring(0, 10));
+        b.appendChild(b.getOwnerDocument().createTextNode(sixtyFour.substring(10) + "\n  ABCD  "));
+
+        Assert.assertTrue(visitor.wrapElement(a));
+        Assert.assertTrue(visitor.wrapElement(b));
+        Assert.assertSame(data(b), data(a));
+        Assert.assertNull(b.getFirstChild().getNextSibling());
+    }
+
+    @Test
+    public void testMatchesBase64WrappingVisitor() throws Exception {
+        final CachingBase64WrappingVisitor visitor = new CachingBase64WrappingVisitor(1);
+        final String[] inputs = {"", " ab cd ", sixtyFour + sixtyFour + "wibble", " ab cd ", ""};
+        for (final String input : inputs) {
+            final Element expected = makeElement(input);
+            new Base64WrappingVisitor().wrapElement(expected);
+            final Element element = makeElement(input);
+            visitor.wrapElement(element);
+            Assert.assertEquals(element.getTextContent(), expected.getTextContent());
+        }
+        Assert.assertEquals(visitor.getCacheSize(), 1);
+    }
+
+    @Test
+    public void testValidation() throws Exception {
+        final CachingBase64WrappingVisitor visitor = new CachingBase64WrappingVisitor(10);
+        final List<String> problems = new ArrayList<>();
+        visitor.wrapElement(makeElement("AB!D"), problems);
+        visitor.wrapElement(makeElement("AB!D"), problems);
+        Assert.assertEquals(problems.size(), 2);
+        Assert.assertEquals(problems.get(1), "invalid character '!' at position 2");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testBadSize() {
+        new CachingBase64WrappingVisitor(0);
+    }
+
+}
@@ -0,0 +1,143 @@
+package uk.org.ukfederation.mda.dom.saml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.dom.saml.SAMLMetadataSupport;
+import net.shibboleth.metadata.dom.saml.mdui.MDUISupport;
+import net.shibboleth.utilities.java.support.logic.ConstraintViolationException;
+import uk.org.ukfederation.mda.BaseDOMTest;
+import uk.org.ukfederation.mda.dom.saml.ukfedlabel.UKFedLabelSupport;
+
+public class EntityElementIndexTest extends BaseDOMTest {
+
+    private static final QName ODN = new QName(SAMLMetadataSupport.MD_NS, "OrganizationDisplayName");
+
+    protected EntityElementIndexTest() {
+        super(EntityElementIndex.class);
+    }
+
+    private List<String> texts(final List<Element> elements) {
+        final List<String> texts = new ArrayList<>();
+        for (final Element element : elements) {
+            texts.add(element.getTextContent());
+        }
+        return texts;
+    }
+
+    @Test
+    public void testElements() throws Exception {
+        final Item<Element> item = readDOMItem("entity.xml");
+        final Element entity = item.unwrap();
+        final EntityElementIndex index =
+                new EntityElementIndex(entity, EntityElementIndexPopulationStage.DEFAULT_ELEMENT_NAMES);
+        Assert.assertSame(index.getEntity(), entity);
+
+        // The same elements, in the same order, as getElementsByTagNameNS
+        for (final QName name : EntityElementIndexPopulationStage.DEFAULT_ELEMENT_NAMES) {
+            Assert.assertTrue(index.isIndexed(name));
+            final NodeList expected = entity.getElementsByTagNameNS(name.getNamespaceURI(), name.getLocalPart());
+            final List<Element> actual = index.getElements(name);
+            Assert.assertEquals(actual.size(), expected.getLength(), name.toString());
+            for (int i = 0; i < actual.size(); i++) {
+                Assert.assertSame(actual.get(i), expected.item(i));
+            }
+        }
+
+        Assert.assertEquals(texts(index.getElements(MDUISupport.DISPLAYNAME_NAME)),
+                List.of("Example IdP", "Enghraifft IdP", "Example SP"));
+        Assert.assertEquals(texts(index.getElements(ODN)), List.of("Example Organization"));
+        Assert.assertEquals(index.getElements(UKFedLabelSupport.UK_FEDERATION_ENABLE_FLOW_NAME).size(), 3);
+        Assert.assertEquals(index.getElements(UKFedLabelSupport.UK_FEDERATION_DISABLE_FLOW_NAME).size(), 0);
+    }
+
+    @Test(expectedExceptions = {ConstraintViolationException.class})
+    public void testNotIndexed() throws Exception {
+        final Item<Element> item = readDOMItem("entity.xml");
+        final EntityElementIndex index = new EntityElementIndex(item.unwrap(), List.of(ODN));
+        Assert.assertFalse(index.isIndexed(MDUISupport.DISPLAYNAME_NAME));
+        index.getElements(MDUISupport.DISPLAYNAME_NAME);
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        final Item<Element> item = readDOMItem("entity.xml");
+        Assert.assertNull(EntityElementIndex.get(item, ODN));
+
+        final EntityElementIndex index = new EntityElementIndex(item.unwrap(), List.of(ODN));
+        item.getItemMetadata().put(index);
+        Assert.assertSame(EntityElementIndex.get(item, ODN), index);
+        Assert.assertSame(EntityElementIndex.get(item), index);
+
+        // An index which does not cover all the names requested is not returned
+        Assert.assertNull(EntityElementIndex.get(item, ODN, MDUISupport.DISPLAYNAME_NAME));
+
+        EntityElementIndex.invalidate(item);
+        Assert.assertTrue(item.getItemMetadata().get(EntityElementIndex.class).isEmpty());
+        Assert.assertNull(EntityElementIndex.get(item, ODN));
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        final Item<Element> item = readDOMItem("entity.xml");
+        final EntityElementIndex index = new EntityElementIndex(item.unwrap(), List.of(ODN));
+        item.getItemMetadata().put(index);
+
+        // A copied item has a different DOM, so the copied index is not valid for it and is removed
+        final Item<Element> copy = item.copy();
+        Assert.assertEquals(copy.getItemMetadata().get(EntityElementIndex.class).size(), 1);
+        Assert.assertNull(EntityElementIndex.get(copy, ODN));
+        Assert.assertTrue(copy.getItemMetadata().get(EntityElementIndex.class).isEmpty());
+
+        // The original keeps its index
+        Assert.assertSame(EntityElementIndex.get(item, ODN), index);
+    }
+
+    @Test
+    public void testDetached() throws Exception {
+        final Item<Element> item = readDOMItem("entity.xml");
+        final EntityElementIndex index =
+                new EntityElementIndex(item.unwrap(), List.of(ODN, MDUISupport.DISPLAYNAME_NAME));
+        item.getItemMetadata().put(index);
+
+        // Removing an element without invalidating the index
+        final Element displayName = index.getElements(MDUISupport.DISPLAYNAME_NAME).get(0);
+        displayName.getParentNode().removeChild(displayName);
+
+        // The index is still usable for names whose elements are all attached
+        Assert.assertSame(EntityElementIndex.get(item, ODN), index);
+
+        // but not for the name with a detached element, and is then removed
+        Assert.assertNull(EntityElementIndex.get(item, MDUISupport.DISPLAYNAME_NAME));
+        Assert.assertTrue(item.getItemMetadata().get(EntityElementIndex.class).isEmpty());
+        Assert.assertNull(EntityElementIndex.get(item, ODN));
+    }
+
+    @Test
+    public void testPopulationStage() throws Exception {
+        final EntityElementIndexPopulationStage stage = new EntityElementIndexPopulationStage();
+        stage.setId("test");
+        stage.setElementNames(List.of(ODN));
+        stage.initialize();
+
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(readDOMItem("entity.xml"));
+        stage.execute(items);
+        stage.execute(items);
+
+        // Re-populating replaces the existing index
+        final List<EntityElementIndex> indexes = items.get(0).getItemMetadata().get(EntityElementIndex.class);
+        Assert.assertEquals(indexes.size(), 1);
+        Assert.assertSame(EntityElementIndex.get(items.get(0), ODN), indexes.get(0));
+        Assert.assertFalse(indexes.get(0).isIndexed(MDUISupport.DISPLAYNAME_NAME));
+    }
+
+}
@@ -4,6 +4,7 @@ package uk.org.ukfederation.mda.dom.saml;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.testng.Assert;
 import org.testng.annotations.Test;
 import org.w3c.dom.Element;
 
@@ -42,4 +43,18 @@ public class ScopeInjectionStageTest extends BaseDOMTest {
         assertXMLEqual(out, item.unwrap());
     }
 
+    @Test
+    public void testInvalidatesIndex() throws Exception {
+        final ScopeInjectionStage stage = makeStage();
+        final Item<Element> item = readDOMItem("in1.xml");
+        item.getItemMetadata().put(new EntityElementIndex(item.unwrap(),
+                EntityElementIndexPopulationStage.DEFAULT_ELEMENT_NAMES));
+        final List<Item<Element>> items = new ArrayList<>();
+        items.add(item);
+        stage.execute(items);
+
+        // Scopes were added, so the index has been removed
+        Assert.assertTrue(item.getItemMetadata().get(EntityElementIndex.class).isEmpty());
+    }
+
 }
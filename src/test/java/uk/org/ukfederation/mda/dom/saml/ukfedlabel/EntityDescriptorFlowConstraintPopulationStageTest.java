@@ -3,6 +3,8 @@ package uk.org.ukfederation.mda.dom.saml.ukfedlabel;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -12,6 +14,8 @@ import net.shibboleth.metadata.Item;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.xml.XMLParserException;
 import uk.org.ukfederation.mda.BaseDOMTest;
+import uk.org.ukfederation.mda.dom.saml.EntityElementIndex;
+import uk.org.ukfederation.mda.dom.saml.EntityElementIndexPopulationStage;
 
 public class EntityDescriptorFlowConstraintPopulationStageTest extends BaseDOMTest {
 
@@ -109,5 +113,99 @@ public class EntityDescriptorFlowConstraintPopulationStageTest extends BaseDOMTe
         Assert.assertEquals(disables.get(0).getFlowName(), "   ");
         Assert.assertEquals(enables.get(0).getFlowName(), "");
     }
-    
+
+    @Test
+    public void testFlowMask() throws Exception {
+        final FlowRegistry registry = new FlowRegistry(List.of("other", "wobble", "wibble"));
+        final EntityDescriptorFlowConstraintPopulationStage masking =
+                new EntityDescriptorFlowConstraintPopulationStage();
+        masking.setId("masking");
+        masking.setFlowRegistry(registry);
+        masking.initialize();
+
+        final List<Item<Element>> items = readSingleItem("enable.xml");
+        items.addAll(readSingleItem("disable.xml"));
+        items.addAll(readSingleItem("both.xml"));
+        masking.execute(items);
+
+        final FlowMask enabled = items.get(0).getItemMetadata().get(FlowMask.class).get(0);
+        Assert.assertSame(enabled.getRegistry(), registry);
+        Assert.assertEquals(enabled.getEnabled(), 0b110);
+        Assert.assertEquals(enabled.getDisabled(), 0);
+        Assert.assertFalse(enabled.isConflicting());
+        Assert.assertFalse(enabled.isPreserved(0));
+        Assert.assertTrue(enabled.isPreserved(1));
+        Assert.assertTrue(enabled.isPreserved(2));
+
+        final FlowMask disabled = items.get(1).getItemMetadata().get(FlowMask.class).get(0);
+        Assert.assertEquals(disabled.getEnabled(), 0);
+        Assert.assertEquals(disabled.getDisabled(), 0b110);
+        Assert.assertFalse(disabled.isConflicting());
+        Assert.assertTrue(disabled.isPreserved(0));
+        Assert.assertFalse(disabled.isPreserved(1));
+        Assert.assertFalse(disabled.isPreserved(2));
+
+        final FlowMask both = items.get(2).getItemMetadata().get(FlowMask.class).get(0);
+        Assert.assertTrue(both.isConflicting());
+
+        // The individual constraints are still present
+        Assert.assertEquals(items.get(0).getItemMetadata().get(EnableFlow.class).size(), 2);
+
+        // Without a registry, no mask is added
+        final List<Item<Element>> plain = readSingleItem("enable.xml");
+        stage.execute(plain);
+        Assert.assertTrue(plain.get(0).getItemMetadata().get(FlowMask.class).isEmpty());
+    }
+
+    @Test
+    public void testIndexed() throws Exception {
+        for (final String name : List.of("none.xml", "enable.xml", "disable.xml", "both.xml", "bad.xml")) {
+            final List<Item<Element>> expected = readSingleItem(name);
+            final List<Item<Element>> indexed = readSingleItem(name);
+            indexed.get(0).getItemMetadata().put(new EntityElementIndex(indexed.get(0).unwrap(),
+                    EntityElementIndexPopulationStage.DEFAULT_ELEMENT_NAMES));
+            stage.execute(expected);
+            stage.execute(indexed);
+            final List<FlowConstraint> expectedConstraints =
+                    expected.get(0).getItemMetadata().get(FlowConstraint.class);
+            final List<FlowConstraint> indexedConstraints =
+                    indexed.get(0).getItemMetadata().get(FlowConstraint.class);
+            Assert.assertEquals(indexedConstraints.size(), expectedConstraints.size(), name);
+            for (int i = 0; i < expectedConstraints.size(); i++) {
+                Assert.assertEquals(indexedConstraints.get(i).getClass(), expectedConstraints.get(i).getClass());
+                Assert.assertEquals(indexedConstraints.get(i).getFlowName(), expectedConstraints.get(i).getFlowName());
+            }
+        }
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final EntityDescriptorFlowConstraintPopulationStage parallel =
+                    new EntityDescriptorFlowConstraintPopulationStage();
+            parallel.setId("parallel");
+            parallel.setExecutorService(executor);
+            parallel.initialize();
+
+            final List<Item<Element>> items = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                items.add(readDOMItem("both.xml"));
+            }
+            parallel.execute(items);
+            Assert.assertEquals(items.size(), 20);
+            for (final Item<Element> item : items) {
+                final List<EnableFlow> enables = item.getItemMetadata().get(EnableFlow.class);
+                final List<DisableFlow> disables = item.getItemMetadata().get(DisableFlow.class);
+                Assert.assertEquals(item.getItemMetadata().get(FlowConstraint.class).size(), 4);
+                Assert.assertEquals(enables.get(0).getFlowName(), "wibble");
+                Assert.assertEquals(enables.get(1).getFlowName(), "wobble");
+                Assert.assertEquals(disables.get(0).getFlowName(), "wibble");
+                Assert.assertEquals(disables.get(1).getFlowName(), "wobble");
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
 }
@@ -14,6 +14,7 @@ import net.shibboleth.metadata.MockItem;
 import net.shibboleth.metadata.pipeline.Stage;
 import net.shibboleth.metadata.pipeline.StageProcessingException;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.UnmodifiableComponentException;
 
 public class FlowConstraintApplyingStageTest {
 
@@ -62,6 +63,91 @@ public class FlowConstraintApplyingStageTest {
         stage.initialize();
     }
 
+    @Test(expectedExceptions = {UnmodifiableComponentException.class})
+    public void testSetFlowNameAfterInitialize() throws Exception {
+        final var stage = new FlowConstraintApplyingStage<String>();
+        stage.setId("test");
+        stage.setFlowName("test");
+        stage.initialize();
+        stage.setFlowName("other");
+    }
+
+    @Test(expectedExceptions = {ComponentInitializationException.class})
+    public void testFlowNotRegistered() throws Exception {
+        final var stage = new FlowConstraintApplyingStage<String>();
+        stage.setId("test");
+        stage.setFlowName("test");
+        stage.setFlowRegistry(new FlowRegistry(List.of("one", "two")));
+        stage.initialize();
+    }
+
+    /**
+     * Check that filtering using a {@link FlowMask} gives the same result as using the
+     * individual constraints, for every combination of up to two constraints.
+     */
+    @Test
+    public void testFlowMask() throws Exception {
+        final List<String> flows = List.of("test", "one", "two");
+        final FlowRegistry registry = new FlowRegistry(List.of("two", "test", "one"));
+        final List<List<FlowConstraint>> cases = new ArrayList<>();
+        cases.add(List.of());
+        for (final String a : flows) {
+            cases.add(List.of(new EnableFlow(a)));
+            cases.add(List.of(new DisableFlow(a)));
+            cases.add(List.of(new EnableFlow(a), new EnableFlow("unregistered")));
+            cases.add(List.of(new DisableFlow(a), new DisableFlow("unregistered")));
+            for (final String b : flows) {
+                cases.add(List.of(new EnableFlow(a), new EnableFlow(b)));
+                cases.add(List.of(new DisableFlow(a), new DisableFlow(b)));
+            }
+        }
+        cases.add(List.of(new EnableFlow("unregistered")));
+
+        for (final String flow : flows) {
+            final Stage<String> plain = makeStage(flow);
+            final var masked = new FlowConstraintApplyingStage<String>();
+            masked.setId("masked");
+            masked.setFlowName(flow);
+            masked.setFlowRegistry(registry);
+            masked.initialize();
+
+            for (final List<FlowConstraint> constraints : cases) {
+                final List<Item<String>> expected = makeCollection();
+                final List<Item<String>> actual = makeCollection();
+                final List<EnableFlow> enables = new ArrayList<>();
+                final List<DisableFlow> disables = new ArrayList<>();
+                for (final FlowConstraint constraint : constraints) {
+                    expected.get(0).getItemMetadata().put(constraint);
+                    if (constraint instanceof EnableFlow) {
+                        enables.add((EnableFlow) constraint);
+                    } else {
+                        disables.add((DisableFlow) constraint);
+                    }
+                }
+                // Only the mask on this item: the stage must not need the individual constraints
+                actual.get(0).getItemMetadata().put(new FlowMask(registry, enables, disables));
+                plain.execute(expected);
+                masked.execute(actual);
+                Assert.assertEquals(actual.size(), expected.size(), flow + " " + constraints);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = {StageProcessingException.class},
+            expectedExceptionsMessageRegExp = ".*has both enables and disables.*")
+    public void testFlowMaskConflicting() throws Exception {
+        final FlowRegistry registry = new FlowRegistry(List.of("test"));
+        final var stage = new FlowConstraintApplyingStage<String>();
+        stage.setId("test");
+        stage.setFlowName("test");
+        stage.setFlowRegistry(registry);
+        stage.initialize();
+        final List<Item<String>> items = makeCollection();
+        items.get(0).getItemMetadata().put(new FlowMask(registry,
+                List.of(new EnableFlow("test")), List.of(new DisableFlow("other"))));
+        stage.execute(items);
+    }
+
     @Test
     public void testNoConstraints() throws Exception {
         final Stage<String> stage = makeStage("test");
@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.dom.saml.ukfedlabel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.MockItem;
+import net.shibboleth.metadata.pipeline.AbstractStage;
+import net.shibboleth.metadata.pipeline.Pipeline;
+import net.shibboleth.metadata.pipeline.SimplePipeline;
+import net.shibboleth.metadata.pipeline.Stage;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+public class FlowDemultiplexerStageTest {
+
+    /** A stage which records the items it is given. */
+    private static class CollectingStage extends AbstractStage<String> {
+
+        final List<Item<String>> collected = new ArrayList<>();
+
+        @Override
+        protected void doExecute(final List<Item<String>> items) throws StageProcessingException {
+            collected.addAll(items);
+        }
+
+    }
+
+    private final Map<String, CollectingStage> collectors = new LinkedHashMap<>();
+
+    private FlowDemultiplexerStage<String> makeStage(final String... flows)
+            throws ComponentInitializationException {
+        collectors.clear();
+        final Map<String, Pipeline<String>> pipelines = new LinkedHashMap<>();
+        for (final String flow : flows) {
+            final CollectingStage collector = new CollectingStage();
+            collector.setId(flow);
+            collector.initialize();
+            collectors.put(flow, collector);
+
+            final SimplePipeline<String> pipeline = new SimplePipeline<>();
+            pipeline.setId(flow);
+            pipeline.setStages(List.<Stage<String>>of(collector));
+            pipeline.initialize();
+            pipelines.put(flow, pipeline);
+        }
+
+        final FlowDemultiplexerStage<String> stage = new FlowDemultiplexerStage<>();
+        stage.setId("test");
+        stage.setFlowPipelines(pipelines);
+        stage.initialize();
+        return stage;
+    }
+
+    private Item<String> makeItem(final String name, final FlowConstraint... constraints) {
+        final Item<String> item = new MockItem(name);
+        for (final FlowConstraint constraint : constraints) {
+            item.getItemMetadata().put(constraint);
+        }
+        return item;
+    }
+
+    private List<String> collected(final String flow) {
+        final List<String> names = new ArrayList<>();
+        for (final Item<String> item : collectors.get(flow).collected) {
+            names.add(item.unwrap());
+        }
+        return names;
+    }
+
+    @Test
+    public void testFlows() throws Exception {
+        final FlowDemultiplexerStage<String> stage = makeStage("wibble", "wobble", "export");
+        final Item<String> plain = makeItem("plain");
+        final List<Item<String>> items = new ArrayList<>();
+        items.add(plain);
+        items.add(makeItem("enableWibble", new EnableFlow("wibble")));
+        items.add(makeItem("enableBoth", new EnableFlow("wibble"), new EnableFlow("wobble")));
+        items.add(makeItem("disableWobble", new DisableFlow("wobble")));
+        items.add(makeItem("enableOther", new EnableFlow("other")));
+        items.add(makeItem("disableOther", new DisableFlow("other")));
+        stage.execute(items);
+
+        // the input collection is unchanged
+        Assert.assertEquals(items.size(), 6);
+
+        Assert.assertEquals(collected("wibble"),
+                List.of("plain", "enableWibble", "enableBoth", "disableWobble", "disableOther"));
+        Assert.assertEquals(collected("wobble"), List.of("plain", "enableBoth", "disableOther"));
+        Assert.assertEquals(collected("export"), List.of("plain", "disableWobble", "disableOther"));
+
+        // items without flow constraints are shared between flows
+        Assert.assertSame(collectors.get("wibble").collected.get(0), plain);
+        Assert.assertSame(collectors.get("wobble").collected.get(0), plain);
+        Assert.assertSame(collectors.get("export").collected.get(0), plain);
+    }
+
+    @Test
+    public void testFlowMask() throws Exception {
+        final FlowDemultiplexerStage<String> stage = new FlowDemultiplexerStage<>();
+        final FlowRegistry registry = new FlowRegistry(List.of("export", "other", "wobble", "wibble"));
+        final FlowDemultiplexerStage<String> template = makeStage("wibble", "wobble", "export");
+        stage.setId("masked");
+        stage.setFlowPipelines(template.getFlowPipelines());
+        stage.setFlowRegistry(registry);
+        stage.initialize();
+
+        final List<Item<String>> items = new ArrayList<>();
+        items.add(makeItem("plain"));
+        items.add(makeItem("enableWibble", new EnableFlow("wibble")));
+        items.add(makeItem("enableBoth", new EnableFlow("wibble"), new EnableFlow("wobble")));
+        items.add(makeItem("disableWobble", new DisableFlow("wobble")));
+        items.add(makeItem("enableOther", new EnableFlow("other")));
+        items.add(makeItem("disableOther", new DisableFlow("other")));
+        for (final Item<String> item : items) {
+            final FlowMask mask = new FlowMask(registry, item.getItemMetadata().get(EnableFlow.class),
+                    item.getItemMetadata().get(DisableFlow.class));
+            // Leave only the mask, so that the result must come from it
+            item.getItemMetadata().clear();
+            item.getItemMetadata().put(mask);
+        }
+        stage.execute(items);
+
+        Assert.assertEquals(collected("wibble"),
+                List.of("plain", "enableWibble", "enableBoth", "disableWobble", "disableOther"));
+        Assert.assertEquals(collected("wobble"), List.of("plain", "enableBoth", "disableOther"));
+        Assert.assertEquals(collected("export"), List.of("plain", "disableWobble", "disableOther"));
+    }
+
+    @Test(expectedExceptions = {ComponentInitializationException.class})
+    public void testFlowNotRegistered() throws Exception {
+        final FlowDemultiplexerStage<String> template = makeStage("wibble", "wobble");
+        final FlowDemultiplexerStage<String> stage = new FlowDemultiplexerStage<>();
+        stage.setId("test");
+        stage.setFlowPipelines(template.getFlowPipelines());
+        stage.setFlowRegistry(new FlowRegistry(List.of("wibble")));
+        stage.initialize();
+    }
+
+    @Test
+    public void testCopying() throws Exception {
+        final FlowDemultiplexerStage<String> stage = makeStage("wibble", "wobble");
+        final Item<String> plain = makeItem("plain");
+        final Item<String> constrained = makeItem("disableOther", new DisableFlow("other"));
+        final List<Item<String>> items = new ArrayList<>();
+        items.add(plain);
+        items.add(constrained);
+        stage.execute(items);
+
+        Assert.assertEquals(collected("wobble"), List.of("plain", "disableOther"));
+        Assert.assertSame(collectors.get("wibble").collected.get(0), plain);
+        Assert.assertSame(collectors.get("wobble").collected.get(0), plain);
+        Assert.assertSame(collectors.get("wibble").collected.get(1), constrained);
+        Assert.assertNotSame(collectors.get("wobble").collected.get(1), constrained);
+    }
+
+    @Test
+    public void testCopyingWithFlowMask() throws Exception {
+        final FlowRegistry registry = new FlowRegistry(List.of("wibble", "wobble"));
+        final FlowDemultiplexerStage<String> template = makeStage("wibble", "wobble");
+        final FlowDemultiplexerStage<String> stage = new FlowDemultiplexerStage<>();
+        stage.setId("masked");
+        stage.setFlowPipelines(template.getFlowPipelines());
+        stage.setFlowRegistry(registry);
+        stage.initialize();
+
+        final Item<String> plain = makeItem("plain");
+        plain.getItemMetadata().put(new FlowMask(registry, List.of(), List.of()));
+        final Item<String> constrained = makeItem("disableOther");
+        constrained.getItemMetadata().put(new FlowMask(registry, List.of(), List.of(new DisableFlow("other"))));
+        final List<Item<String>> items = new ArrayList<>();
+        items.add(plain);
+        items.add(constrained);
+        stage.execute(items);
+
+        Assert.assertSame(collectors.get("wobble").collected.get(0), plain);
+        Assert.assertNotSame(collectors.get("wobble").collected.get(1), constrained);
+    }
+
+    @Test(expectedExceptions = {StageProcessingException.class},
+            expectedExceptionsMessageRegExp = ".*has both enables and disables.*")
+    public void testHasBothConstraints() throws Exception {
+        final FlowDemultiplexerStage<String> stage = makeStage("wibble");
+        final List<Item<String>> items = new ArrayList<>();
+        items.add(makeItem("both", new EnableFlow("wibble"), new DisableFlow("wobble")));
+        stage.execute(items);
+    }
+
+    @Test(expectedExceptions = {ComponentInitializationException.class})
+    public void testNoFlows() throws Exception {
+        final FlowDemultiplexerStage<String> stage = new FlowDemultiplexerStage<>();
+        stage.setId("test");
+        stage.initialize();
+    }
+
+}
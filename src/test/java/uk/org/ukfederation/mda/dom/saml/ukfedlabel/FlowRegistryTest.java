@@ -0,0 +1,53 @@
+package uk.org.ukfederation.mda.dom.saml.ukfedlabel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.utilities.java.support.logic.ConstraintViolationException;
+
+public class FlowRegistryTest {
+
+    @Test
+    public void testIndexes() {
+        final FlowRegistry registry = new FlowRegistry(List.of("one", "two", "three"));
+        Assert.assertEquals(registry.getFlowNames(), List.of("one", "two", "three"));
+        Assert.assertEquals(registry.getIndex("one"), 0);
+        Assert.assertEquals(registry.getIndex("two"), 1);
+        Assert.assertEquals(registry.getIndex("three"), 2);
+        Assert.assertEquals(registry.getIndex("four"), -1);
+    }
+
+    @Test(expectedExceptions = {ConstraintViolationException.class})
+    public void testDuplicate() {
+        new FlowRegistry(List.of("one", "two", "one"));
+    }
+
+    @Test
+    public void testMaximum() {
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i < FlowRegistry.MAX_FLOWS; i++) {
+            names.add("flow" + i);
+        }
+        final FlowRegistry registry = new FlowRegistry(names);
+        Assert.assertEquals(registry.getIndex("flow63"), 63);
+
+        // The highest flow index uses the sign bit of the masks
+        final FlowMask mask = new FlowMask(registry, List.of(new EnableFlow("flow63")), List.of());
+        Assert.assertTrue(mask.isPreserved(63));
+        Assert.assertFalse(mask.isPreserved(0));
+        Assert.assertEquals(mask.getEnabled(), Long.MIN_VALUE);
+    }
+
+    @Test(expectedExceptions = {ConstraintViolationException.class})
+    public void testTooMany() {
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i <= FlowRegistry.MAX_FLOWS; i++) {
+            names.add("flow" + i);
+        }
+        new FlowRegistry(names);
+    }
+
+}
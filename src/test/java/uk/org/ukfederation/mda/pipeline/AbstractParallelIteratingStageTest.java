@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ukfederation.mda.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.shibboleth.metadata.InfoStatus;
+import net.shibboleth.metadata.Item;
+import net.shibboleth.metadata.MockItem;
+import net.shibboleth.metadata.pipeline.StageProcessingException;
+
+public class AbstractParallelIteratingStageTest {
+
+    private ExecutorService executor;
+
+    /**
+     * A stage which adds two statuses to each item, recording the thread used.
+     * Items whose value starts with "fail" cause a {@link StageProcessingException},
+     * "runtime" causes an {@link IllegalStateException}, and items whose
+     * value is "block" wait until released or interrupted.
+     */
+    private static class TestStage extends AbstractParallelIteratingStage<String> {
+
+        final AtomicInteger started = new AtomicInteger();
+
+        final AtomicInteger interrupted = new AtomicInteger();
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        protected void doExecute(final Item<String> item) throws StageProcessingException {
+            started.incrementAndGet();
+            final String value = item.unwrap();
+            if (value.startsWith("fail")) {
+                throw new StageProcessingException(value);
+            }
+            if (value.equals("runtime")) {
+                throw new IllegalStateException(value);
+            }
+            if (value.equals("block")) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    interrupted.incrementAndGet();
+                    return;
+                }
+            }
+            item.getItemMetadata().put(new InfoStatus("first", value));
+            item.getItemMetadata().put(new InfoStatus("second", Thread.currentThread().getName()));
+        }
+
+    }
+
+    @BeforeMethod
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private TestStage makeStage(final ExecutorService exec) throws Exception {
+        final TestStage stage = new TestStage();
+        stage.setId("test");
+        stage.setExecutorService(exec);
+        stage.initialize();
+        return stage;
+    }
+
+    private List<Item<String>> makeItems(final int count) {
+        final List<Item<String>> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(new MockItem("item" + i));
+        }
+        return items;
+    }
+
+    @Test
+    public void sequential() throws Exception {
+        final TestStage stage = makeStage(null);
+        Assert.assertNull(stage.getExecutorService());
+        final List<Item<String>> items = makeItems(10);
+        stage.execute(items);
+        final String thread = Thread.currentThread().getName();
+        for (final Item<String> item : items) {
+            Assert.assertEquals(item.getItemMetadata().get(InfoStatus.class).get(1).getStatusMessage(), thread);
+        }
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        final TestStage stage = makeStage(executor);
+        Assert.assertSame(stage.getExecutorService(), executor);
+        final List<Item<String>> items = makeItems(500);
+        final List<Item<String>> original = new ArrayList<>(items);
+        stage.execute(items);
+
+        // collection unchanged, metadata in the same order as sequential processing
+        Assert.assertEquals(items, original);
+        for (int i = 0; i < items.size(); i++) {
+            final List<InfoStatus> infos = items.get(i).getItemMetadata().get(InfoStatus.class);
+            Assert.assertEquals(infos.size(), 2);
+            Assert.assertEquals(infos.get(0).getComponentId(), "first");
+            Assert.assertEquals(infos.get(0).getStatusMessage(), "item" + i);
+            Assert.assertEquals(infos.get(1).getComponentId(), "second");
+            Assert.assertNotEquals(infos.get(1).getStatusMessage(), Thread.currentThread().getName());
+        }
+        Assert.assertEquals(stage.started.get(), 500);
+    }
+
+    @Test
+    public void firstExceptionWins() throws Exception {
+        final TestStage stage = makeStage(executor);
+        final List<Item<String>> items = makeItems(100);
+        items.set(10, new MockItem("fail10"));
+        items.set(90, new MockItem("fail90"));
+        try {
+            stage.execute(items);
+            Assert.fail("expected exception");
+        } catch (final StageProcessingException e) {
+            Assert.assertEquals(e.getMessage(), "fail10");
+        }
+    }
+
+    @Test
+    public void othersCancelled() throws Exception {
+        final TestStage stage = makeStage(executor);
+        final List<Item<String>> items = new ArrayList<>();
+        items.add(new MockItem("fail"));
+        for (int i = 0; i < 100; i++) {
+            items.add(new MockItem("block"));
+        }
+        try {
+            stage.execute(items);
+            Assert.fail("expected exception");
+        } catch (final StageProcessingException e) {
+            Assert.assertEquals(e.getMessage(), "fail");
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        // Only the tasks already running were started, and each of those was interrupted.
+        Assert.assertTrue(stage.started.get() < items.size());
+        Assert.assertEquals(stage.interrupted.get(), stage.started.get() - 1);
+    }
+
+    @Test
+    public void runtimeException() throws Exception {
+        final TestStage stage = makeStage(executor);
+        final List<Item<String>> items = makeItems(5);
+        items.set(3, new MockItem("runtime"));
+        try {
+            stage.execute(items);
+            Assert.fail("expected exception");
+        } catch (final IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "runtime");
+        }
+    }
+
+}